@@ -0,0 +1,738 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import org.zoolu.util.ByteBufferPool;
+import org.zoolu.util.Bytes;
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
+
+
+/** DTLS transport over UDP.
+  * <p>
+  * It runs DTLS, through {@link javax.net.ssl.SSLEngine}, on top of a {@link UdpProvider}.
+  * Sessions with all remote peers are multiplexed on the same UDP socket and are handled
+  * by the single receiving thread of the provider. Each session is identified by the socket address of the remote peer.
+  * <p>
+  * A client session is started by {@link #connect(SocketAddress)}, or implicitly by the first
+  * {@link #send(SocketAddress, byte[])} toward a new peer; data sent before the handshake
+  * is completed is queued. A server session is created when a ClientHello is received from a new peer.
+  * <p>
+  * Since the source address of a ClientHello can be spoofed, at most {@link #MAX_HALF_OPEN_SESSIONS} server sessions
+  * can be handshaking at the same time. When the limit is reached, a ClientHello from a new peer replaces the oldest
+  * server session that has sent a HelloVerifyRequest and has not received the ClientHello with the cookie yet,
+  * that is whose peer has not proved to own its address; if there is none, the ClientHello is discarded.
+  * As in RFC 6347, the HelloVerifyRequest is not retransmitted by the server.
+  * <p>
+  * Lost handshake flights are retransmitted through a {@link org.zoolu.util.Timer},
+  * starting from {@link #INITIAL_RETRANSMISSION_TIMEOUT} and doubling the timeout
+  * at each retransmission, as in RFC 6347. The last flight is also resent when the peer
+  * retransmits its final flight after the handshake has been completed locally.
+  * <p>
+  * The DTLS versions actually available depend on the JSSE provider (the SunJSSE provider supports DTLS 1.0 and 1.2).
+  * Note that the SunJSSE provider fails the handshake if a DTLS 1.2 NewSessionTicket message is lost;
+  * on lossy networks session tickets should be disabled through {@link TlsSessionCache#setSessionTicketsEnabled(boolean)}.
+  */
+public class DtlsProvider implements UdpProviderListener {
+
+	/** Default maximum size of DTLS packets */
+	public static int DEFAULT_MAX_PACKET_SIZE=1200;
+
+	/** Initial handshake retransmission timeout, in milliseconds */
+	public static long INITIAL_RETRANSMISSION_TIMEOUT=1000;
+
+	/** Maximum handshake retransmission timeout, in milliseconds */
+	public static long MAX_RETRANSMISSION_TIMEOUT=60000;
+
+	/** Maximum number of handshake retransmissions */
+	public static int MAX_RETRANSMISSIONS=6;
+
+	/** Maximum number of server sessions that are handshaking at the same time */
+	public static int MAX_HALF_OPEN_SESSIONS=256;
+
+	/** Maximum number of application data packets queued while the handshake is in progress */
+	public static int MAX_PENDING_PACKETS=64;
+
+	/** Maximum number of pooled buffers of each type */
+	public static int MAX_POOLED_BUFFERS=64;
+
+	/** DTLS change_cipher_spec content type */
+	static final int CONTENT_TYPE_CHANGE_CIPHER_SPEC=20;
+
+	/** DTLS handshake content type */
+	static final int CONTENT_TYPE_HANDSHAKE=22;
+
+	/** DTLS ClientHello handshake type */
+	static final int HANDSHAKE_TYPE_CLIENT_HELLO=1;
+
+	/** DTLS HelloVerifyRequest handshake type */
+	static final int HANDSHAKE_TYPE_HELLO_VERIFY_REQUEST=3;
+
+	/** DTLS record header length */
+	static final int RECORD_HDR_LEN=13;
+
+	/** Empty buffer */
+	static final ByteBuffer EMPTY_BUFFER=ByteBuffer.allocate(0);
+
+
+	/** UDP provider */
+	UdpProvider udp;
+
+	/** SSL context */
+	SSLContext ssl_context;
+
+	/** Provider listener */
+	DtlsProviderListener listener;
+
+	/** Pool of network buffers */
+	ByteBufferPool net_buffers;
+
+	/** Pool of application buffers */
+	ByteBufferPool app_buffers;
+
+	/** Maximum packet size */
+	int max_packet_size=DEFAULT_MAX_PACKET_SIZE;
+
+	/** Enabled protocol versions */
+	String[] enabled_protocols=null;
+
+	/** Enabled cipher suites */
+	String[] enabled_cipher_suites=null;
+
+	/** Whether requiring client authentication */
+	boolean client_auth=false;
+
+	/** Whether accepting sessions from new peers */
+	boolean accept=true;
+
+	/** Sessions, in order of creation */
+	LinkedHashMap<SocketAddress,Session> sessions=new LinkedHashMap<>();
+
+	/** Number of server sessions that are handshaking */
+	int half_open_sessions=0;
+
+
+
+	/** Creates a new DTLS provider.
+	 * @param socket the UDP socket
+	 * @param tls_context the TLS context with keys and trusted certificates
+	 * @param listener the provider listener
+	 * @throws java.security.GeneralSecurityException */
+	public DtlsProvider(DatagramSocket socket, TlsContext tls_context, DtlsProviderListener listener) throws java.security.GeneralSecurityException {
+		this(socket,tls_context.createSSLContext("DTLS"),listener);
+	}
+
+
+	/** Creates a new DTLS provider.
+	 * @param socket the UDP socket
+	 * @param ssl_context a DTLS context
+	 * @param listener the provider listener */
+	public DtlsProvider(DatagramSocket socket, SSLContext ssl_context, DtlsProviderListener listener) {
+		this.ssl_context=ssl_context;
+		this.listener=listener;
+		SSLSession session=ssl_context.createSSLEngine().getSession();
+		net_buffers=new ByteBufferPool(session.getPacketBufferSize(),MAX_POOLED_BUFFERS);
+		app_buffers=new ByteBufferPool(session.getApplicationBufferSize(),MAX_POOLED_BUFFERS);
+		udp=new UdpProvider(socket,this);
+	}
+
+
+	/** Gets the UDP provider.
+	 * @return the provider */
+	public UdpProvider getUdpProvider() {
+		return udp;
+	}
+
+
+	/** Sets the maximum size of DTLS packets for new sessions.
+	 * @param max_packet_size the maximum size, in bytes */
+	public synchronized void setMaximumPacketSize(int max_packet_size) {
+		if (max_packet_size<RECORD_HDR_LEN+1 || max_packet_size>UdpProvider.BUFFER_SIZE) throw new IllegalArgumentException("Invalid maximum packet size: "+max_packet_size);
+		this.max_packet_size=max_packet_size;
+	}
+
+
+	/** Gets the maximum size of DTLS packets.
+	 * @return the maximum size, in bytes */
+	public synchronized int getMaximumPacketSize() {
+		return max_packet_size;
+	}
+
+
+	/** Sets the list of enabled protocol versions for new sessions.
+	 * @param enabled_protocols the protocol versions (e.g. "DTLSv1.2"), or <i>null</i> for the defaults */
+	public synchronized void setEnabledProtocols(String[] enabled_protocols) {
+		this.enabled_protocols=enabled_protocols;
+	}
+
+
+	/** Sets the list of enabled cipher suites for new sessions.
+	 * @param enabled_cipher_suites the cipher suites, or <i>null</i> for the defaults */
+	public synchronized void setEnabledCipherSuites(String[] enabled_cipher_suites) {
+		this.enabled_cipher_suites=enabled_cipher_suites;
+	}
+
+
+	/** Sets whether requiring client authentication on server sessions. */
+	public synchronized void setNeedClientAuth(boolean flag) {
+		client_auth=flag;
+	}
+
+
+	/** Sets whether accepting sessions started by new peers.
+	 * @param accept <i>true</i> for acting also as server (default), <i>false</i> for client only */
+	public synchronized void setAcceptEnabled(boolean accept) {
+		this.accept=accept;
+	}
+
+
+	/** Gets the number of sessions.
+	 * @return the number of sessions, including the ones still handshaking */
+	public synchronized int getSessionCount() {
+		return sessions.size();
+	}
+
+
+	/** Whether the handshake with a given peer has been completed.
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @return <i>true</i> if connected */
+	public boolean isConnected(SocketAddress remote_soaddr) {
+		Session s=getSession(remote_soaddr);
+		if (s==null) return false;
+		// else
+		synchronized (s) {
+			return s.connected && !s.closed;
+		}
+	}
+
+
+	/** Starts a handshake with a remote peer, unless a session already exists.
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @throws IOException */
+	public void connect(SocketAddress remote_soaddr) throws IOException {
+		Actions actions=new Actions();
+		Session s=getOrCreateSession(remote_soaddr,true);
+		synchronized (s) {
+			s.process(null,actions);
+		}
+		actions.execute();
+	}
+
+
+	/** Sends data to a remote peer.
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param data the data
+	 * @throws IOException */
+	public void send(SocketAddress remote_soaddr, byte[] data) throws IOException {
+		send(remote_soaddr,data,0,data.length);
+	}
+
+
+	/** Sends data to a remote peer.
+	 * If there is no session with the peer, a new handshake is started; the data is queued and sent when the handshake is completed.
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param buf the buffer containing the data
+	 * @param off the offset within the buffer
+	 * @param len the data length
+	 * @throws IOException */
+	public void send(SocketAddress remote_soaddr, byte[] buf, int off, int len) throws IOException {
+		Actions actions=new Actions();
+		Session s=getOrCreateSession(remote_soaddr,true);
+		synchronized (s) {
+			if (s.closed) throw new IOException("Session closed");
+			// else
+			if (s.pending.size()>=MAX_PENDING_PACKETS) throw new IOException("Handshake in progress: too many pending packets");
+			// else
+			s.pending.add(Bytes.copy(buf,off,len));
+			s.process(null,actions);
+		}
+		actions.execute();
+	}
+
+
+	/** Closes the session with a remote peer, sending a close_notify alert.
+	 * @param remote_soaddr the socket address of the remote peer */
+	public void close(SocketAddress remote_soaddr) {
+		Session s=getSession(remote_soaddr);
+		if (s==null) return;
+		// else
+		Actions actions=new Actions();
+		synchronized (s) {
+			if (!s.closed) {
+				s.engine.closeOutbound();
+				try {
+					s.wrap(EMPTY_BUFFER,actions);
+				}
+				catch (IOException e) {}
+				s.terminate(null,actions);
+			}
+		}
+		actions.execute();
+	}
+
+
+	/** Stops the provider, discarding all sessions. */
+	public void halt() {
+		udp.halt();
+		closeAll();
+	}
+
+
+	/** Discards all sessions. */
+	private void closeAll() {
+		ArrayList<Session> all;
+		synchronized (this) {
+			all=new ArrayList<>(sessions.values());
+		}
+		Actions actions=new Actions();
+		for (Session s : all) {
+			synchronized (s) {
+				s.terminate(null,actions);
+			}
+		}
+		actions.execute();
+	}
+
+
+	/** Gets the session with a given peer. */
+	private synchronized Session getSession(SocketAddress remote_soaddr) {
+		return sessions.get(remote_soaddr);
+	}
+
+
+	/** Gets the session with a given peer, creating it if it does not exist.
+	 * @return the session, or <i>null</i> if a server session cannot be created since too many are handshaking */
+	private synchronized Session getOrCreateSession(SocketAddress remote_soaddr, boolean client_mode) throws IOException {
+		Session s=sessions.get(remote_soaddr);
+		if (s==null) {
+			if (!client_mode && half_open_sessions>=MAX_HALF_OPEN_SESSIONS) return null;
+			// else
+			SSLEngine engine;
+			if (remote_soaddr instanceof InetSocketAddress) {
+				InetSocketAddress inet_soaddr=(InetSocketAddress)remote_soaddr;
+				engine=ssl_context.createSSLEngine(inet_soaddr.getHostString(),inet_soaddr.getPort());
+			}
+			else engine=ssl_context.createSSLEngine();
+			engine.setUseClientMode(client_mode);
+			SSLParameters params=engine.getSSLParameters();
+			params.setMaximumPacketSize(max_packet_size);
+			if (enabled_protocols!=null) params.setProtocols(enabled_protocols);
+			if (enabled_cipher_suites!=null) params.setCipherSuites(enabled_cipher_suites);
+			if (!client_mode && client_auth) params.setNeedClientAuth(true);
+			engine.setSSLParameters(params);
+			engine.beginHandshake();
+			s=new Session(remote_soaddr,engine);
+			sessions.put(remote_soaddr,s);
+			if (!client_mode) {
+				s.half_open=true;
+				half_open_sessions++;
+			}
+		}
+		return s;
+	}
+
+
+	/** Removes a session. */
+	private synchronized void removeSession(Session s) {
+		if (sessions.get(s.remote_soaddr)==s) sessions.remove(s.remote_soaddr);
+		endHalfOpen(s);
+	}
+
+
+	/** Gets the oldest server session that is waiting for the ClientHello with the cookie.
+	 * @return the session, or <i>null</i> */
+	private synchronized Session getVerifyWaitSession() {
+		for (Session s : sessions.values()) {
+			if (s.half_open && s.verify_wait) return s;
+		}
+		return null;
+	}
+
+
+	/** Stops counting a server session as handshaking. */
+	private synchronized void endHalfOpen(Session s) {
+		if (s.half_open) {
+			s.half_open=false;
+			half_open_sessions--;
+		}
+	}
+
+
+	@Override
+	public void onReceivedPacket(UdpProvider udp, DatagramPacket packet) {
+		byte[] buf=packet.getData();
+		int off=packet.getOffset();
+		int len=packet.getLength();
+		if (len<RECORD_HDR_LEN) return;
+		// else
+		SocketAddress remote_soaddr=packet.getSocketAddress();
+		Session s=getSession(remote_soaddr);
+		if (s==null) {
+			// only a ClientHello can start a new session
+			if (len<=RECORD_HDR_LEN || (buf[off]&0xff)!=CONTENT_TYPE_HANDSHAKE || (buf[off+RECORD_HDR_LEN]&0xff)!=HANDSHAKE_TYPE_CLIENT_HELLO) return;
+			// else
+			synchronized (this) {
+				if (!accept) return;
+			}
+			try {
+				s=getOrCreateSession(remote_soaddr,false);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (s==null) {
+				// too many handshaking server sessions: discard the oldest one whose peer has not returned the cookie
+				Session old_s=getVerifyWaitSession();
+				if (old_s==null) return;
+				// else
+				Actions actions=new Actions();
+				synchronized (old_s) {
+					old_s.terminate(new IOException("Too many handshaking sessions"),actions);
+				}
+				actions.execute();
+				try {
+					s=getOrCreateSession(remote_soaddr,false);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+				if (s==null) return;
+			}
+		}
+		Actions actions=new Actions();
+		synchronized (s) {
+			s.process(ByteBuffer.wrap(buf,off,len),actions);
+		}
+		actions.execute();
+	}
+
+
+	@Override
+	public void onServiceTerminated(UdpProvider udp, Exception error) {
+		closeAll();
+	}
+
+
+	/** Whether a datagram contains a record of a given content type.
+	 * @param buf the datagram, that may contain more DTLS records
+	 * @param content_type the content type
+	 * @return <i>true</i> if found */
+	private static boolean containsRecord(ByteBuffer buf, int content_type) {
+		int off=buf.position();
+		int end=buf.limit();
+		while (off+RECORD_HDR_LEN<=end) {
+			if ((buf.get(off)&0xff)==content_type) return true;
+			// else
+			off+=RECORD_HDR_LEN+(((buf.get(off+11)&0xff)<<8)|(buf.get(off+12)&0xff));
+		}
+		return false;
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+'['+udp.getSocket().getLocalSocketAddress()+']';
+	}
+
+
+
+	/** Actions to be executed after releasing the session lock.
+	  * Timers are halted, packets are sent, and listener events are fired outside the lock,
+	  * in order to avoid lock inversion with timer threads and listener code. */
+	class Actions {
+
+		/** Packets to be sent */
+		ArrayList<DatagramPacket> packets=new ArrayList<>();
+
+		/** Timers to be halted */
+		ArrayList<Timer> timers=new ArrayList<>();
+
+		/** Listener events */
+		ArrayList<Runnable> events=new ArrayList<>();
+
+		/** Executes all actions. */
+		void execute() {
+			for (Timer t : timers) t.halt();
+			for (DatagramPacket packet : packets) {
+				try { udp.send(packet); } catch (IOException e) { e.printStackTrace(); }
+			}
+			if (listener!=null) for (Runnable r : events) r.run();
+		}
+	}
+
+
+	/** DTLS session with a remote peer. */
+	class Session implements TimerListener {
+
+		/** Remote socket address */
+		SocketAddress remote_soaddr;
+
+		/** SSL engine */
+		SSLEngine engine;
+
+		/** Application data queued while the handshake is in progress */
+		ArrayDeque<byte[]> pending=new ArrayDeque<>();
+
+		/** Handshake retransmission timer */
+		Timer timer=null;
+
+		/** Current retransmission timeout */
+		long rto=INITIAL_RETRANSMISSION_TIMEOUT;
+
+		/** Number of retransmissions of the last flight */
+		int retransmissions=0;
+
+		/** Packets of the last handshake flight sent, kept until application data is received from the peer */
+		ArrayList<DatagramPacket> last_flight=null;
+
+		/** Whether the next handshake packet starts a new flight */
+		boolean new_flight=true;
+
+		/** Whether it is a server session that has only sent a HelloVerifyRequest (also read with the provider lock) */
+		volatile boolean verify_wait=false;
+
+		/** Whether it is a server session counted as handshaking (accessed with the provider lock) */
+		boolean half_open=false;
+
+		/** Whether the handshake has been completed */
+		boolean connected=false;
+
+		/** Whether the session is closed */
+		boolean closed=false;
+
+		/** Creates a new session. */
+		Session(SocketAddress remote_soaddr, SSLEngine engine) {
+			this.remote_soaddr=remote_soaddr;
+			this.engine=engine;
+		}
+
+		/** Runs the DTLS state machine.
+		 * @param net_in a received packet, or <i>null</i> */
+		void process(ByteBuffer net_in, Actions actions) {
+			if (closed) return;
+			// else
+			try {
+				// a retransmission of the peer final flight means that our last flight has been lost
+				boolean flight_lost=connected && last_flight!=null && net_in!=null && containsRecord(net_in,CONTENT_TYPE_CHANGE_CIPHER_SPEC);
+				int sent_packets=actions.packets.size();
+				boolean progress=true;
+				while (progress && !closed) {
+					progress=false;
+					switch (engine.getHandshakeStatus()) {
+						case NEED_TASK : {
+							Runnable task;
+							while ((task=engine.getDelegatedTask())!=null) task.run();
+							progress=true;
+							break;
+						}
+						case NEED_WRAP : {
+							progress=wrap(EMPTY_BUFFER,actions);
+							break;
+						}
+						case NEED_UNWRAP_AGAIN : {
+							progress=unwrap(EMPTY_BUFFER,actions);
+							break;
+						}
+						case NEED_UNWRAP : {
+							if (net_in!=null && net_in.hasRemaining()) {
+								progress=unwrap(net_in,actions);
+								if (engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+									// the peer flight has been received: a new flight is going to be sent
+									stopTimer(actions);
+									rto=INITIAL_RETRANSMISSION_TIMEOUT;
+									retransmissions=0;
+									new_flight=true;
+									verify_wait=false;
+								}
+							}
+							else startTimer();
+							break;
+						}
+						default : {
+							if (!connected) {
+								connected=true;
+								stopTimer(actions);
+								endHalfOpen(this);
+								final SSLSession session=engine.getSession();
+								actions.events.add(()->listener.onConnected(DtlsProvider.this,remote_soaddr,session));
+							}
+							while (!pending.isEmpty() && !engine.isOutboundDone()) {
+								wrap(ByteBuffer.wrap(pending.poll()),actions);
+							}
+							if (net_in!=null && net_in.hasRemaining()) progress=unwrap(net_in,actions);
+						}
+					}
+				}
+				if (flight_lost && actions.packets.size()==sent_packets) {
+					// the engine does not retransmit the last flight once the handshake is completed
+					actions.packets.addAll(last_flight);
+				}
+				if (engine.isInboundDone() && !closed) {
+					// close_notify received
+					engine.closeOutbound();
+					wrap(EMPTY_BUFFER,actions);
+					terminate(null,actions);
+				}
+			}
+			catch (SSLException e) {
+				if (connected) {
+					// invalid records are silently discarded
+				}
+				else terminate(e,actions);
+			}
+			catch (IOException e) {
+				terminate(e,actions);
+			}
+		}
+
+		/** Wraps data into DTLS packets.
+		 * @return whether some data has been consumed or produced, or the handshake status has changed */
+		boolean wrap(ByteBuffer src, Actions actions) throws IOException {
+			ByteBuffer net_out=net_buffers.get();
+			try {
+				SSLEngineResult.HandshakeStatus status=engine.getHandshakeStatus();
+				SSLEngineResult result=engine.wrap(src,net_out);
+				if (result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW) throw new IOException("Network buffer overflow");
+				// else
+				if (net_out.position()>0) {
+					DatagramPacket packet=new DatagramPacket(Bytes.copy(net_out.array(),0,net_out.position()),net_out.position(),remote_soaddr);
+					actions.packets.add(packet);
+					if (!connected) {
+						if (new_flight) {
+							last_flight=new ArrayList<>();
+							new_flight=false;
+							verify_wait=!engine.getUseClientMode() && net_out.position()>RECORD_HDR_LEN && (net_out.get(0)&0xff)==CONTENT_TYPE_HANDSHAKE && (net_out.get(RECORD_HDR_LEN)&0xff)==HANDSHAKE_TYPE_HELLO_VERIFY_REQUEST;
+						}
+						last_flight.add(packet);
+					}
+				}
+				return result.bytesConsumed()>0 || result.bytesProduced()>0 || result.getHandshakeStatus()!=status;
+			}
+			finally {
+				net_buffers.release(net_out);
+			}
+		}
+
+		/** Unwraps a DTLS record, passing application data to the listener.
+		 * Note that the engine may process buffered out-of-order records without consuming new data.
+		 * @return whether some data has been consumed or produced, or the handshake status has changed */
+		boolean unwrap(ByteBuffer net_in, Actions actions) throws IOException {
+			ByteBuffer app_in=app_buffers.get();
+			try {
+				SSLEngineResult.HandshakeStatus status=engine.getHandshakeStatus();
+				SSLEngineResult result=engine.unwrap(net_in,app_in);
+				if (result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW) throw new IOException("Application buffer overflow");
+				// else
+				if (app_in.position()>0) {
+					last_flight=null;
+					final byte[] data=Bytes.copy(app_in.array(),0,app_in.position());
+					actions.events.add(()->listener.onReceivedData(DtlsProvider.this,remote_soaddr,data));
+				}
+				if (result.getStatus()==SSLEngineResult.Status.CLOSED) return false;
+				// else
+				return result.bytesConsumed()>0 || result.bytesProduced()>0 || result.getHandshakeStatus()!=status;
+			}
+			finally {
+				app_buffers.release(app_in);
+			}
+		}
+
+		/** Starts the retransmission timer, if not already running. */
+		void startTimer() {
+			if (timer!=null) return;
+			// else
+			timer=new Timer(rto,this);
+			timer.start(true);
+		}
+
+		/** Stops the retransmission timer. */
+		void stopTimer(Actions actions) {
+			if (timer!=null) {
+				actions.timers.add(timer);
+				timer=null;
+			}
+		}
+
+		@Override
+		public void onTimeout(Timer t) {
+			Actions actions=new Actions();
+			synchronized (this) {
+				if (t!=timer) return;
+				// else
+				timer=null;
+				if (connected || closed) return;
+				// else
+				if (retransmissions++>=MAX_RETRANSMISSIONS) terminate(new IOException("Handshake timeout"),actions);
+				else {
+					rto=Math.min(rto*2,MAX_RETRANSMISSION_TIMEOUT);
+					// the HelloVerifyRequest is not retransmitted, since the client retransmits its ClientHello if it is lost
+					if (!verify_wait && engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+						try {
+							// the retransmitted packets replace the last flight
+							new_flight=true;
+							// the engine retransmits the last flight on wrap; the remaining packets of the flight (if any) are produced by process()
+							wrap(EMPTY_BUFFER,actions);
+						}
+						catch (IOException e) {
+							terminate(e,actions);
+						}
+					}
+					process(null,actions);
+				}
+			}
+			actions.execute();
+		}
+
+		/** Closes the session.
+		 * @param error the exception that caused the termination, or <i>null</i> */
+		void terminate(final Exception error, Actions actions) {
+			if (closed) return;
+			// else
+			closed=true;
+			stopTimer(actions);
+			pending.clear();
+			removeSession(this);
+			actions.events.add(()->listener.onClosed(DtlsProvider.this,remote_soaddr,error));
+		}
+	}
+
+}
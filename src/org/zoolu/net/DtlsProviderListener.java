@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+
+/** Listener for DtlsProvider events.
+  */
+public interface DtlsProviderListener {
+
+	/** When the DTLS handshake with a remote peer has been completed.
+	 * @param dtls the DTLS provider
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param session the negotiated session */
+	public void onConnected(DtlsProvider dtls, SocketAddress remote_soaddr, SSLSession session);
+
+	/** When new application data is received from a remote peer.
+	 * @param dtls the DTLS provider
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param data the received data */
+	public void onReceivedData(DtlsProvider dtls, SocketAddress remote_soaddr, byte[] data);
+
+	/** When the session with a remote peer is closed.
+	 * @param dtls the DTLS provider
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param error the exception that caused the session to be closed (e.g. a handshake failure or timeout), or <i>null</i> */
+	public void onClosed(DtlsProvider dtls, SocketAddress remote_soaddr, Exception error);
+}
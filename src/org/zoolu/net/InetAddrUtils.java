@@ -22,6 +22,7 @@ package org.zoolu.net;
 
 
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
@@ -30,9 +31,28 @@ import org.zoolu.util.Bytes;
 
 
 /** Methods for handling Internet socket addresses.
+  * <p>
+  * Literal IPv4 and IPv6 addresses are parsed without name resolution.
+  * Socket addresses parsed from literal strings, formatted as strings, or decoded from their binary form
+  * are kept in small direct-mapped caches, so that repeated calls with the same values return
+  * the same objects without allocating memory. Socket addresses with host names are never cached,
+  * so that changes of name resolution are always seen.
   */
 public class InetAddrUtils {
 
+	/** Size of each cache (it must be a power of 2) */
+	static final int CACHE_SIZE=1024;
+
+	/** Socket addresses parsed from strings, indexed by string hash */
+	static final AddressEntry[] PARSE_CACHE=new AddressEntry[CACHE_SIZE];
+
+	/** Socket addresses formatted as strings or encoded, indexed by socket address hash */
+	static final AddressEntry[] FORMAT_CACHE=new AddressEntry[CACHE_SIZE];
+
+	/** Socket addresses decoded from their binary form, indexed by address and port hash */
+	static final AddressEntry[] DECODE_CACHE=new AddressEntry[CACHE_SIZE];
+
+
 	/** Gets a socket address.
 	 * @param buf the array containing the socket address
 	 * @param off the offset within the array
@@ -40,21 +60,55 @@ public class InetAddrUtils {
 	 * @return the socket address */
 	public static InetSocketAddress parseInetSocketAddress(byte[] buf, int off, int len) {
 		if (len!=6 && len!=18) throw new RuntimeException("Invalid IP address length ("+(len-2)+")");
+		// else
+		int port=Bytes.toInt16(buf,off+len-2);
+		int hash=port;
+		for (int i=off; i<off+len-2; i++) hash=31*hash+buf[i];
+		int index=hash&(CACHE_SIZE-1);
+		AddressEntry entry=DECODE_CACHE[index];
+		if (entry!=null && entry.soaddr.getPort()==port && entry.matches(buf,off,len-2)) return entry.soaddr;
+		// else
 		byte[] addr=new byte[len-2];
 		System.arraycopy(buf,off,addr,0,addr.length);
 		try {
-			return new InetSocketAddress(InetAddress.getByAddress(addr),Bytes.toInt16(buf,off+addr.length));
+			entry=new AddressEntry(null,new InetSocketAddress(InetAddress.getByAddress(addr),port));
+			DECODE_CACHE[index]=entry;
+			return entry.soaddr;
 		}
 		catch (UnknownHostException e) {
 			throw new RuntimeException(e.getMessage());
 		}
 	}
 
+	/** Writes the binary form of a socket address, that is the IP address followed by the port number.
+	 * @param soaddr the socket address
+	 * @param buf the array where the socket address has to be written
+	 * @param off the offset within the array
+	 * @return the socket address length (6 in case of IPv4, 18 in case of IPv6) */
+	public static int encodeInetSocketAddress(InetSocketAddress soaddr, byte[] buf, int off) {
+		byte[] addr=getFormatEntry(soaddr).addr;
+		System.arraycopy(addr,0,buf,off,addr.length);
+		Bytes.fromInt16(soaddr.getPort(),buf,off+addr.length);
+		return addr.length+2;
+	}
+
 	/** Gets a socket address.
 	 * @param soaddr the string representing the socket address
 	 * @return the socket address
 	 * @throws IOException */
 	public static InetSocketAddress parseInetSocketAddress(String soaddr) throws IOException {
+		int index=soaddr.hashCode()&(CACHE_SIZE-1);
+		AddressEntry entry=PARSE_CACHE[index];
+		if (entry!=null && entry.str.equals(soaddr)) return entry.soaddr;
+		// else
+		String host=parseSocketHost(soaddr);
+		int port=parseSocketPort(soaddr);
+		InetAddress inetaddr=parseLiteralAddress(host);
+		if (inetaddr==null) return new InetSocketAddress(InetAddress.getByName(host),port);
+		// else
+		entry=new AddressEntry(soaddr,new InetSocketAddress(inetaddr,port));
+		PARSE_CACHE[index]=entry;
+		return entry.soaddr;
 		/*int index=soaddr.length()-1;
 		while (index>=0 && soaddr.charAt(index)!=':') index--;
 		if (index<0) throw new IOException("Malformed socket address: port number not found: "+soaddr);
@@ -62,7 +116,6 @@ public class InetAddrUtils {
 		inetaddr=InetAddress.getByName(soaddr.substring(0,index));
 		int port=Integer.parseInt(soaddr.substring(index+1));
 		return new InetSocketAddress(inetaddr,port);*/
-		return new InetSocketAddress(parseSocketInetAddress(soaddr),parseSocketPort(soaddr));
 	}
 
 	/** Gets a string representation of a socket address.
@@ -70,7 +123,21 @@ public class InetAddrUtils {
 	 * @return the socket address as a string */
 	public static String toString(InetSocketAddress soaddr) {
 		if (soaddr==null) return null;
-		return soaddr.getAddress().getHostAddress()+':'+soaddr.getPort();
+		// else
+		return getFormatEntry(soaddr).str;
+	}
+
+	/** Gets the cache entry of a socket address, creating it if not present. */
+	private static AddressEntry getFormatEntry(InetSocketAddress soaddr) {
+		int index=soaddr.hashCode()&(CACHE_SIZE-1);
+		AddressEntry entry=FORMAT_CACHE[index];
+		if (entry!=null && entry.soaddr.equals(soaddr)) return entry;
+		// else
+		InetAddress inetaddr=soaddr.getAddress();
+		entry=new AddressEntry(inetaddr.getHostAddress()+':'+soaddr.getPort(),soaddr);
+		// scoped IPv6 addresses with different scopes are equal, but have different string representations
+		if (!(inetaddr instanceof Inet6Address) || ((Inet6Address)inetaddr).getScopeId()==0) FORMAT_CACHE[index]=entry;
+		return entry;
 	}
 
 	/** Gets the IP address of a socket address.
@@ -78,7 +145,127 @@ public class InetAddrUtils {
 	 * @return the IP address
 	 * @throws IOException */
 	public static InetAddress parseSocketInetAddress(String soaddr) throws IOException {
-		return InetAddress.getByName(parseSocketHost(soaddr));
+		String host=parseSocketHost(soaddr);
+		InetAddress inetaddr=parseLiteralAddress(host);
+		return inetaddr!=null? inetaddr : InetAddress.getByName(host);
+	}
+
+	/** Gets the IP address represented by a literal IPv4 or IPv6 address, without name resolution.
+	 * @param str the literal address
+	 * @return the IP address, or <i>null</i> if the string is not a literal address (e.g. it is a host name) */
+	public static InetAddress parseLiteralAddress(String str) {
+		byte[] buf=new byte[16];
+		int len=parseLiteralAddress(str,0,str.length(),buf,0);
+		if (len<0) return null;
+		// else
+		try {
+			return InetAddress.getByAddress(len==4? Bytes.copy(buf,0,4) : buf);
+		}
+		catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/** Parses a literal IPv4 or IPv6 address, without name resolution and without allocating memory.
+	 * IPv4 addresses are in dotted-decimal form; IPv6 addresses may contain "::" and a trailing IPv4 address,
+	 * but not a scope (e.g. "%eth0").
+	 * @param str the string containing the literal address
+	 * @param begin the index of the first character of the address
+	 * @param end the index after the last character of the address
+	 * @param buf the array where the address bytes are written (4 bytes for IPv4, 16 bytes for IPv6)
+	 * @param off the offset within the array
+	 * @return the address length (4 or 16), or -1 if the string is not a valid literal address */
+	public static int parseLiteralAddress(CharSequence str, int begin, int end, byte[] buf, int off) {
+		for (int i=begin; i<end; i++) if (str.charAt(i)==':') return parseIPv6Address(str,begin,end,buf,off);
+		// else
+		return parseIPv4Address(str,begin,end,buf,off);
+	}
+
+	/** Parses a literal IPv4 address.
+	 * @return 4, or -1 if not valid */
+	private static int parseIPv4Address(CharSequence str, int i, int end, byte[] buf, int off) {
+		for (int k=0; k<4; k++) {
+			if (k>0) {
+				if (i>=end || str.charAt(i)!='.') return -1;
+				// else
+				i++;
+			}
+			int start=i;
+			int val=0;
+			while (i<end && i-start<3) {
+				char c=str.charAt(i);
+				if (c<'0' || c>'9') break;
+				// else
+				val=val*10+c-'0';
+				i++;
+			}
+			if (i==start || val>255) return -1;
+			// else
+			buf[off+k]=(byte)val;
+		}
+		return i==end? 4 : -1;
+	}
+
+	/** Parses a literal IPv6 address.
+	 * @return 16, or -1 if not valid */
+	private static int parseIPv6Address(CharSequence str, int i, int end, byte[] buf, int off) {
+		// number of bytes written, and position of "::"
+		int n=0;
+		int compress=-1;
+		if (i+1<end && str.charAt(i)==':' && str.charAt(i+1)==':') {
+			compress=0;
+			i+=2;
+		}
+		while (i<end) {
+			if (n>=16) return -1;
+			// else
+			int start=i;
+			int val=0;
+			int digit;
+			while (i<end && (digit=hexDigit(str.charAt(i)))>=0) {
+				val=(val<<4)|digit;
+				i++;
+			}
+			if (i<end && str.charAt(i)=='.') {
+				// trailing IPv4 address
+				if (n>12 || parseIPv4Address(str,start,end,buf,off+n)<0) return -1;
+				// else
+				n+=4;
+				break;
+			}
+			// else
+			if (i==start || i-start>4) return -1;
+			// else
+			buf[off+n++]=(byte)(val>>8);
+			buf[off+n++]=(byte)val;
+			if (i==end) break;
+			// else
+			if (str.charAt(i++)!=':' || i==end) return -1;
+			// else
+			if (str.charAt(i)==':') {
+				if (compress>=0) return -1;
+				// else
+				compress=n;
+				i++;
+			}
+		}
+		if (compress<0) return n==16? 16 : -1;
+		// else
+		if (n>14) return -1;
+		// else
+		int tail=n-compress;
+		System.arraycopy(buf,off+compress,buf,off+16-tail,tail);
+		for (int k=off+compress; k<off+16-tail; k++) buf[k]=0;
+		return 16;
+	}
+
+	/** Gets the value of a hexadecimal digit.
+	 * @return the value, or -1 if not a hexadecimal digit */
+	private static int hexDigit(char c) {
+		if (c>='0' && c<='9') return c-'0';
+		if (c>='a' && c<='f') return c-'a'+10;
+		if (c>='A' && c<='F') return c-'A'+10;
+		return -1;
 	}
 	
 	/** Gets the host part of a socket address.
@@ -125,4 +312,35 @@ public class InetAddrUtils {
 		return index<0? defaultport : Integer.parseInt(soaddr.substring(index+1));
 	}
 
+
+
+	/** Cached socket address, with its string representation and the IP address bytes. */
+	static final class AddressEntry {
+
+		/** String representation */
+		final String str;
+
+		/** Socket address */
+		final InetSocketAddress soaddr;
+
+		/** IP address bytes */
+		final byte[] addr;
+
+		/** Creates a new entry.
+		 * @param str the string representation, or <i>null</i> to use the default one */
+		AddressEntry(String str, InetSocketAddress soaddr) {
+			this.str=str!=null? str : soaddr.getAddress().getHostAddress()+':'+soaddr.getPort();
+			this.soaddr=soaddr;
+			this.addr=soaddr.getAddress().getAddress();
+		}
+
+		/** Whether the IP address is equal to a given one. */
+		boolean matches(byte[] buf, int off, int len) {
+			if (addr.length!=len) return false;
+			// else
+			for (int i=0; i<len; i++) if (addr[i]!=buf[off+i]) return false;
+			return true;
+		}
+	}
+
 }
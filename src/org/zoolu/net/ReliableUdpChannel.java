@@ -0,0 +1,852 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.zoolu.util.Bytes;
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
+
+
+/** Reliable message channel over UDP.
+  * <p>
+  * Messages are sent to a remote peer within a <i>stream</i> (identified by a 16-bit number).
+  * Each stream has its own sequence numbers, sliding window, and retransmission timer,
+  * so that a loss in one stream never blocks the other streams.
+  * <p>
+  * Messages longer than the fragment size are split into fragments that are
+  * reassembled by the receiver. Received fragments are acknowledged with a cumulative
+  * acknowledgment plus selective acknowledgment (SACK) blocks; lost fragments are
+  * retransmitted when the retransmission timer expires (with RTO computed as in RFC 6298),
+  * or when they are reported missing by {@link #DUP_THRESHOLD} acknowledgments.
+  * <p>
+  * Streams are ordered by default, that is messages are delivered in the same order
+  * they have been sent. Unordered streams ({@link #setStreamOrdered(int, boolean)})
+  * deliver each message as soon as all its fragments have been received.
+  * <p>
+  * When a fragment reaches the maximum number of retransmissions, all queued fragments
+  * of the stream are abandoned and the receiver is told (through a FORWARD packet)
+  * to skip them, so that later messages can still be delivered.
+  * <p>
+  * Each sending stream has a random <i>epoch</i>, carried by all its packets. Sequence numbers restart from 0
+  * when the sender restarts or the stream is reset, with a new epoch: when the receiver sees a new epoch,
+  * it resets its receiving stream, and ACKs of a different epoch are ignored by the sender,
+  * so that stale acknowledgments are never taken as delivery of new data.
+  * <p>
+  * The state kept for remote peers is bounded: at most {@link #MAX_PEERS} peers and {@link #MAX_RECEIVE_STREAMS}
+  * receiving streams per peer are created by received packets. When the limit of peers is reached, the least recently
+  * active peer without outgoing data is discarded; packets that would need further state are dropped.
+  * <p>
+  * Packet formats:
+  * <pre>
+  * DATA:    type=1 (1B) | flags (1B) | stream (2B) | epoch (4B) | seq (6B) | payload
+  * ACK:     type=2 (1B) | n (1B) | stream (2B) | epoch (4B) | cumulative ack (6B) | n x [ start (6B) | end (6B) ]
+  * FORWARD: type=3 (1B) | 0 (1B) | stream (2B) | epoch (4B) | first not abandoned seq (6B)
+  * </pre>
+  */
+public class ReliableUdpChannel implements UdpProviderListener {
+
+	/** Default sending window, that is the maximum span of sequence numbers of unacknowledged fragments */
+	public static int DEFAULT_WINDOW=64;
+
+	/** Default maximum fragment payload size, in bytes */
+	public static int DEFAULT_FRAGMENT_SIZE=1200;
+
+	/** Maximum span of sequence numbers buffered by the receiver */
+	public static int MAX_RECEIVE_WINDOW=4096;
+
+	/** Initial retransmission timeout, in milliseconds */
+	public static long INITIAL_RTO=500;
+
+	/** Minimum retransmission timeout, in milliseconds */
+	public static long MIN_RTO=50;
+
+	/** Maximum retransmission timeout, in milliseconds */
+	public static long MAX_RTO=8000;
+
+	/** Maximum number of retransmissions of a fragment */
+	public static int MAX_RETRANSMISSIONS=8;
+
+	/** Maximum number of remote peers whose state is created by received packets */
+	public static int MAX_PEERS=1024;
+
+	/** Maximum number of receiving streams of a remote peer */
+	public static int MAX_RECEIVE_STREAMS=256;
+
+	/** Number of acknowledgments reporting a fragment as missing that trigger its fast retransmission */
+	public static final int DUP_THRESHOLD=3;
+
+	/** Maximum number of SACK blocks in an acknowledgment */
+	static final int MAX_SACK_BLOCKS=16;
+
+	/** DATA packet type */
+	static final int TYPE_DATA=1;
+
+	/** ACK packet type */
+	static final int TYPE_ACK=2;
+
+	/** FORWARD packet type */
+	static final int TYPE_FORWARD=3;
+
+	/** First fragment of a message */
+	static final int FLAG_FIRST=0x01;
+
+	/** Last fragment of a message */
+	static final int FLAG_LAST=0x02;
+
+	/** Fragment of an unordered stream */
+	static final int FLAG_UNORDERED=0x04;
+
+	/** Header length */
+	static final int HDR_LEN=14;
+
+	/** Random generator of stream epochs */
+	static final SecureRandom EPOCH_RANDOM=new SecureRandom();
+
+	/** SACK block length */
+	static final int SACK_BLOCK_LEN=12;
+
+
+	/** UDP provider */
+	UdpProvider udp;
+
+	/** Channel listener */
+	ReliableUdpChannelListener listener;
+
+	/** Sending window */
+	int window=DEFAULT_WINDOW;
+
+	/** Maximum fragment payload size */
+	int fragment_size=DEFAULT_FRAGMENT_SIZE;
+
+	/** Unordered streams */
+	HashSet<Integer> unordered_streams=new HashSet<>();
+
+	/** Remote peers, in access order */
+	LinkedHashMap<SocketAddress,Peer> peers=new LinkedHashMap<>(16,0.75f,true);
+
+
+
+	/** Creates a new channel.
+	 * @param socket the UDP socket
+	 * @param listener the channel listener */
+	public ReliableUdpChannel(DatagramSocket socket, ReliableUdpChannelListener listener) {
+		this.listener=listener;
+		udp=new UdpProvider(socket,this);
+	}
+
+
+	/** Gets the UDP provider.
+	 * @return the provider */
+	public UdpProvider getUdpProvider() {
+		return udp;
+	}
+
+
+	/** Sets the sending window.
+	 * @param window the maximum span of sequence numbers of unacknowledged fragments */
+	public synchronized void setWindow(int window) {
+		if (window<1 || window>MAX_RECEIVE_WINDOW) throw new IllegalArgumentException("Invalid window: "+window);
+		this.window=window;
+	}
+
+
+	/** Gets the sending window.
+	 * @return the window */
+	public synchronized int getWindow() {
+		return window;
+	}
+
+
+	/** Sets the maximum fragment payload size.
+	 * @param fragment_size the size in bytes */
+	public synchronized void setFragmentSize(int fragment_size) {
+		if (fragment_size<1 || fragment_size>UdpProvider.BUFFER_SIZE-HDR_LEN) throw new IllegalArgumentException("Invalid fragment size: "+fragment_size);
+		this.fragment_size=fragment_size;
+	}
+
+
+	/** Gets the maximum fragment payload size.
+	 * @return the size in bytes */
+	public synchronized int getFragmentSize() {
+		return fragment_size;
+	}
+
+
+	/** Sets whether messages sent on a given stream must be delivered in order.
+	 * @param stream the stream identifier
+	 * @param ordered whether the stream is ordered (default is <i>true</i>) */
+	public synchronized void setStreamOrdered(int stream, boolean ordered) {
+		if (ordered) unordered_streams.remove(stream);
+		else unordered_streams.add(stream);
+	}
+
+
+	/** Whether messages sent on a given stream are delivered in order.
+	 * @param stream the stream identifier
+	 * @return <i>true</i> if the stream is ordered */
+	public synchronized boolean isStreamOrdered(int stream) {
+		return !unordered_streams.contains(stream);
+	}
+
+
+	/** Sends a message.
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param stream the stream identifier (0-65535)
+	 * @param message the message
+	 * @throws IOException */
+	public void send(SocketAddress remote_soaddr, int stream, byte[] message) throws IOException {
+		send(remote_soaddr,stream,message,0,message.length);
+	}
+
+
+	/** Sends a message.
+	 * The message is queued, and sent as soon as the sending window allows it.
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param stream the stream identifier (0-65535)
+	 * @param buf the buffer containing the message
+	 * @param off the offset within the buffer
+	 * @param len the message length
+	 * @throws IOException */
+	public void send(SocketAddress remote_soaddr, int stream, byte[] buf, int off, int len) throws IOException {
+		if (stream<0 || stream>0xffff) throw new IllegalArgumentException("Invalid stream: "+stream);
+		Actions actions=new Actions();
+		synchronized (this) {
+			SendStream s=getPeer(remote_soaddr).getSendStream(stream);
+			int flags=unordered_streams.contains(stream)? FLAG_UNORDERED : 0;
+			int n=len==0? 1 : (len+fragment_size-1)/fragment_size;
+			for (int i=0; i<n; i++) {
+				int frag_off=i*fragment_size;
+				int frag_len=Math.min(fragment_size,len-frag_off);
+				int frag_flags=flags|(i==0? FLAG_FIRST : 0)|(i==n-1? FLAG_LAST : 0);
+				s.pending.add(new Fragment(stream,s.epoch,s.next_seq++,frag_flags,buf,off+frag_off,frag_len));
+			}
+			s.fill(actions);
+		}
+		actions.execute();
+	}
+
+
+	/** Discards all state (queued messages, received fragments, and timers) related to a remote peer.
+	 * @param remote_soaddr the socket address of the remote peer */
+	public void reset(SocketAddress remote_soaddr) {
+		Actions actions=new Actions();
+		synchronized (this) {
+			Peer peer=peers.remove(remote_soaddr);
+			if (peer!=null) for (SendStream s : peer.send_streams.values()) s.stopTimer(actions);
+		}
+		actions.execute();
+	}
+
+
+	/** Stops the channel. */
+	public void halt() {
+		udp.halt();
+		haltTimers();
+	}
+
+
+	/** Halts all retransmission timers. */
+	private void haltTimers() {
+		Actions actions=new Actions();
+		synchronized (this) {
+			for (Peer peer : peers.values()) {
+				for (SendStream s : peer.send_streams.values()) s.stopTimer(actions);
+			}
+		}
+		actions.execute();
+	}
+
+
+	/** Gets a peer, creating it if it does not exist. */
+	private Peer getPeer(SocketAddress remote_soaddr) {
+		Peer peer=peers.get(remote_soaddr);
+		if (peer==null) {
+			peer=new Peer(remote_soaddr);
+			peers.put(remote_soaddr,peer);
+		}
+		return peer;
+	}
+
+
+	/** Gets a receiving stream for a received packet, creating the peer and the stream if they do not exist and the limits allow it.
+	 * @return the stream, or <i>null</i> if it cannot be created */
+	private ReceiveStream getReceiveStream(SocketAddress remote_soaddr, int stream, int epoch) {
+		Peer peer=peers.get(remote_soaddr);
+		if (peer==null) {
+			if (peers.size()>=MAX_PEERS && !evictPeer()) return null;
+			// else
+			peer=new Peer(remote_soaddr);
+			peers.put(remote_soaddr,peer);
+		}
+		ReceiveStream s=peer.receive_streams.get(stream);
+		if (s==null) {
+			if (peer.receive_streams.size()>=MAX_RECEIVE_STREAMS) return null;
+			// else
+			s=new ReceiveStream(peer,stream,epoch);
+			peer.receive_streams.put(stream,s);
+		}
+		else
+		if (s.epoch!=epoch) {
+			// packets of the stream epoch before the last one are late duplicates
+			if (s.has_old_epoch && s.old_epoch==epoch) return null;
+			// else
+			// the sender has restarted or reset the stream
+			ReceiveStream new_s=new ReceiveStream(peer,stream,epoch);
+			new_s.old_epoch=s.epoch;
+			new_s.has_old_epoch=true;
+			peer.receive_streams.put(stream,new_s);
+			s=new_s;
+		}
+		return s;
+	}
+
+
+	/** Discards the least recently active peer that has no outgoing data.
+	 * @return <i>true</i> if a peer has been discarded */
+	private boolean evictPeer() {
+		for (Iterator<Peer> i=peers.values().iterator(); i.hasNext(); ) {
+			Peer peer=i.next();
+			if (peer.isIdle()) {
+				i.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	@Override
+	public void onReceivedPacket(UdpProvider udp, DatagramPacket packet) {
+		byte[] buf=packet.getData();
+		int off=packet.getOffset();
+		int len=packet.getLength();
+		if (len<HDR_LEN) return;
+		// else
+		int type=buf[off]&0xff;
+		int stream=Bytes.toInt16(buf,off+2);
+		int epoch=(int)Bytes.toInt32(buf,off+4);
+		long seq=Bytes.toInt(buf,off+8,6);
+		SocketAddress remote_soaddr=packet.getSocketAddress();
+		Actions actions=new Actions();
+		synchronized (this) {
+			if (type==TYPE_DATA) {
+				int flags=buf[off+1]&0xff;
+				ReceiveStream s=getReceiveStream(remote_soaddr,stream,epoch);
+				if (s==null) return;
+				// else
+				s.processData(new Fragment(stream,epoch,seq,flags,buf,off+HDR_LEN,len-HDR_LEN),actions);
+			}
+			else
+			if (type==TYPE_ACK) {
+				int n=buf[off+1]&0xff;
+				if (len<HDR_LEN+n*SACK_BLOCK_LEN) return;
+				// else
+				Peer peer=peers.get(remote_soaddr);
+				SendStream s=peer!=null? peer.send_streams.get(stream) : null;
+				// ACKs of another epoch refer to a previous stream
+				if (s==null || s.epoch!=epoch) return;
+				// else
+				long[] blocks=new long[2*n];
+				for (int i=0; i<2*n; i++) blocks[i]=Bytes.toInt(buf,off+HDR_LEN+6*i,6);
+				s.processAck(seq,blocks,actions);
+			}
+			else
+			if (type==TYPE_FORWARD) {
+				ReceiveStream s=getReceiveStream(remote_soaddr,stream,epoch);
+				if (s==null) return;
+				// else
+				s.processForward(seq,actions);
+			}
+		}
+		actions.execute();
+	}
+
+
+	@Override
+	public void onServiceTerminated(UdpProvider udp, Exception error) {
+		haltTimers();
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+'['+udp.getSocket().getLocalSocketAddress()+']';
+	}
+
+
+
+	/** Actions to be executed after releasing the channel lock.
+	  * Timers are halted, packets are sent, and listener events are fired outside the lock,
+	  * in order to avoid lock inversion with timer threads and listener code. */
+	class Actions {
+
+		/** Packets to be sent */
+		ArrayList<DatagramPacket> packets=new ArrayList<>();
+
+		/** Timers to be halted */
+		ArrayList<Timer> timers=new ArrayList<>();
+
+		/** Listener events */
+		ArrayList<Runnable> events=new ArrayList<>();
+
+		/** Executes all actions. */
+		void execute() {
+			for (Timer t : timers) t.halt();
+			for (DatagramPacket packet : packets) {
+				try { udp.send(packet); } catch (IOException e) { e.printStackTrace(); }
+			}
+			if (listener!=null) for (Runnable r : events) r.run();
+		}
+	}
+
+
+	/** Message fragment. */
+	static class Fragment {
+
+		/** Sequence number */
+		long seq;
+
+		/** Flags */
+		int flags;
+
+		/** Encoded DATA packet (header and payload) */
+		byte[] data;
+
+		/** Time of the last transmission, in nanoseconds */
+		long sent_time;
+
+		/** Number of retransmissions */
+		int retransmissions=0;
+
+		/** Number of acknowledgments that reported this fragment as missing */
+		int missing=0;
+
+		/** Creates a new fragment, copying the payload. */
+		Fragment(int stream, int epoch, long seq, int flags, byte[] buf, int off, int len) {
+			this.seq=seq;
+			this.flags=flags;
+			data=new byte[HDR_LEN+len];
+			data[0]=(byte)TYPE_DATA;
+			data[1]=(byte)flags;
+			Bytes.fromInt16(stream,data,2);
+			Bytes.fromInt32(epoch&0xffffffffL,data,4);
+			Bytes.fromInt48(seq,data,8);
+			Bytes.copy(buf,off,data,HDR_LEN,len);
+		}
+
+		/** Whether it is the first fragment of a message. */
+		boolean isFirst() {
+			return (flags&FLAG_FIRST)!=0;
+		}
+
+		/** Whether it is the last fragment of a message. */
+		boolean isLast() {
+			return (flags&FLAG_LAST)!=0;
+		}
+
+		/** Gets the payload length. */
+		int getPayloadLength() {
+			return data.length-HDR_LEN;
+		}
+	}
+
+
+	/** Remote peer. */
+	class Peer {
+
+		/** Remote socket address */
+		SocketAddress remote_soaddr;
+
+		/** Sending streams */
+		HashMap<Integer,SendStream> send_streams=new HashMap<>();
+
+		/** Receiving streams */
+		HashMap<Integer,ReceiveStream> receive_streams=new HashMap<>();
+
+		/** Creates a new peer. */
+		Peer(SocketAddress remote_soaddr) {
+			this.remote_soaddr=remote_soaddr;
+		}
+
+		/** Gets a sending stream, creating it if it does not exist. */
+		SendStream getSendStream(int stream) {
+			SendStream s=send_streams.get(stream);
+			if (s==null) {
+				s=new SendStream(this,stream);
+				send_streams.put(stream,s);
+			}
+			return s;
+		}
+
+		/** Whether there is no outgoing data waiting for acknowledgment. */
+		boolean isIdle() {
+			for (SendStream s : send_streams.values()) {
+				if (!s.unacked.isEmpty() || !s.pending.isEmpty() || s.forward_seq>=0) return false;
+			}
+			return true;
+		}
+	}
+
+
+	/** Sending side of a stream. */
+	class SendStream implements TimerListener {
+
+		/** Remote peer */
+		Peer peer;
+
+		/** Stream identifier */
+		int stream;
+
+		/** Random epoch of this stream */
+		int epoch=EPOCH_RANDOM.nextInt();
+
+		/** Next sequence number */
+		long next_seq=0;
+
+		/** Fragments waiting for the sending window */
+		ArrayDeque<Fragment> pending=new ArrayDeque<>();
+
+		/** Sent and not yet acknowledged fragments */
+		TreeMap<Long,Fragment> unacked=new TreeMap<>();
+
+		/** Smoothed round-trip time, in nanoseconds (-1 if not measured yet) */
+		long srtt=-1;
+
+		/** Round-trip time variation, in nanoseconds */
+		long rttvar=0;
+
+		/** Retransmission timeout, in milliseconds */
+		long rto=INITIAL_RTO;
+
+		/** Retransmission timer */
+		Timer timer=null;
+
+		/** First sequence number after abandoned fragments, not yet acknowledged by the receiver (-1 if none) */
+		long forward_seq=-1;
+
+		/** Number of retransmissions of the FORWARD packet */
+		int forward_retransmissions=0;
+
+		/** Creates a new sending stream. */
+		SendStream(Peer peer, int stream) {
+			this.peer=peer;
+			this.stream=stream;
+		}
+
+		/** Lowest sequence number not yet acknowledged. */
+		long getUnackedSeq() {
+			if (!unacked.isEmpty()) return unacked.firstKey();
+			if (!pending.isEmpty()) return pending.peek().seq;
+			return next_seq;
+		}
+
+		/** Sends pending fragments within the window. */
+		void fill(Actions actions) {
+			long limit=getUnackedSeq()+window;
+			long now=System.nanoTime();
+			while (!pending.isEmpty() && pending.peek().seq<limit) {
+				Fragment f=pending.poll();
+				f.sent_time=now;
+				unacked.put(f.seq,f);
+				actions.packets.add(new DatagramPacket(f.data,f.data.length,peer.remote_soaddr));
+			}
+			if ((!unacked.isEmpty() || forward_seq>=0) && timer==null) startTimer();
+		}
+
+		/** Gets a FORWARD packet. */
+		DatagramPacket getForward() {
+			byte[] data=new byte[HDR_LEN];
+			data[0]=(byte)TYPE_FORWARD;
+			Bytes.fromInt16(stream,data,2);
+			Bytes.fromInt32(epoch&0xffffffffL,data,4);
+			Bytes.fromInt48(forward_seq,data,8);
+			return new DatagramPacket(data,data.length,peer.remote_soaddr);
+		}
+
+		/** Processes an acknowledgment.
+		 * @param ack the cumulative acknowledgment (all fragments with lower sequence numbers have been received)
+		 * @param blocks SACK blocks, as pairs of first and last received sequence numbers */
+		void processAck(long ack, long[] blocks, Actions actions) {
+			long now=System.nanoTime();
+			boolean progress=false;
+			if (forward_seq>=0 && ack>=forward_seq) {
+				forward_seq=-1;
+				progress=true;
+			}
+			while (!unacked.isEmpty() && unacked.firstKey()<ack) {
+				onAcked(unacked.pollFirstEntry().getValue(),now);
+				progress=true;
+			}
+			long highest_sacked=-1;
+			for (int i=0; i+1<blocks.length; i+=2) {
+				if (blocks[i+1]<blocks[i]) continue;
+				for (Iterator<Fragment> it=unacked.subMap(blocks[i],true,blocks[i+1],true).values().iterator(); it.hasNext(); ) {
+					onAcked(it.next(),now);
+					it.remove();
+					progress=true;
+				}
+				highest_sacked=Math.max(highest_sacked,blocks[i+1]);
+			}
+			// fast retransmission of fragments reported as missing
+			for (Fragment f : unacked.headMap(highest_sacked).values()) {
+				if (++f.missing==DUP_THRESHOLD) {
+					f.retransmissions++;
+					f.sent_time=now;
+					actions.packets.add(new DatagramPacket(f.data,f.data.length,peer.remote_soaddr));
+				}
+			}
+			if (progress) {
+				stopTimer(actions);
+				fill(actions);
+			}
+		}
+
+		/** Updates the RTO when a fragment is acknowledged (RFC 6298, using only fragments that have not been retransmitted). */
+		private void onAcked(Fragment f, long now) {
+			if (f.retransmissions>0) return;
+			// else
+			long rtt=now-f.sent_time;
+			if (srtt<0) {
+				srtt=rtt;
+				rttvar=rtt/2;
+			}
+			else {
+				rttvar=(3*rttvar+Math.abs(srtt-rtt))/4;
+				srtt=(7*srtt+rtt)/8;
+			}
+			rto=Math.max(MIN_RTO,Math.min(MAX_RTO,(srtt+4*rttvar)/1000000));
+		}
+
+		/** Starts the retransmission timer. */
+		void startTimer() {
+			timer=new Timer(rto,this);
+			timer.start();
+		}
+
+		/** Stops the retransmission timer. */
+		void stopTimer(Actions actions) {
+			if (timer!=null) {
+				actions.timers.add(timer);
+				timer=null;
+			}
+		}
+
+		@Override
+		public void onTimeout(Timer t) {
+			Actions actions=new Actions();
+			synchronized (ReliableUdpChannel.this) {
+				if (t!=timer) return;
+				// else
+				timer=null;
+				if (unacked.isEmpty()) {
+					// only the FORWARD packet is waiting for acknowledgment
+					if (forward_seq>=0 && forward_retransmissions++<MAX_RETRANSMISSIONS) {
+						actions.packets.add(getForward());
+						rto=Math.min(rto*2,MAX_RTO);
+						startTimer();
+					}
+				}
+				else
+				if (unacked.firstEntry().getValue().retransmissions>=MAX_RETRANSMISSIONS) {
+					// abandon all queued fragments
+					unacked.clear();
+					pending.clear();
+					forward_seq=next_seq;
+					forward_retransmissions=0;
+					actions.packets.add(getForward());
+					startTimer();
+					final SocketAddress remote_soaddr=peer.remote_soaddr;
+					actions.events.add(()->listener.onDeliveryFailure(ReliableUdpChannel.this,remote_soaddr,stream));
+				}
+				else {
+					long now=System.nanoTime();
+					long timeout=rto*1000000;
+					for (Fragment f : unacked.values()) {
+						if (f==unacked.firstEntry().getValue() || now-f.sent_time>=timeout) {
+							f.retransmissions++;
+							f.missing=0;
+							f.sent_time=now;
+							actions.packets.add(new DatagramPacket(f.data,f.data.length,peer.remote_soaddr));
+						}
+					}
+					if (forward_seq>=0) actions.packets.add(getForward());
+					rto=Math.min(rto*2,MAX_RTO);
+					startTimer();
+				}
+			}
+			actions.execute();
+		}
+	}
+
+
+	/** Receiving side of a stream. */
+	class ReceiveStream {
+
+		/** Remote peer */
+		Peer peer;
+
+		/** Stream identifier */
+		int stream;
+
+		/** Epoch of the sending stream */
+		int epoch;
+
+		/** Epoch of the previous sending stream, whose late packets are ignored */
+		int old_epoch;
+
+		/** Whether there is a previous epoch */
+		boolean has_old_epoch=false;
+
+		/** Next expected sequence number; all fragments with lower sequence numbers have been received */
+		long rcv_next=0;
+
+		/** Sequence numbers of fragments received beyond <i>rcv_next</i> */
+		TreeSet<Long> received=new TreeSet<>();
+
+		/** Received and not yet delivered fragments */
+		TreeMap<Long,Fragment> buffer=new TreeMap<>();
+
+		/** Sequence number of the next message to be delivered (for ordered delivery) */
+		long deliver_next=0;
+
+		/** Creates a new receiving stream. */
+		ReceiveStream(Peer peer, int stream, int epoch) {
+			this.peer=peer;
+			this.stream=stream;
+			this.epoch=epoch;
+		}
+
+		/** Processes a DATA fragment. */
+		void processData(Fragment f, Actions actions) {
+			if (f.seq>=rcv_next+MAX_RECEIVE_WINDOW) return;
+			// else
+			if (f.seq>=rcv_next && received.add(f.seq)) {
+				while (received.remove(rcv_next)) rcv_next++;
+				buffer.put(f.seq,f);
+				if ((f.flags&FLAG_UNORDERED)!=0) deliverUnordered(f,actions);
+				else deliverOrdered(actions);
+			}
+			actions.packets.add(getAck());
+		}
+
+		/** Processes a FORWARD packet, skipping all fragments before a given sequence number. */
+		void processForward(long seq, Actions actions) {
+			if (seq>rcv_next) {
+				received.headSet(seq).clear();
+				buffer.headMap(seq).clear();
+				rcv_next=seq;
+				while (received.remove(rcv_next)) rcv_next++;
+			}
+			if (seq>deliver_next) {
+				deliver_next=seq;
+				deliverOrdered(actions);
+			}
+			actions.packets.add(getAck());
+		}
+
+		/** Delivers all complete messages starting from <i>deliver_next</i>. */
+		private void deliverOrdered(Actions actions) {
+			while (true) {
+				Fragment first=buffer.get(deliver_next);
+				if (first==null) return;
+				// else
+				long last=deliver_next;
+				Fragment f=first;
+				while (!f.isLast()) {
+					f=buffer.get(++last);
+					if (f==null) return;
+				}
+				deliver(deliver_next,last,actions);
+				deliver_next=last+1;
+			}
+		}
+
+		/** Delivers the message containing a given fragment, if complete. */
+		private void deliverUnordered(Fragment f, Actions actions) {
+			long first=f.seq;
+			for (Fragment g=f; !g.isFirst(); ) {
+				g=buffer.get(--first);
+				if (g==null) return;
+			}
+			long last=f.seq;
+			for (Fragment g=f; !g.isLast(); ) {
+				g=buffer.get(++last);
+				if (g==null) return;
+			}
+			deliver(first,last,actions);
+		}
+
+		/** Reassembles and delivers a message, removing its fragments from the buffer. */
+		private void deliver(long first, long last, Actions actions) {
+			int len=0;
+			for (long seq=first; seq<=last; seq++) len+=buffer.get(seq).getPayloadLength();
+			final byte[] message=new byte[len];
+			int off=0;
+			for (long seq=first; seq<=last; seq++) {
+				Fragment f=buffer.remove(seq);
+				Bytes.copy(f.data,HDR_LEN,message,off,f.getPayloadLength());
+				off+=f.getPayloadLength();
+			}
+			final SocketAddress remote_soaddr=peer.remote_soaddr;
+			actions.events.add(()->listener.onReceivedMessage(ReliableUdpChannel.this,remote_soaddr,stream,message));
+		}
+
+		/** Gets an ACK packet with the current cumulative acknowledgment and SACK blocks. */
+		private DatagramPacket getAck() {
+			ArrayList<Long> blocks=new ArrayList<>();
+			for (long seq : received) {
+				int n=blocks.size();
+				if (n>0 && blocks.get(n-1)==seq-1) blocks.set(n-1,seq);
+				else {
+					if (n/2==MAX_SACK_BLOCKS) break;
+					// else
+					blocks.add(seq);
+					blocks.add(seq);
+				}
+			}
+			byte[] data=new byte[HDR_LEN+blocks.size()*6];
+			data[0]=(byte)TYPE_ACK;
+			data[1]=(byte)(blocks.size()/2);
+			Bytes.fromInt16(stream,data,2);
+			Bytes.fromInt32(epoch&0xffffffffL,data,4);
+			Bytes.fromInt48(rcv_next,data,8);
+			for (int i=0; i<blocks.size(); i++) Bytes.fromInt48(blocks.get(i),data,HDR_LEN+6*i);
+			return new DatagramPacket(data,data.length,peer.remote_soaddr);
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.net.SocketAddress;
+
+
+/** Listener for ReliableUdpChannel events.
+  */
+public interface ReliableUdpChannelListener {
+
+	/** When a new message is received.
+	 * @param channel the channel
+	 * @param remote_soaddr the socket address of the sender
+	 * @param stream the stream identifier
+	 * @param message the message */
+	public void onReceivedMessage(ReliableUdpChannel channel, SocketAddress remote_soaddr, int stream, byte[] message);
+
+	/** When some messages cannot be delivered to a remote peer, since the maximum number of retransmissions has been reached.
+	 * All messages still queued for the given stream are discarded.
+	 * @param channel the channel
+	 * @param remote_soaddr the socket address of the remote peer
+	 * @param stream the stream identifier */
+	public void onDeliveryFailure(ReliableUdpChannel channel, SocketAddress remote_soaddr, int stream);
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+
+
+/** Key manager that delegates to a replaceable X.509 key manager.
+  * <p>
+  * The delegate can be atomically replaced at any time through {@link #setKeyManager(X509KeyManager)};
+  * handshakes started afterwards use the new keys, while established sessions are not affected.
+  * <p>
+  * Each delegate is a new generation of the key manager. Aliases returned by this key manager are tagged
+  * with the generation of the delegate that has chosen them (i.e. <i>alias</i>#<i>generation</i>), and the
+  * certificate chain and the private key of a tagged alias are taken from that generation.
+  * This way the certificate and the key used by a handshake always come from the same delegate,
+  * even if the delegate is replaced in between. The last {@link #MAX_GENERATIONS} generations are kept.
+  * <p>
+  * The current generation is taken through {@link #getGeneration()}, that can be overridden in order to take
+  * it from elsewhere, e.g. from a holder shared with a trust manager, so that both are replaced together.
+  */
+public class ReloadableKeyManager extends X509ExtendedKeyManager {
+
+	/** Maximum number of generations whose aliases can be resolved */
+	public static int MAX_GENERATIONS=8;
+
+	/** Separator between an alias and its generation */
+	static final char GENERATION_SEPARATOR='#';
+
+
+	/** Current generation */
+	volatile Generation generation;
+
+	/** Number of the last generation created through {@link #setKeyManager(X509KeyManager)} */
+	long last_number=0;
+
+	/** Generations of the returned aliases, by generation number */
+	LinkedHashMap<Long,Generation> generations=new LinkedHashMap<Long,Generation>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long,Generation> eldest) {
+			return size()>MAX_GENERATIONS;
+		}
+	};
+
+
+
+	/** Creates a new key manager.
+	 * @param key_manager the initial key manager */
+	public ReloadableKeyManager(X509KeyManager key_manager) {
+		generation=new Generation(++last_number,key_manager);
+	}
+
+
+	/** Creates a new key manager.
+	 * @param key_managers key managers, from which the first X.509 key manager is taken */
+	public ReloadableKeyManager(KeyManager[] key_managers) {
+		this(getX509KeyManager(key_managers));
+	}
+
+
+	/** Replaces the key manager.
+	 * @param key_manager the new key manager */
+	public void setKeyManager(X509KeyManager key_manager) {
+		synchronized (generations) {
+			generation=new Generation(++last_number,key_manager);
+		}
+	}
+
+
+	/** Replaces the key manager.
+	 * @param key_managers key managers, from which the first X.509 key manager is taken */
+	public void setKeyManagers(KeyManager[] key_managers) {
+		setKeyManager(getX509KeyManager(key_managers));
+	}
+
+
+	/** Gets the first X.509 key manager of an array.
+	 * @param key_managers the key managers
+	 * @return the X.509 key manager */
+	static X509KeyManager getX509KeyManager(KeyManager[] key_managers) {
+		for (KeyManager km : key_managers) {
+			if (km instanceof X509KeyManager) return (X509KeyManager)km;
+		}
+		throw new IllegalArgumentException("No X.509 key manager found");
+	}
+
+
+	/** Gets the current key manager.
+	 * @return the key manager */
+	public X509KeyManager getKeyManager() {
+		return getGeneration().key_manager;
+	}
+
+
+	/** Gets the current generation.
+	 * Generation numbers must grow each time the key manager is replaced.
+	 * @return the generation */
+	public Generation getGeneration() {
+		return generation;
+	}
+
+
+	/** Tags an alias with a generation, and keeps the generation for resolving the alias later.
+	 * @param alias the alias chosen by the key manager of the generation, or <i>null</i>
+	 * @param g the generation
+	 * @return the tagged alias, or <i>null</i> */
+	private String tag(String alias, Generation g) {
+		if (alias==null) return null;
+		// else
+		synchronized (generations) {
+			generations.put(g.number,g);
+		}
+		return alias+GENERATION_SEPARATOR+g.number;
+	}
+
+
+	/** Tags some aliases with a generation.
+	 * @param aliases the aliases of the key manager of the generation, or <i>null</i>
+	 * @param g the generation
+	 * @return the tagged aliases, or <i>null</i> */
+	private String[] tag(String[] aliases, Generation g) {
+		if (aliases==null) return null;
+		// else
+		String[] tagged=new String[aliases.length];
+		for (int i=0; i<aliases.length; i++) tagged[i]=tag(aliases[i],g);
+		return tagged;
+	}
+
+
+	/** Gets the generation of a tagged alias.
+	 * @param alias the alias
+	 * @return the generation, the current generation if the alias is not tagged,
+	 * or <i>null</i> if the generation is no longer kept */
+	private Generation getGeneration(String alias) {
+		int index=alias!=null? alias.lastIndexOf(GENERATION_SEPARATOR) : -1;
+		if (index<0) return getGeneration();
+		// else
+		long number;
+		try {
+			number=Long.parseLong(alias.substring(index+1));
+		}
+		catch (NumberFormatException e) {
+			return getGeneration();
+		}
+		Generation g=getGeneration();
+		if (g.number==number) return g;
+		// else
+		synchronized (generations) {
+			return generations.get(number);
+		}
+	}
+
+
+	/** Removes the generation tag from an alias.
+	 * @param alias the alias
+	 * @return the alias of the key manager of the generation */
+	private static String untag(String alias) {
+		int index=alias!=null? alias.lastIndexOf(GENERATION_SEPARATOR) : -1;
+		return index<0? alias : alias.substring(0,index);
+	}
+
+
+	@Override
+	public String[] getClientAliases(String key_type, Principal[] issuers) {
+		Generation g=getGeneration();
+		return tag(g.key_manager.getClientAliases(key_type,issuers),g);
+	}
+
+
+	@Override
+	public String chooseClientAlias(String[] key_types, Principal[] issuers, Socket socket) {
+		Generation g=getGeneration();
+		return tag(g.key_manager.chooseClientAlias(key_types,issuers,socket),g);
+	}
+
+
+	@Override
+	public String[] getServerAliases(String key_type, Principal[] issuers) {
+		Generation g=getGeneration();
+		return tag(g.key_manager.getServerAliases(key_type,issuers),g);
+	}
+
+
+	@Override
+	public String chooseServerAlias(String key_type, Principal[] issuers, Socket socket) {
+		Generation g=getGeneration();
+		return tag(g.key_manager.chooseServerAlias(key_type,issuers,socket),g);
+	}
+
+
+	@Override
+	public X509Certificate[] getCertificateChain(String alias) {
+		Generation g=getGeneration(alias);
+		if (g==null) return null;
+		// else
+		return g.key_manager.getCertificateChain(untag(alias));
+	}
+
+
+	@Override
+	public PrivateKey getPrivateKey(String alias) {
+		Generation g=getGeneration(alias);
+		if (g==null) return null;
+		// else
+		return g.key_manager.getPrivateKey(untag(alias));
+	}
+
+
+	@Override
+	public String chooseEngineClientAlias(String[] key_types, Principal[] issuers, SSLEngine engine) {
+		Generation g=getGeneration();
+		X509KeyManager km=g.key_manager;
+		if (km instanceof X509ExtendedKeyManager) return tag(((X509ExtendedKeyManager)km).chooseEngineClientAlias(key_types,issuers,engine),g);
+		// else
+		return tag(km.chooseClientAlias(key_types,issuers,null),g);
+	}
+
+
+	@Override
+	public String chooseEngineServerAlias(String key_type, Principal[] issuers, SSLEngine engine) {
+		Generation g=getGeneration();
+		X509KeyManager km=g.key_manager;
+		if (km instanceof X509ExtendedKeyManager) return tag(((X509ExtendedKeyManager)km).chooseEngineServerAlias(key_type,issuers,engine),g);
+		// else
+		return tag(km.chooseServerAlias(key_type,issuers,null),g);
+	}
+
+
+
+	/** Key manager with its generation number. */
+	public static class Generation {
+
+		/** Generation number */
+		final long number;
+
+		/** Key manager */
+		final X509KeyManager key_manager;
+
+		/** Creates a new generation.
+		 * @param number the generation number
+		 * @param key_manager the key manager */
+		public Generation(long number, X509KeyManager key_manager) {
+			this.number=number;
+			this.key_manager=key_manager;
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509KeyManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
+import org.zoolu.util.log.DefaultLogger;
+import org.zoolu.util.log.LoggerLevel;
+
+
+/** TLS context that reloads keys and trusted certificates when the corresponding files change.
+  * <p>
+  * Key and trust managers returned by this context are a {@link ReloadableKeyManager} and a {@link ReloadableTrustManager},
+  * that delegate to the managers of the current {@link TlsContextSnapshot}.
+  * The key, certificate, and trusted certificate files are periodically checked,
+  * and when some of them is modified a new snapshot is loaded and both managers are atomically swapped:
+  * the snapshot and its managers are kept in a single immutable {@link State}, replaced through one volatile write,
+  * so that the key manager and the trust manager of different snapshots are never seen together.
+  * Key aliases are tagged with the number of the reload, so that the certificate chain and the private key
+  * of a handshake are always taken from the same snapshot (see {@link ReloadableKeyManager}).
+  * <p>
+  * SSL contexts, socket factories, server factories, and selectors created from this context
+  * do not need to be created again: new handshakes use the new keys and certificates,
+  * while established connections and accepting sockets are not affected.
+  * <p>
+  * If the new files cannot be loaded (e.g. they are being written),
+  * the current keys and certificates are kept and loading is tried again at the next check.
+  */
+public class ReloadableTlsContext extends TlsContext {
+
+	/** Default interval between two file checks, in milliseconds */
+	public static long DEFAULT_CHECK_INTERVAL=5000;
+
+
+	/** Current snapshot and managers */
+	volatile State state;
+
+	/** Key manager */
+	ReloadableKeyManager key_manager;
+
+	/** Trust manager */
+	ReloadableTrustManager trust_manager;
+
+	/** Interval between two file checks, in milliseconds */
+	long check_interval;
+
+	/** Check timer */
+	Timer check_timer=null;
+
+	/** Number of reloads */
+	int reload_count=0;
+
+
+
+	/** Creates a new context, checking the files every {@link #DEFAULT_CHECK_INTERVAL} milliseconds.
+	 * @param key_file private key file (base64 format), or <i>null</i>
+	 * @param cert_file certificate file, or <i>null</i>
+	 * @param trust_folders folders of trusted certificates, or <i>null</i>
+	 * @param trust_all whether all certificates should be considered trusted
+	 * @throws java.lang.Exception */
+	public ReloadableTlsContext(String key_file, String cert_file, String[] trust_folders, boolean trust_all) throws java.lang.Exception {
+		this(key_file,cert_file,trust_folders,trust_all,DEFAULT_CHECK_INTERVAL);
+	}
+
+
+	/** Creates a new context.
+	 * @param key_file private key file (base64 format), or <i>null</i>
+	 * @param cert_file certificate file, or <i>null</i>
+	 * @param trust_folders folders of trusted certificates, or <i>null</i>
+	 * @param trust_all whether all certificates should be considered trusted
+	 * @param check_interval interval between two file checks, in milliseconds (0 means that files are checked only through {@link #reload()})
+	 * @throws java.lang.Exception */
+	public ReloadableTlsContext(String key_file, String cert_file, String[] trust_folders, boolean trust_all, long check_interval) throws java.lang.Exception {
+		state=new State(TlsContextSnapshot.getInstance(key_file,cert_file,trust_folders,trust_all),0);
+		key_manager=new ReloadableKeyManager(state.key_generation.key_manager) {
+			@Override
+			public Generation getGeneration() {
+				return state.key_generation;
+			}
+			@Override
+			public void setKeyManager(X509KeyManager key_manager) {
+				throw new UnsupportedOperationException("Keys of a reloadable TLS context are loaded from files");
+			}
+			@Override
+			public void setKeyManagers(KeyManager[] key_managers) {
+				throw new UnsupportedOperationException("Keys of a reloadable TLS context are loaded from files");
+			}
+		};
+		trust_manager=new ReloadableTrustManager(state.trust_manager) {
+			@Override
+			public X509TrustManager getTrustManager() {
+				return state.trust_manager;
+			}
+			@Override
+			public void setTrustManager(X509TrustManager trust_manager) {
+				throw new UnsupportedOperationException("Trusted certificates of a reloadable TLS context are loaded from files");
+			}
+			@Override
+			public void setTrustManagers(TrustManager[] trust_managers) {
+				throw new UnsupportedOperationException("Trusted certificates of a reloadable TLS context are loaded from files");
+			}
+		};
+		this.check_interval=check_interval;
+		if (check_interval>0) startChecking();
+	}
+
+
+	/** Gets the current snapshot.
+	 * @return the snapshot of the currently used keys and certificates */
+	public TlsContextSnapshot getSnapshot() {
+		return state.snapshot;
+	}
+
+
+	/** Gets the number of times keys and certificates have been reloaded.
+	 * @return the number of reloads */
+	public synchronized int getReloadCount() {
+		return reload_count;
+	}
+
+
+	/** Checks the files and reloads keys and certificates if some of them has been modified.
+	 * @return <i>true</i> if keys and certificates have been reloaded
+	 * @throws java.lang.Exception if the modified files cannot be loaded; in this case the current keys and certificates are kept */
+	public synchronized boolean reload() throws java.lang.Exception {
+		if (!state.snapshot.isModified()) return false;
+		// else
+		TlsContextSnapshot new_snapshot=state.snapshot.reload();
+		state=new State(new_snapshot,reload_count+1);
+		reload_count++;
+		DefaultLogger.log(LoggerLevel.INFO,ReloadableTlsContext.class,"reloaded: "+new_snapshot);
+		return true;
+	}
+
+
+	/** Starts checking the files. */
+	private synchronized void startChecking() {
+		check_timer=new Timer(check_interval,new TimerListener() {
+			public void onTimeout(Timer t) {
+				synchronized (ReloadableTlsContext.this) {
+					if (t!=check_timer) return;
+					// else
+					try {
+						reload();
+					}
+					catch (Exception e) {
+						DefaultLogger.log(LoggerLevel.WARNING,ReloadableTlsContext.class,"reload failed, keeping current keys and certificates: "+e);
+					}
+					check_timer=new Timer(check_interval,this);
+					check_timer.start(true);
+				}
+			}
+		});
+		check_timer.start(true);
+	}
+
+
+	/** Stops checking the files.
+	 * Keys and certificates currently in use are kept. */
+	public synchronized void halt() {
+		if (check_timer!=null) {
+			check_timer.halt();
+			check_timer=null;
+		}
+	}
+
+
+	@Override
+	public KeyStore getKeyStore() {
+		return state.snapshot.getKeyStore();
+	}
+
+
+	@Override
+	public boolean isTrustAll() {
+		return state.snapshot.isTrustAll();
+	}
+
+
+	@Override
+	public KeyManager[] getKeyManagers() {
+		return new KeyManager[] { key_manager };
+	}
+
+
+	@Override
+	public TrustManager[] getTrustManagers() {
+		return new TrustManager[] { trust_manager };
+	}
+
+
+	@Override
+	public void setKeyCert(Key key, Certificate cert) {
+		throw new UnsupportedOperationException("Keys of a reloadable TLS context are loaded from files");
+	}
+
+
+	@Override
+	public void addTrustCert(Certificate cert) {
+		throw new UnsupportedOperationException("Trusted certificates of a reloadable TLS context are loaded from files");
+	}
+
+
+	@Override
+	public void setTrustAll(boolean trust_all) {
+		throw new UnsupportedOperationException("Trust mode of a reloadable TLS context cannot be changed");
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[snapshot="+state.snapshot+",check_interval="+check_interval+",reloads="+getReloadCount()+"]";
+	}
+
+
+
+	/** Snapshot with its key and trust managers, replaced all together. */
+	static class State {
+
+		/** Snapshot */
+		final TlsContextSnapshot snapshot;
+
+		/** Key manager of the snapshot, with the number of the reload as generation */
+		final ReloadableKeyManager.Generation key_generation;
+
+		/** Trust manager of the snapshot */
+		final X509TrustManager trust_manager;
+
+		/** Creates a new state.
+		 * @param snapshot the snapshot
+		 * @param reloads the number of reloads that have produced the snapshot */
+		State(TlsContextSnapshot snapshot, int reloads) throws java.security.GeneralSecurityException {
+			this.snapshot=snapshot;
+			key_generation=new ReloadableKeyManager.Generation(reloads,ReloadableKeyManager.getX509KeyManager(snapshot.getKeyManagers()));
+			trust_manager=ReloadableTrustManager.getX509TrustManager(snapshot.getTrustManagers());
+		}
+	}
+
+}
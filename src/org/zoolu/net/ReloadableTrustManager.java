@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+
+/** Trust manager that delegates to a replaceable X.509 trust manager.
+  * <p>
+  * The delegate can be atomically replaced at any time through {@link #setTrustManager(X509TrustManager)};
+  * handshakes started afterwards use the new trusted certificates, while established sessions are not affected.
+  * <p>
+  * All methods take the delegate through {@link #getTrustManager()}, that can be overridden in order to take
+  * the delegate from elsewhere, e.g. from a holder shared with a key manager, so that both are replaced together.
+  */
+public class ReloadableTrustManager extends X509ExtendedTrustManager {
+
+	/** Current trust manager */
+	volatile X509TrustManager trust_manager;
+
+
+
+	/** Creates a new trust manager.
+	 * @param trust_manager the initial trust manager */
+	public ReloadableTrustManager(X509TrustManager trust_manager) {
+		this.trust_manager=trust_manager;
+	}
+
+
+	/** Creates a new trust manager.
+	 * @param trust_managers trust managers, from which the first X.509 trust manager is taken */
+	public ReloadableTrustManager(TrustManager[] trust_managers) {
+		setTrustManagers(trust_managers);
+	}
+
+
+	/** Replaces the trust manager.
+	 * @param trust_manager the new trust manager */
+	public void setTrustManager(X509TrustManager trust_manager) {
+		this.trust_manager=trust_manager;
+	}
+
+
+	/** Replaces the trust manager.
+	 * @param trust_managers trust managers, from which the first X.509 trust manager is taken */
+	public void setTrustManagers(TrustManager[] trust_managers) {
+		trust_manager=getX509TrustManager(trust_managers);
+	}
+
+
+	/** Gets the first X.509 trust manager of an array.
+	 * @param trust_managers the trust managers
+	 * @return the X.509 trust manager */
+	static X509TrustManager getX509TrustManager(TrustManager[] trust_managers) {
+		for (TrustManager tm : trust_managers) {
+			if (tm instanceof X509TrustManager) return (X509TrustManager)tm;
+		}
+		throw new IllegalArgumentException("No X.509 trust manager found");
+	}
+
+
+	/** Gets the current trust manager.
+	 * @return the trust manager */
+	public X509TrustManager getTrustManager() {
+		return trust_manager;
+	}
+
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String auth_type) throws CertificateException {
+		getTrustManager().checkClientTrusted(chain,auth_type);
+	}
+
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String auth_type) throws CertificateException {
+		getTrustManager().checkServerTrusted(chain,auth_type);
+	}
+
+
+	@Override
+	public X509Certificate[] getAcceptedIssuers() {
+		return getTrustManager().getAcceptedIssuers();
+	}
+
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String auth_type, Socket socket) throws CertificateException {
+		X509TrustManager tm=getTrustManager();
+		if (tm instanceof X509ExtendedTrustManager) ((X509ExtendedTrustManager)tm).checkClientTrusted(chain,auth_type,socket);
+		else tm.checkClientTrusted(chain,auth_type);
+	}
+
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String auth_type, Socket socket) throws CertificateException {
+		X509TrustManager tm=getTrustManager();
+		if (tm instanceof X509ExtendedTrustManager) ((X509ExtendedTrustManager)tm).checkServerTrusted(chain,auth_type,socket);
+		else tm.checkServerTrusted(chain,auth_type);
+	}
+
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String auth_type, SSLEngine engine) throws CertificateException {
+		X509TrustManager tm=getTrustManager();
+		if (tm instanceof X509ExtendedTrustManager) ((X509ExtendedTrustManager)tm).checkClientTrusted(chain,auth_type,engine);
+		else tm.checkClientTrusted(chain,auth_type);
+	}
+
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String auth_type, SSLEngine engine) throws CertificateException {
+		X509TrustManager tm=getTrustManager();
+		if (tm instanceof X509ExtendedTrustManager) ((X509ExtendedTrustManager)tm).checkServerTrusted(chain,auth_type,engine);
+		else tm.checkServerTrusted(chain,auth_type);
+	}
+
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.zoolu.util.Flags;
+
+
+/** Benchmark of TLS handshakes and bulk transfer over the loopback interface.
+  * <p>
+  * A server key and a self-signed certificate are generated through {@link TlsKeyTool}.
+  * Then, for each combination of protocol version and cipher suite, <i>N</i> client threads
+  * connect to a {@link TlsServerFactory} server bound to 127.0.0.1 through a {@link TlsSocketFactory}, and the following values are reported:
+  * <ul>
+  * <li>full handshakes per second (client sessions are invalidated after each connection);</li>
+  * <li>resumed handshakes per second, together with the ratio of actually resumed sessions, as counted by a {@link TlsSessionCache};</li>
+  * <li>process CPU time per connection for full and resumed handshakes, including both client and server sides;</li>
+  * <li>bulk throughput in MB/s, with one connection per client thread.</li>
+  * </ul>
+  * <p>
+  * Usage: <code>java org.zoolu.net.TlsBenchmark [options]</code> (option '-h' for help).
+  */
+public class TlsBenchmark {
+
+	/** Result of a single run. */
+	public static class Result {
+
+		/** Protocol version */
+		public String protocol;
+
+		/** Cipher suite */
+		public String cipher_suite;
+
+		/** Full handshakes per second */
+		public double full_rate;
+
+		/** Resumed handshakes per second */
+		public double resumed_rate;
+
+		/** Ratio of actually resumed sessions during the resumed handshake test */
+		public double hit_ratio;
+
+		/** Process CPU time per full handshake, in microseconds (-1 if not available) */
+		public double full_cpu;
+
+		/** Process CPU time per resumed handshake, in microseconds (-1 if not available) */
+		public double resumed_cpu;
+
+		/** Bulk throughput, in MB/s */
+		public double throughput;
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			return String.format("%-8s %-45s %10.0f %10.0f %6.0f%% %10s %10s %10.1f",protocol,cipher_suite,full_rate,resumed_rate,hit_ratio*100,formatCpu(full_cpu),formatCpu(resumed_cpu),throughput);
+		}
+
+		/** Gets the header line for {@link #toString()}.
+		 * @return the header */
+		public static String getHeader() {
+			return String.format("%-8s %-45s %10s %10s %7s %10s %10s %10s","protocol","cipher suite","full[hs/s]","res[hs/s]","hits","full[us]","res[us]","bulk[MB/s]");
+		}
+
+		/** Formats a CPU time. */
+		private static String formatCpu(double cpu) {
+			return cpu>=0? String.format("%.0f",cpu) : "n/a";
+		}
+	}
+
+
+	/** Default TLS 1.3 cipher suites */
+	public static String[] TLS13_CIPHER_SUITES={ "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256" };
+
+	/** Default TLS 1.2 cipher suites, where 'KEYALG' is replaced by the signature algorithm of the server key */
+	public static String[] TLS12_CIPHER_SUITES={ "TLS_ECDHE_KEYALG_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_KEYALG_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_KEYALG_WITH_CHACHA20_POLY1305_SHA256" };
+
+
+	/** Server TLS context */
+	TlsContext server_context;
+
+	/** Client TLS context */
+	TlsContext client_context;
+
+	/** Number of client threads */
+	int clients;
+
+	/** Duration of each test, in milliseconds */
+	long duration;
+
+	/** Size of the data chunks written in the bulk test */
+	int chunk_size;
+
+
+	/** Creates a new benchmark.
+	 * @param key_file server private key file
+	 * @param cert_file server certificate file, also used by clients as trusted certificate
+	 * @param clients number of client threads
+	 * @param duration duration of each test, in milliseconds
+	 * @param chunk_size size of the data chunks written in the bulk test
+	 * @throws Exception */
+	public TlsBenchmark(String key_file, String cert_file, int clients, long duration, int chunk_size) throws Exception {
+		server_context=new TlsContext();
+		server_context.setKeyCert(key_file,cert_file);
+		client_context=new TlsContext();
+		client_context.addTrustCert(cert_file);
+		this.clients=clients;
+		this.duration=duration;
+		this.chunk_size=chunk_size;
+	}
+
+
+	/** Runs all tests for a given protocol version and cipher suite.
+	 * @param protocol the protocol version
+	 * @param cipher_suite the cipher suite
+	 * @return the result
+	 * @throws Exception */
+	public Result run(String protocol, String cipher_suite) throws Exception {
+		String[] protocols=new String[]{ protocol };
+		String[] cipher_suites=new String[]{ cipher_suite };
+		TlsServerFactory server_factory=new TlsServerFactory(server_context);
+		server_factory.setEnabledProtocols(protocols);
+		server_factory.setEnabledCipherSuites(cipher_suites);
+		SSLServerSocket server_socket=server_factory.createTlsServer(0,InetAddress.getLoopbackAddress());
+		Thread server=startServer(server_socket);
+		try {
+			Result result=new Result();
+			result.protocol=protocol;
+			result.cipher_suite=cipher_suite;
+			int port=server_socket.getLocalPort();
+			// full handshakes
+			TlsSocketFactory client_factory=createClientFactory(protocols,cipher_suites);
+			long cpu_start=getProcessCpuTime();
+			long start_time=System.nanoTime();
+			long count=runHandshakes(client_factory,port,false);
+			double secs=(System.nanoTime()-start_time)/1e9;
+			long cpu_end=getProcessCpuTime();
+			result.full_rate=count/secs;
+			result.full_cpu=cpu_start>=0 && count>0? (cpu_end-cpu_start)/1000.0/count : -1;
+			// resumed handshakes
+			client_factory=createClientFactory(protocols,cipher_suites);
+			connect(client_factory,port);
+			TlsSessionCache session_cache=client_factory.getSessionCache();
+			session_cache.reset();
+			cpu_start=getProcessCpuTime();
+			start_time=System.nanoTime();
+			count=runHandshakes(client_factory,port,true);
+			secs=(System.nanoTime()-start_time)/1e9;
+			cpu_end=getProcessCpuTime();
+			result.resumed_rate=count/secs;
+			result.resumed_cpu=cpu_start>=0 && count>0? (cpu_end-cpu_start)/1000.0/count : -1;
+			result.hit_ratio=session_cache.getHitRatio();
+			// bulk transfer
+			result.throughput=runBulk(client_factory,port)/1e6;
+			return result;
+		}
+		finally {
+			server_socket.close();
+			server.join();
+		}
+	}
+
+
+	/** Creates a new client factory, with its own session cache. */
+	private TlsSocketFactory createClientFactory(String[] protocols, String[] cipher_suites) throws Exception {
+		TlsSocketFactory client_factory=new TlsSocketFactory(client_context);
+		client_factory.setEnabledProtocols(protocols);
+		client_factory.setEnabledCipherSuites(cipher_suites);
+		client_factory.setSessionCache(new TlsSessionCache());
+		return client_factory;
+	}
+
+
+	/** Starts a server thread, that accepts connections and serves each of them in a new thread.
+	 * Each connection completes the handshake, sends one byte, and then reads and discards all data until the connection is closed. */
+	private static Thread startServer(final SSLServerSocket server_socket) {
+		Thread server=new Thread(()->{
+			while (!server_socket.isClosed()) {
+				final SSLSocket socket;
+				try {
+					socket=(SSLSocket)server_socket.accept();
+				}
+				catch (IOException e) {
+					break;
+				}
+				Thread handler=new Thread(()->{
+					try {
+						socket.setTcpNoDelay(true);
+						socket.startHandshake();
+						OutputStream os=socket.getOutputStream();
+						os.write(0);
+						os.flush();
+						InputStream is=socket.getInputStream();
+						byte[] buf=new byte[65536];
+						while (is.read(buf)>=0);
+					}
+					catch (IOException e) {}
+					finally {
+						try { socket.close(); } catch (IOException e) {}
+					}
+				});
+				handler.setDaemon(true);
+				handler.start();
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+		return server;
+	}
+
+
+	/** Opens a new connection and waits for the server to complete the handshake.
+	 * The session of previous connections to the same server is resumed, if still cached.
+	 * @param client_factory the client factory
+	 * @param port the server port
+	 * @return the connected socket */
+	private static SSLSocket connect(TlsSocketFactory client_factory, int port) throws IOException {
+		SSLSocket socket=client_factory.createTlsSocket("127.0.0.1",port);
+		socket.setTcpNoDelay(true);
+		socket.startHandshake();
+		if (socket.getInputStream().read()<0) throw new IOException("Connection closed by the server");
+		// else
+		return socket;
+	}
+
+
+	/** Runs the handshake test.
+	 * @param resume whether sessions are resumed; otherwise each session is invalidated after the handshake
+	 * @return the number of completed handshakes */
+	private long runHandshakes(final TlsSocketFactory client_factory, final int port, final boolean resume) throws InterruptedException {
+		final LongAdder count=new LongAdder();
+		final long end_time=System.nanoTime()+duration*1000000L;
+		runClients(()->{
+			try {
+				while (System.nanoTime()<end_time) {
+					SSLSocket socket=connect(client_factory,port);
+					if (!resume) socket.getSession().invalidate();
+					socket.close();
+					count.increment();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		return count.sum();
+	}
+
+
+	/** Runs the bulk transfer test.
+	 * @return the throughput, in bytes per second */
+	private double runBulk(final TlsSocketFactory client_factory, final int port) throws InterruptedException {
+		final LongAdder bytes=new LongAdder();
+		final long[] times=new long[2];
+		times[0]=System.nanoTime();
+		final long end_time=times[0]+duration*1000000L;
+		runClients(()->{
+			try {
+				SSLSocket socket=connect(client_factory,port);
+				OutputStream os=socket.getOutputStream();
+				byte[] data=new byte[chunk_size];
+				while (System.nanoTime()<end_time) {
+					os.write(data);
+					bytes.add(data.length);
+				}
+				socket.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		times[1]=System.nanoTime();
+		return bytes.sum()/((times[1]-times[0])/1e9);
+	}
+
+
+	/** Runs a task in all client threads, and waits for them to terminate. */
+	private void runClients(Runnable task) throws InterruptedException {
+		Thread[] threads=new Thread[clients];
+		for (int i=0; i<clients; i++) {
+			threads[i]=new Thread(task);
+			threads[i].start();
+		}
+		for (Thread t : threads) t.join();
+	}
+
+
+	/** Gets the CPU time used by this process, if supported by the JVM.
+	 * @return the CPU time in nanoseconds, or -1 */
+	static long getProcessCpuTime() {
+		OperatingSystemMXBean os=ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		// else
+		return -1;
+	}
+
+
+	/** Whether a cipher suite can be used with a given protocol version. */
+	private static boolean isCompatible(String protocol, String cipher_suite) {
+		boolean tls13_suite=!cipher_suite.contains("_WITH_");
+		return protocol.equals("TLSv1.3")? tls13_suite : !tls13_suite;
+	}
+
+
+	/** Main method. */
+	public static void main(String[] args) throws Exception {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this message");
+		int clients=flags.getInteger("-n",1,"<num>","number of client threads (default 1)");
+		long duration=flags.getLong("-t",2000,"<millisecs>","duration of each test (default 2000)");
+		long warmup=flags.getLong("-w",1000,"<millisecs>","duration of each test of the warm-up run, whose results are discarded (default 1000)");
+		int chunk_size=flags.getInteger("-s",16384,"<bytes>","size of the data chunks in the bulk test (default 16384)");
+		String key_alg=flags.getString("-k","EC","<alg>","server key algorithm, EC or RSA (default EC)");
+		String protocols=flags.getString("-p","TLSv1.3,TLSv1.2","<list>","comma-separated list of protocol versions (default TLSv1.3,TLSv1.2)");
+		String cipher_suites=flags.getString("-c",null,"<list>","comma-separated list of cipher suites (default AES-GCM and ChaCha20-Poly1305 suites)");
+		if (help) {
+			System.out.println(flags.toUsageString(TlsBenchmark.class));
+			return;
+		}
+		// else
+		key_alg=key_alg.toUpperCase();
+		File key_file=File.createTempFile("tlsbenchmark",".key");
+		File cert_file=File.createTempFile("tlsbenchmark",".crt");
+		TlsBenchmark benchmark;
+		try {
+			TlsKeyTool.generateKeyCert(key_alg,key_alg.equals("RSA")? 2048 : 256,"CN=localhost",1,key_file.getPath(),cert_file.getPath());
+			benchmark=new TlsBenchmark(key_file.getPath(),cert_file.getPath(),clients,duration,chunk_size);
+		}
+		finally {
+			key_file.delete();
+			cert_file.delete();
+		}
+		ArrayList<String> suites=new ArrayList<>();
+		if (cipher_suites!=null) {
+			for (String suite : cipher_suites.split(",")) suites.add(suite.trim());
+		}
+		else {
+			for (String suite : TLS13_CIPHER_SUITES) suites.add(suite);
+			String sign_alg=key_alg.equals("EC")? "ECDSA" : key_alg;
+			for (String suite : TLS12_CIPHER_SUITES) suites.add(suite.replace("KEYALG",sign_alg));
+		}
+		System.out.println("clients="+clients+", duration="+duration+"ms, chunk="+chunk_size+"B, key="+key_alg);
+		if (warmup>0) {
+			benchmark.duration=warmup;
+			for (String protocol : protocols.split(",")) {
+				protocol=protocol.trim();
+				for (String suite : suites) {
+					if (isCompatible(protocol,suite)) try { benchmark.run(protocol,suite); } catch (Exception e) {}
+				}
+			}
+			benchmark.duration=duration;
+		}
+		System.out.println(Result.getHeader());
+		for (String protocol : protocols.split(",")) {
+			protocol=protocol.trim();
+			for (String suite : suites) {
+				if (!isCompatible(protocol,suite)) continue;
+				// else
+				try {
+					System.out.println(benchmark.run(protocol,suite));
+				}
+				catch (Exception e) {
+					System.out.println(String.format("%-8s %-45s failed: %s",protocol,suite,e));
+				}
+			}
+		}
+	}
+
+}
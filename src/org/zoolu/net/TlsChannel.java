@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import org.zoolu.util.Bytes;
+
+
+/** Non-blocking TLS connection, based on {@link javax.net.ssl.SSLEngine} over a {@link java.nio.channels.SocketChannel}.
+  * <p>
+  * TLS channels are created by a {@link TlsSelector}, through the methods
+  * {@link TlsSelector#connect(SocketAddress, TlsChannelListener)} and
+  * {@link TlsSelector#listen(int, TlsSelector.AcceptListener)}, and are handled
+  * by the selector thread.
+  * <p>
+  * Network and application buffers are taken from the selector pools only when needed
+  * and returned as soon as they are empty, so that idle connections do not hold any buffer.
+  */
+public class TlsChannel {
+
+	/** Empty buffer */
+	static final ByteBuffer EMPTY_BUFFER=ByteBuffer.allocate(0);
+
+
+	/** TLS selector */
+	TlsSelector selector;
+
+	/** Socket channel */
+	SocketChannel socket;
+
+	/** SSL engine */
+	SSLEngine engine;
+
+	/** Channel listener */
+	TlsChannelListener listener;
+
+	/** Selection key */
+	SelectionKey key=null;
+
+	/** Received network data not yet unwrapped (in write mode), or <i>null</i> */
+	ByteBuffer net_in=null;
+
+	/** Network data not yet written to the socket (in write mode), or <i>null</i> */
+	ByteBuffer net_out=null;
+
+	/** Application data not yet wrapped */
+	ArrayDeque<ByteBuffer> app_out=new ArrayDeque<>();
+
+	/** Creation time, in milliseconds */
+	long start_time=System.currentTimeMillis();
+
+	/** Whether the handshake has been completed */
+	boolean connected=false;
+
+	/** Whether closing has been requested */
+	boolean closing=false;
+
+	/** Whether the channel is closed */
+	volatile boolean closed=false;
+
+
+
+	/** Creates a new channel. */
+	TlsChannel(TlsSelector selector, SocketChannel socket, SSLEngine engine, TlsChannelListener listener) {
+		this.selector=selector;
+		this.socket=socket;
+		this.engine=engine;
+		this.listener=listener;
+	}
+
+
+	/** Sets the channel listener.
+	 * @param listener the listener */
+	public void setListener(TlsChannelListener listener) {
+		this.listener=listener;
+	}
+
+
+	/** Gets the TLS selector.
+	 * @return the selector handling this channel */
+	public TlsSelector getSelector() {
+		return selector;
+	}
+
+
+	/** Gets the remote socket address.
+	 * @return the address, or <i>null</i> if not available */
+	public SocketAddress getRemoteAddress() {
+		try { return socket.getRemoteAddress(); } catch (IOException e) { return null; }
+	}
+
+
+	/** Gets the local socket address.
+	 * @return the address, or <i>null</i> if not available */
+	public SocketAddress getLocalAddress() {
+		try { return socket.getLocalAddress(); } catch (IOException e) { return null; }
+	}
+
+
+	/** Gets the TLS session.
+	 * @return the session */
+	public SSLSession getSession() {
+		return engine.getSession();
+	}
+
+
+	/** Whether the handshake has been completed.
+	 * @return <i>true</i> if connected */
+	public boolean isConnected() {
+		return connected && !closed;
+	}
+
+
+	/** Whether the channel is closed.
+	 * @return <i>true</i> if closed */
+	public boolean isClosed() {
+		return closed;
+	}
+
+
+	/** Sends application data.
+	 * Data is copied and sent by the selector thread, without blocking the caller.
+	 * Data sent before the handshake is completed is queued.
+	 * @param data the data */
+	public void send(byte[] data) {
+		send(data,0,data.length);
+	}
+
+
+	/** Sends application data.
+	 * Data is copied and sent by the selector thread, without blocking the caller.
+	 * Data sent before the handshake is completed is queued.
+	 * @param buf the buffer containing the data
+	 * @param off the offset within the buffer
+	 * @param len the data length */
+	public void send(byte[] buf, int off, int len) {
+		final ByteBuffer data=ByteBuffer.wrap(Bytes.copy(buf,off,len));
+		selector.execute(()->{
+			if (closing || closed) return;
+			// else
+			app_out.add(data);
+			process(false);
+		});
+	}
+
+
+	/** Closes the channel, sending a TLS close_notify alert. */
+	public void close() {
+		selector.execute(()->{
+			if (closing || closed) return;
+			// else
+			closing=true;
+			engine.closeOutbound();
+			process(false);
+		});
+	}
+
+
+	/** Processes I/O events, running the TLS state machine.
+	 * It is called by the selector thread.
+	 * @param readable whether the socket is readable */
+	void process(boolean readable) {
+		if (closed || !socket.isConnected()) return;
+		// else
+		try {
+			if (readable && !read()) return;
+			// else
+			boolean progress=true;
+			while (progress && !closed) {
+				progress=false;
+				switch (engine.getHandshakeStatus()) {
+					case NEED_TASK : {
+						Runnable task;
+						while ((task=engine.getDelegatedTask())!=null) task.run();
+						progress=true;
+						break;
+					}
+					case NEED_WRAP : {
+						progress=wrap(EMPTY_BUFFER);
+						break;
+					}
+					case NEED_UNWRAP :
+					case NEED_UNWRAP_AGAIN : {
+						progress=unwrap();
+						break;
+					}
+					default : {
+						if (!connected && !closing) {
+							connected=true;
+							TlsSessionCache session_cache=selector.session_cache;
+							if (session_cache!=null) session_cache.onHandshakeCompleted(engine.getSession(),start_time);
+							if (listener!=null) listener.onConnected(this);
+						}
+						while (connected && !app_out.isEmpty() && !engine.isOutboundDone()) {
+							ByteBuffer data=app_out.peek();
+							if (!wrap(data)) break;
+							// else
+							if (!data.hasRemaining()) app_out.poll();
+							progress=true;
+						}
+						if (closing && !engine.isOutboundDone()) progress|=wrap(EMPTY_BUFFER);
+						progress|=unwrap();
+					}
+				}
+			}
+			flush();
+			if (closing && engine.isOutboundDone() && net_out==null) terminate(null);
+			else updateInterest();
+		}
+		catch (Exception e) {
+			terminate(e);
+		}
+	}
+
+
+	/** Reads data from the socket.
+	 * @return <i>false</i> if the channel has been closed */
+	private boolean read() throws IOException {
+		if (net_in==null) net_in=selector.net_buffers.get();
+		int len=socket.read(net_in);
+		if (len<0) {
+			// end of stream
+			try { engine.closeInbound(); }
+			catch (SSLException e) {
+				// the peer closed the connection without sending close_notify
+				terminate(null);
+				return false;
+			}
+			closing=true;
+			engine.closeOutbound();
+		}
+		return true;
+	}
+
+
+	/** Wraps application data into the network buffer.
+	 * @return whether some data has been consumed or produced */
+	private boolean wrap(ByteBuffer src) throws IOException {
+		if (net_out==null) net_out=selector.net_buffers.get();
+		SSLEngineResult result=engine.wrap(src,net_out);
+		if (result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			// the network buffer is full: try to flush it
+			flush();
+			if (net_out==null) net_out=selector.net_buffers.get();
+			result=engine.wrap(src,net_out);
+		}
+		if (net_out.position()==0) {
+			selector.net_buffers.release(net_out);
+			net_out=null;
+		}
+		return result.bytesConsumed()>0 || result.bytesProduced()>0;
+	}
+
+
+	/** Unwraps received network data, passing application data to the listener.
+	 * @return whether some data has been consumed or produced */
+	private boolean unwrap() throws IOException {
+		if (net_in==null || net_in.position()==0) return false;
+		// else
+		ByteBuffer app_in=selector.app_buffers.get();
+		net_in.flip();
+		SSLEngineResult result;
+		try {
+			result=engine.unwrap(net_in,app_in);
+		}
+		finally {
+			net_in.compact();
+			if (net_in.position()==0) {
+				selector.net_buffers.release(net_in);
+				net_in=null;
+			}
+		}
+		if (app_in.position()>0 && listener!=null) listener.onReceivedData(this,app_in.array(),app_in.arrayOffset(),app_in.position());
+		selector.app_buffers.release(app_in);
+		if (result.getStatus()==SSLEngineResult.Status.CLOSED && !engine.isOutboundDone()) {
+			closing=true;
+			engine.closeOutbound();
+		}
+		return result.bytesConsumed()>0 || result.bytesProduced()>0;
+	}
+
+
+	/** Writes pending network data to the socket. */
+	private void flush() throws IOException {
+		if (net_out==null) return;
+		// else
+		net_out.flip();
+		socket.write(net_out);
+		net_out.compact();
+		if (net_out.position()==0) {
+			selector.net_buffers.release(net_out);
+			net_out=null;
+		}
+	}
+
+
+	/** Updates the interest set of the selection key. */
+	private void updateInterest() {
+		if (key!=null && key.isValid()) key.interestOps(SelectionKey.OP_READ|(net_out!=null? SelectionKey.OP_WRITE : 0));
+	}
+
+
+	/** Closes the socket and releases all buffers.
+	 * @param error the exception that caused the termination, or <i>null</i> */
+	void terminate(Exception error) {
+		if (closed) return;
+		// else
+		closed=true;
+		if (key!=null) key.cancel();
+		try { socket.close(); } catch (IOException e) {}
+		selector.net_buffers.release(net_in);
+		selector.net_buffers.release(net_out);
+		net_in=null;
+		net_out=null;
+		app_out.clear();
+		selector.onChannelClosed(this);
+		if (listener!=null) listener.onClosed(this,error);
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+'['+getLocalAddress()+"->"+getRemoteAddress()+']';
+	}
+
+}
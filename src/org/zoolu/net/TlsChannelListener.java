@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+
+/** Listener for TlsChannel events.
+  * <p>
+  * All methods are called by the selector thread of the {@link TlsSelector}, and should not block.
+  */
+public interface TlsChannelListener {
+
+	/** When the TLS handshake has been completed.
+	 * @param channel the TLS channel */
+	public void onConnected(TlsChannel channel);
+
+	/** When new application data is received.
+	 * The buffer is reused after this method returns, so data must be copied if needed later.
+	 * @param channel the TLS channel
+	 * @param buf the buffer containing the data
+	 * @param off the offset within the buffer
+	 * @param len the data length */
+	public void onReceivedData(TlsChannel channel, byte[] buf, int off, int len);
+
+	/** When the channel is closed.
+	 * @param channel the TLS channel
+	 * @param error the exception that caused the channel to be closed, or <i>null</i> */
+	public void onClosed(TlsChannel channel, Exception error);
+}
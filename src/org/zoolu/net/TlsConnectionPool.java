@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSocket;
+
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
+
+
+/** Pool of TLS client connections, keyed by remote host and port.
+  * <p>
+  * Connections are obtained through {@link #acquire(String, int)}, that returns a future completed with
+  * an idle connection to the given peer, if available, or with a new connection created through
+  * a {@link TlsSocketFactory} as soon as the TLS handshake is completed.
+  * At most <i>max_per_host</i> connections (leased, idle, or being connected) are kept for each peer;
+  * further requests are queued and served as soon as a connection is released.
+  * <p>
+  * A connection has to be returned through {@link #release(SSLSocket)} when it can be reused
+  * (that is, when the request/response exchange has been completed),
+  * or through {@link #invalidate(SSLSocket)} when it is not usable anymore.
+  * <p>
+  * Idle connections are closed after <i>idle_timeout</i> milliseconds.
+  * Connections that have been idle for more than {@link #VALIDATE_AFTER_IDLE} milliseconds are checked
+  * before being leased: a connection is discarded if it has been closed by the peer or has unexpected pending data.
+  */
+public class TlsConnectionPool {
+
+	/** Default maximum number of connections per peer */
+	public static int DEFAULT_MAX_PER_HOST=8;
+
+	/** Default idle timeout, in milliseconds */
+	public static long DEFAULT_IDLE_TIMEOUT=60000;
+
+	/** Idle time after which a connection is checked before being leased, in milliseconds */
+	public static long VALIDATE_AFTER_IDLE=2000;
+
+	/** Time spent waiting for data when checking a connection, in milliseconds */
+	public static int VALIDATION_TIMEOUT=1;
+
+
+	/** Socket factory */
+	TlsSocketFactory socket_factory;
+
+	/** Maximum number of connections per peer */
+	int max_per_host;
+
+	/** Idle timeout, in milliseconds */
+	long idle_timeout;
+
+	/** Executor for connection setup */
+	ExecutorService executor;
+
+	/** Peer pools, by host and port */
+	HashMap<String,HostPool> pools=new HashMap<>();
+
+	/** Leased connections, with their peer pools */
+	HashMap<SSLSocket,HostPool> leased=new HashMap<>();
+
+	/** Eviction timer */
+	Timer eviction_timer=null;
+
+	/** Whether the pool has been closed */
+	boolean closed=false;
+
+	/** Number of created connections */
+	LongAdder created=new LongAdder();
+
+	/** Number of reused connections */
+	LongAdder reused=new LongAdder();
+
+	/** Number of connections closed for idle timeout or failed check */
+	LongAdder evicted=new LongAdder();
+
+
+
+	/** Creates a new pool, with default limits.
+	 * @param socket_factory the factory used to create new connections */
+	public TlsConnectionPool(TlsSocketFactory socket_factory) {
+		this(socket_factory,DEFAULT_MAX_PER_HOST,DEFAULT_IDLE_TIMEOUT);
+	}
+
+
+	/** Creates a new pool.
+	 * @param socket_factory the factory used to create new connections
+	 * @param max_per_host maximum number of connections per peer
+	 * @param idle_timeout time after which idle connections are closed, in milliseconds */
+	public TlsConnectionPool(TlsSocketFactory socket_factory, int max_per_host, long idle_timeout) {
+		if (max_per_host<=0 || idle_timeout<=0) throw new IllegalArgumentException("Invalid maximum connections or idle timeout: "+max_per_host+", "+idle_timeout);
+		this.socket_factory=socket_factory;
+		this.max_per_host=max_per_host;
+		this.idle_timeout=idle_timeout;
+		executor=Executors.newCachedThreadPool(task->{
+			Thread thread=new Thread(task,"TlsConnectionPool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		startEvictionTimer();
+	}
+
+
+	/** Gets a connection to a given peer.
+	 * The returned future can be cancelled, or completed with a timeout through {@link CompletableFuture#orTimeout(long, java.util.concurrent.TimeUnit)},
+	 * if the caller does not want to wait anymore.
+	 * @param host remote host
+	 * @param port remote port
+	 * @return a future that is completed with a connected socket, or exceptionally if the connection fails */
+	public CompletableFuture<SSLSocket> acquire(String host, int port) {
+		CompletableFuture<SSLSocket> future=new CompletableFuture<>();
+		HostPool pool;
+		synchronized (this) {
+			if (closed) {
+				future.completeExceptionally(new IOException("Connection pool closed"));
+				return future;
+			}
+			// else
+			pool=pools.computeIfAbsent(host+':'+port,key->new HostPool(host,port));
+			pool.waiters.add(future);
+		}
+		dispatch(pool);
+		return future;
+	}
+
+
+	/** Returns a leased connection to the pool, so that it can be reused.
+	 * @param socket the connection */
+	public void release(SSLSocket socket) {
+		HostPool pool;
+		boolean close=false;
+		synchronized (this) {
+			pool=leased.remove(socket);
+			if (pool==null) throw new IllegalArgumentException("Connection not leased by this pool: "+socket);
+			// else
+			if (closed || socket.isClosed()) {
+				pool.count--;
+				close=true;
+			}
+			else pool.idle.addFirst(new IdleConnection(socket,true));
+		}
+		if (close) closeSocket(socket);
+		dispatch(pool);
+	}
+
+
+	/** Closes a leased connection that cannot be reused.
+	 * @param socket the connection */
+	public void invalidate(SSLSocket socket) {
+		HostPool pool;
+		synchronized (this) {
+			pool=leased.remove(socket);
+			if (pool==null) throw new IllegalArgumentException("Connection not leased by this pool: "+socket);
+			// else
+			pool.count--;
+		}
+		closeSocket(socket);
+		dispatch(pool);
+	}
+
+
+	/** Serves the pending requests of a peer pool, leasing idle connections or creating new ones. */
+	private void dispatch(HostPool pool) {
+		while (true) {
+			CompletableFuture<SSLSocket> waiter=null;
+			IdleConnection conn=null;
+			int connects=0;
+			synchronized (this) {
+				while (!pool.waiters.isEmpty() && pool.waiters.peek().isDone()) pool.waiters.poll();
+				if (pool.waiters.isEmpty()) return;
+				// else
+				if (!pool.idle.isEmpty()) {
+					waiter=pool.waiters.poll();
+					conn=pool.idle.pollFirst();
+					leased.put(conn.socket,pool);
+				}
+				else {
+					while (pool.connecting<pool.waiters.size() && pool.count<max_per_host) {
+						pool.connecting++;
+						pool.count++;
+						connects++;
+					}
+				}
+			}
+			for (int i=0; i<connects; i++) connect(pool);
+			if (conn==null) return;
+			// else
+			if (System.currentTimeMillis()-conn.idle_time>=VALIDATE_AFTER_IDLE && !isUsable(conn.socket)) {
+				evicted.increment();
+				synchronized (this) {
+					leased.remove(conn.socket);
+					pool.count--;
+					pool.waiters.addFirst(waiter);
+				}
+				closeSocket(conn.socket);
+				continue;
+			}
+			// else
+			if (conn.used) reused.increment();
+			if (!waiter.complete(conn.socket)) {
+				// the request has been cancelled in the meantime
+				release(conn.socket);
+				return;
+			}
+		}
+	}
+
+
+	/** Creates a new connection to a peer, and adds it to the idle connections. */
+	private void connect(final HostPool pool) {
+		executor.execute(()->{
+			SSLSocket socket=null;
+			try {
+				socket=socket_factory.createTlsSocket(pool.host,pool.port);
+				socket.startHandshake();
+				created.increment();
+			}
+			catch (IOException|RuntimeException e) {
+				if (socket!=null) closeSocket(socket);
+				CompletableFuture<SSLSocket> waiter;
+				synchronized (this) {
+					pool.connecting--;
+					pool.count--;
+					while ((waiter=pool.waiters.poll())!=null && waiter.isDone());
+				}
+				if (waiter!=null) waiter.completeExceptionally(e);
+				// the freed slot can serve the remaining requests
+				dispatch(pool);
+				return;
+			}
+			boolean close=false;
+			synchronized (this) {
+				pool.connecting--;
+				if (closed) {
+					pool.count--;
+					close=true;
+				}
+				else pool.idle.addFirst(new IdleConnection(socket,false));
+			}
+			if (close) closeSocket(socket);
+			else dispatch(pool);
+		});
+	}
+
+
+	/** Whether an idle connection can be still used.
+	 * @param socket the connection
+	 * @return <i>false</i> if the connection has been closed by the peer or has unexpected pending data */
+	private static boolean isUsable(SSLSocket socket) {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+		// else
+		try {
+			InputStream is=socket.getInputStream();
+			if (is.available()>0) return false;
+			// else
+			int timeout=socket.getSoTimeout();
+			socket.setSoTimeout(VALIDATION_TIMEOUT);
+			try {
+				is.read();
+				// either end of stream or unexpected data
+				return false;
+			}
+			catch (SocketTimeoutException e) {
+				return true;
+			}
+			finally {
+				socket.setSoTimeout(timeout);
+			}
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	/** Starts the eviction timer. */
+	private synchronized void startEvictionTimer() {
+		eviction_timer=new Timer(Math.max(idle_timeout/2,1),new TimerListener() {
+			public void onTimeout(Timer t) {
+				synchronized (TlsConnectionPool.this) {
+					if (t!=eviction_timer) return;
+					// else
+					eviction_timer=new Timer(Math.max(idle_timeout/2,1),this);
+					eviction_timer.start(true);
+				}
+				evictIdleConnections();
+			}
+		});
+		eviction_timer.start(true);
+	}
+
+
+	/** Closes connections that have been idle for more than the idle timeout. */
+	private void evictIdleConnections() {
+		ArrayList<SSLSocket> expired=new ArrayList<>();
+		long now=System.currentTimeMillis();
+		synchronized (this) {
+			for (Iterator<HostPool> i=pools.values().iterator(); i.hasNext(); ) {
+				HostPool pool=i.next();
+				while (!pool.idle.isEmpty() && now-pool.idle.peekLast().idle_time>=idle_timeout) {
+					expired.add(pool.idle.pollLast().socket);
+					pool.count--;
+				}
+				if (pool.count==0 && pool.waiters.isEmpty()) i.remove();
+			}
+		}
+		evicted.add(expired.size());
+		for (SSLSocket socket : expired) closeSocket(socket);
+	}
+
+
+	/** Closes the pool.
+	 * Idle connections are closed, pending requests fail, and leased connections are closed when released. */
+	public void close() {
+		ArrayList<SSLSocket> sockets=new ArrayList<>();
+		ArrayList<CompletableFuture<SSLSocket>> waiters=new ArrayList<>();
+		synchronized (this) {
+			if (closed) return;
+			// else
+			closed=true;
+			if (eviction_timer!=null) {
+				eviction_timer.halt();
+				eviction_timer=null;
+			}
+			for (HostPool pool : pools.values()) {
+				for (IdleConnection conn : pool.idle) sockets.add(conn.socket);
+				pool.count-=pool.idle.size();
+				pool.idle.clear();
+				waiters.addAll(pool.waiters);
+				pool.waiters.clear();
+			}
+		}
+		executor.shutdown();
+		for (SSLSocket socket : sockets) closeSocket(socket);
+		for (CompletableFuture<SSLSocket> waiter : waiters) waiter.completeExceptionally(new IOException("Connection pool closed"));
+	}
+
+
+	/** Closes a socket. */
+	private static void closeSocket(SSLSocket socket) {
+		try { socket.close(); } catch (IOException e) {}
+	}
+
+
+	/** Gets the number of idle connections.
+	 * @return the number of connections */
+	public synchronized int getIdleCount() {
+		int count=0;
+		for (HostPool pool : pools.values()) count+=pool.idle.size();
+		return count;
+	}
+
+
+	/** Gets the number of leased connections.
+	 * @return the number of connections */
+	public synchronized int getLeasedCount() {
+		return leased.size();
+	}
+
+
+	/** Gets the number of connections created so far.
+	 * @return the number of connections */
+	public long getCreatedCount() {
+		return created.sum();
+	}
+
+
+	/** Gets the number of times an idle connection has been reused.
+	 * @return the number of reuses */
+	public long getReusedCount() {
+		return reused.sum();
+	}
+
+
+	/** Gets the number of connections closed by the pool for idle timeout or failed check.
+	 * @return the number of connections */
+	public long getEvictedCount() {
+		return evicted.sum();
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[leased="+getLeasedCount()+",idle="+getIdleCount()+",created="+getCreatedCount()+",reused="+getReusedCount()+",evicted="+getEvictedCount()+"]";
+	}
+
+
+
+	/** Connections to a given peer. */
+	static class HostPool {
+
+		/** Remote host */
+		String host;
+
+		/** Remote port */
+		int port;
+
+		/** Idle connections, the most recently used first */
+		ArrayDeque<IdleConnection> idle=new ArrayDeque<>();
+
+		/** Pending requests */
+		ArrayDeque<CompletableFuture<SSLSocket>> waiters=new ArrayDeque<>();
+
+		/** Number of connections (leased, idle, or being connected) */
+		int count=0;
+
+		/** Number of connections being connected */
+		int connecting=0;
+
+		/** Creates a new peer pool. */
+		HostPool(String host, int port) {
+			this.host=host;
+			this.port=port;
+		}
+	}
+
+
+	/** Idle connection. */
+	static class IdleConnection {
+
+		/** The socket */
+		SSLSocket socket;
+
+		/** Whether the connection has been already leased */
+		boolean used;
+
+		/** Time the connection became idle, in milliseconds */
+		long idle_time=System.currentTimeMillis();
+
+		/** Creates a new idle connection. */
+		IdleConnection(SSLSocket socket, boolean used) {
+			this.socket=socket;
+			this.used=used;
+		}
+	}
+
+}
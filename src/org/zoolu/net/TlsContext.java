@@ -26,13 +26,31 @@ package org.zoolu.net;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
-
-import org.zoolu.util.LoggerLevel;
-import org.zoolu.util.SystemUtils;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.zoolu.util.log.DefaultLogger;
+import org.zoolu.util.log.LoggerLevel;
 
 
 /** TLS security context.
@@ -41,7 +59,7 @@ public class TlsContext {
 	
 	/** Prints out a message. */
 	private static void log(String str) {
-		SystemUtils.getDefaultLogger().log(LoggerLevel.DEBUG,TlsContext.class,str);
+		DefaultLogger.log(LoggerLevel.DEBUG,TlsContext.class,str);
 	}
 	
 	public static boolean VERBOSE=false;
@@ -53,6 +71,17 @@ public class TlsContext {
 	/** Default password */
 	public static final char[] DEFAULT_PASSWORD=("TLS_CONTEXT_PASSWD").toCharArray();
 
+	/** Certificates already loaded from files, by canonical file name */
+	static final ConcurrentHashMap<String,CachedCertificate> CERT_CACHE=new ConcurrentHashMap<>();
+
+	/** Executor for loading certificate files in parallel, with daemon threads that terminate when idle.
+	  * A dedicated executor is used, since file reads would block the threads of the common ForkJoinPool. */
+	static final ExecutorService CERT_LOADER=Executors.newCachedThreadPool(task->{
+		Thread thread=new Thread(task,"TlsContext-loader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	/** KeyStore */
 	KeyStore ks;
 
@@ -98,7 +127,7 @@ public class TlsContext {
 	public void setKeyCert(String key_file, String cert_file) throws java.security.cert.CertificateException, java.io.FileNotFoundException, java.security.KeyStoreException, java.lang.Exception {
 		Key key=TlsKeyTool.importPrivateKeyBASE64(key_file);
 		if (VERBOSE) log("key loaded: "+key_file);
-		Certificate cert=CertificateFactory.getInstance("x509").generateCertificate(new FileInputStream(cert_file));
+		Certificate cert=loadCertificate(new File(cert_file));
 		if (VERBOSE) log("key cert loaded: "+cert_file);
 		setKeyCert(key,cert);
 	}
@@ -123,7 +152,7 @@ public class TlsContext {
 	 * @throws java.io.FileNotFoundException
 	 * @throws java.security.KeyStoreException */
 	public void addTrustCert(String cert_file) throws java.security.cert.CertificateException, java.io.FileNotFoundException, java.security.KeyStoreException {
-		Certificate cert=CertificateFactory.getInstance("x509").generateCertificate(new FileInputStream(cert_file));
+		Certificate cert=loadCertificate(new File(cert_file));
 		if (VERBOSE) log("trusted cert loaded: "+cert_file);
 		addTrustCert(cert);
 	}
@@ -140,25 +169,17 @@ public class TlsContext {
 
 
 	/** Adds all trusted certificates from the specified folder.
+	 * Certificate files are loaded in parallel, and files already loaded and not modified since are not parsed again.
 	 * @param cert_folder folder name
 	 * @throws java.security.cert.CertificateException
 	 * @throws java.io.FileNotFoundException
 	 * @throws java.security.KeyStoreException */
 	public void addTrustFolder(String cert_folder) throws java.security.cert.CertificateException, java.io.FileNotFoundException, java.security.KeyStoreException {
-		File[] file_list=(new File(cert_folder)).listFiles();
-		for (int i=0; i<file_list.length; i++) {
-			File file=file_list[i];
-			String file_name=file.getName();
-			if (file_name.length()>4) {
-				String extension=file_name.substring(file_name.length()-4);
-				for (int k=0; k<CERT_EXTENSIONS.length; k++)
-				if (extension.equalsIgnoreCase(CERT_EXTENSIONS[k])) {
-					Certificate cert=CertificateFactory.getInstance("x509").generateCertificate(new FileInputStream(file));
-					if (VERBOSE) log("trusted cert loaded: "+cert_folder+"/"+file_name);
-					addTrustCert(cert);
-					break;
-				}
-			}
+		File[] cert_files=getCertFiles(new File(cert_folder));
+		Certificate[] certs=loadCertificates(cert_files);
+		for (int i=0; i<certs.length; i++) {
+			if (VERBOSE) log("trusted cert loaded: "+cert_files[i]);
+			addTrustCert(certs[i]);
 		}
 	}
 
@@ -185,5 +206,159 @@ public class TlsContext {
 		return ks;
 	}
 
-		
+
+	/** Gets the key managers for the keys of this context.
+	 * @return the key managers
+	 * @throws java.security.KeyStoreException
+	 * @throws java.security.NoSuchAlgorithmException
+	 * @throws java.security.UnrecoverableKeyException */
+	public KeyManager[] getKeyManagers() throws java.security.KeyStoreException, java.security.NoSuchAlgorithmException, java.security.UnrecoverableKeyException {
+		KeyManagerFactory key_manager_factory=KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		key_manager_factory.init(ks,passwd);
+		return key_manager_factory.getKeyManagers();
+	}
+
+
+	/** Gets the trust managers for the trusted certificates of this context.
+	 * In trust-all mode, a trust manager that accepts any certificate is returned.
+	 * @return the trust managers
+	 * @throws java.security.KeyStoreException
+	 * @throws java.security.NoSuchAlgorithmException */
+	public TrustManager[] getTrustManagers() throws java.security.KeyStoreException, java.security.NoSuchAlgorithmException {
+		if (trust_all_certificates) {
+			X509TrustManager trust_all=new X509TrustManager() {
+				public X509Certificate[] getAcceptedIssuers() {  return new X509Certificate[0];  }
+				public void checkClientTrusted(X509Certificate[] certs, String auth_type) {}
+				public void checkServerTrusted(X509Certificate[] certs, String auth_type) {}
+			};
+			return new TrustManager[] { trust_all };
+		}
+		// else
+		TrustManagerFactory trust_manager_factory=TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust_manager_factory.init(ks);
+		return trust_manager_factory.getTrustManagers();
+	}
+
+
+	/** Gets all certificate files within a folder.
+	 * @param cert_folder the folder
+	 * @return the files with one of the {@link #CERT_EXTENSIONS}, sorted by name
+	 * @throws java.io.FileNotFoundException */
+	static File[] getCertFiles(File cert_folder) throws java.io.FileNotFoundException {
+		File[] file_list=cert_folder.listFiles();
+		if (file_list==null) throw new FileNotFoundException("Folder not found: "+cert_folder);
+		// else
+		ArrayList<File> cert_files=new ArrayList<>();
+		for (File file : file_list) {
+			String file_name=file.getName();
+			if (file_name.length()>4 && file.isFile()) {
+				String extension=file_name.substring(file_name.length()-4);
+				for (int k=0; k<CERT_EXTENSIONS.length; k++)
+				if (extension.equalsIgnoreCase(CERT_EXTENSIONS[k])) {
+					cert_files.add(file);
+					break;
+				}
+			}
+		}
+		File[] files=cert_files.toArray(new File[0]);
+		Arrays.sort(files);
+		return files;
+	}
+
+
+	/** Loads a certificate from a file.
+	 * Certificates are cached, and the file is parsed again only if its modification time or size has changed.
+	 * @param cert_file the file
+	 * @return the certificate
+	 * @throws java.security.cert.CertificateException
+	 * @throws java.io.FileNotFoundException */
+	static Certificate loadCertificate(File cert_file) throws java.security.cert.CertificateException, java.io.FileNotFoundException {
+		String path;
+		try { path=cert_file.getCanonicalPath(); } catch (IOException e) { path=cert_file.getAbsolutePath(); }
+		long modified=cert_file.lastModified();
+		long length=cert_file.length();
+		CachedCertificate cached=CERT_CACHE.get(path);
+		if (cached!=null && cached.modified==modified && cached.length==length) return cached.cert;
+		// else
+		Certificate cert;
+		try (InputStream is=new FileInputStream(cert_file)) {
+			cert=CertificateFactory.getInstance("x509").generateCertificate(is);
+		}
+		catch (FileNotFoundException e) {
+			throw e;
+		}
+		catch (IOException e) {
+			throw new java.security.cert.CertificateException(e);
+		}
+		CERT_CACHE.put(path,new CachedCertificate(cert,modified,length));
+		return cert;
+	}
+
+
+	/** Loads certificates from a set of files, in parallel.
+	 * @param cert_files the files
+	 * @return the certificates, in the same order of the files
+	 * @throws java.security.cert.CertificateException
+	 * @throws java.io.FileNotFoundException */
+	static Certificate[] loadCertificates(File[] cert_files) throws java.security.cert.CertificateException, java.io.FileNotFoundException {
+		ArrayList<CompletableFuture<Certificate>> futures=new ArrayList<>(cert_files.length);
+		for (final File cert_file : cert_files) {
+			futures.add(CompletableFuture.supplyAsync(()->{
+				try {
+					return loadCertificate(cert_file);
+				}
+				catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			},CERT_LOADER));
+		}
+		Certificate[] certs=new Certificate[cert_files.length];
+		try {
+			for (int i=0; i<certs.length; i++) certs[i]=futures.get(i).join();
+		}
+		catch (CompletionException e) {
+			Throwable cause=e.getCause();
+			if (cause instanceof java.security.cert.CertificateException) throw (java.security.cert.CertificateException)cause;
+			if (cause instanceof FileNotFoundException) throw (FileNotFoundException)cause;
+			// else
+			throw new java.security.cert.CertificateException(cause);
+		}
+		return certs;
+	}
+
+
+	/** Creates a new SSL context initialized with the keys and trusted certificates of this context.
+	 * @param protocol the protocol (e.g. "TLS", "TLSv1.3", or "DTLS")
+	 * @return the SSL context
+	 * @throws java.security.KeyStoreException
+	 * @throws java.security.KeyManagementException
+	 * @throws java.security.UnrecoverableKeyException
+	 * @throws java.security.NoSuchAlgorithmException */
+	public SSLContext createSSLContext(String protocol) throws java.security.KeyStoreException, java.security.KeyManagementException, java.security.UnrecoverableKeyException, java.security.NoSuchAlgorithmException {
+		SSLContext sc=SSLContext.getInstance(protocol);
+		sc.init(getKeyManagers(),getTrustManagers(),null);
+		return sc;
+	}
+
+
+	/** Certificate loaded from a file. */
+	static class CachedCertificate {
+
+		/** The certificate */
+		Certificate cert;
+
+		/** File modification time */
+		long modified;
+
+		/** File size */
+		long length;
+
+		/** Creates a new cached certificate. */
+		CachedCertificate(Certificate cert, long modified, long length) {
+			this.cert=cert;
+			this.modified=modified;
+			this.length=length;
+		}
+	}
+
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.File;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.TrustManager;
+
+
+/** Immutable TLS context loaded from files.
+  * <p>
+  * A snapshot is loaded from a private key file, a certificate file, and a set of folders
+  * of trusted certificates. Certificate files are loaded in parallel, and key and certificate files
+  * already loaded by any context (and not modified since) are not parsed again.
+  * Key managers and trust managers are created only once, so that the same snapshot can be shared
+  * by any number of {@link TlsSocketFactory}, {@link TlsServerFactory}, and {@link TlsSelector} instances.
+  * <p>
+  * Snapshots are cached: {@link #getInstance(String, String, String[], boolean)} returns the same snapshot
+  * for the same files, unless some of the files has been modified (or added to or removed from
+  * a trusted folder), according to their modification time and size.
+  * In that case a new snapshot is loaded, parsing again only the changed files.
+  * <p>
+  * Any attempt to modify a snapshot throws an {@link UnsupportedOperationException};
+  * {@link #getKeyStore()} returns a copy of the key store, and the arrays of key managers and trust managers
+  * are copied too, so that the snapshot cannot be modified through them.
+  */
+public class TlsContextSnapshot extends TlsContext {
+
+	/** Cached snapshots */
+	static final ConcurrentHashMap<String,TlsContextSnapshot> SNAPSHOTS=new ConcurrentHashMap<>();
+
+
+	/** Private key file, or <i>null</i> */
+	String key_file;
+
+	/** Certificate file, or <i>null</i> */
+	String cert_file;
+
+	/** Folders of trusted certificates */
+	String[] trust_folders;
+
+	/** Loaded files and folders, with their modification time and size */
+	LinkedHashMap<File,long[]> versions=new LinkedHashMap<>();
+
+	/** Whether the snapshot has been completely loaded */
+	boolean frozen=false;
+
+	/** Key managers */
+	KeyManager[] key_managers=null;
+
+	/** Trust managers */
+	TrustManager[] trust_managers=null;
+
+
+
+	/** Loads a new snapshot.
+	 * @param key_file private key file (base64 format), or <i>null</i>
+	 * @param cert_file certificate file, or <i>null</i>
+	 * @param trust_folders folders of trusted certificates, or <i>null</i>
+	 * @param trust_all whether all certificates should be considered trusted
+	 * @throws java.lang.Exception */
+	protected TlsContextSnapshot(String key_file, String cert_file, String[] trust_folders, boolean trust_all) throws java.lang.Exception {
+		this.key_file=key_file;
+		this.cert_file=cert_file;
+		this.trust_folders=trust_folders!=null? trust_folders.clone() : new String[0];
+		super.setTrustAll(trust_all);
+		if (key_file!=null && cert_file!=null) {
+			addVersion(new File(key_file));
+			addVersion(new File(cert_file));
+			setKeyCert(key_file,cert_file);
+		}
+		for (String cert_folder : this.trust_folders) {
+			File folder=new File(cert_folder);
+			addVersion(folder);
+			File[] cert_files=getCertFiles(folder);
+			for (File file : cert_files) addVersion(file);
+			Certificate[] certs=loadCertificates(cert_files);
+			for (Certificate cert : certs) addTrustCert(cert);
+		}
+		frozen=true;
+	}
+
+
+	/** Gets a snapshot.
+	 * If a snapshot of the same files has been already loaded and no file has been modified since, it is returned;
+	 * otherwise a new snapshot is loaded.
+	 * @param key_file private key file (base64 format), or <i>null</i>
+	 * @param cert_file certificate file, or <i>null</i>
+	 * @param trust_folders folders of trusted certificates, or <i>null</i>
+	 * @param trust_all whether all certificates should be considered trusted
+	 * @return the snapshot
+	 * @throws java.lang.Exception */
+	public static TlsContextSnapshot getInstance(String key_file, String cert_file, String[] trust_folders, boolean trust_all) throws java.lang.Exception {
+		String id=key_file+'|'+cert_file+'|'+(trust_folders!=null? Arrays.toString(trust_folders) : null)+'|'+trust_all;
+		TlsContextSnapshot snapshot=SNAPSHOTS.get(id);
+		if (snapshot!=null && !snapshot.isModified()) return snapshot;
+		// else
+		snapshot=new TlsContextSnapshot(key_file,cert_file,trust_folders,trust_all);
+		SNAPSHOTS.put(id,snapshot);
+		return snapshot;
+	}
+
+
+	/** Whether some of the files of this snapshot has been modified after it was loaded.
+	 * @return <i>true</i> if modified */
+	public boolean isModified() {
+		for (Map.Entry<File,long[]> entry : versions.entrySet()) {
+			File file=entry.getKey();
+			long[] version=entry.getValue();
+			if (file.lastModified()!=version[0] || (file.isFile() && file.length()!=version[1])) return true;
+		}
+		return false;
+	}
+
+
+	/** Reloads this snapshot.
+	 * @return this snapshot, if no file has been modified, or a new snapshot
+	 * @throws java.lang.Exception */
+	public TlsContextSnapshot reload() throws java.lang.Exception {
+		return getInstance(key_file,cert_file,trust_folders,isTrustAll());
+	}
+
+
+	/** Adds a loaded file or folder. */
+	private void addVersion(File file) {
+		versions.put(file,new long[]{ file.lastModified(), file.length() });
+	}
+
+
+	/** Throws an exception if the snapshot has been already loaded. */
+	private void checkNotFrozen() {
+		if (frozen) throw new UnsupportedOperationException("TLS context snapshots cannot be modified");
+	}
+
+
+	@Override
+	public void setKeyCert(Key key, Certificate cert) throws java.security.KeyStoreException {
+		checkNotFrozen();
+		super.setKeyCert(key,cert);
+	}
+
+
+	@Override
+	public void addTrustCert(Certificate cert) throws java.security.KeyStoreException {
+		checkNotFrozen();
+		super.addTrustCert(cert);
+	}
+
+
+	@Override
+	public void setTrustAll(boolean trust_all) {
+		checkNotFrozen();
+		super.setTrustAll(trust_all);
+	}
+
+
+	/** Gets a copy of the key store.
+	 * @return a new key store with the same entries */
+	@Override
+	public KeyStore getKeyStore() {
+		try {
+			KeyStore copy=KeyStore.getInstance(ks.getType());
+			copy.load(null,null);
+			KeyStore.PasswordProtection protection=new KeyStore.PasswordProtection(passwd);
+			for (Enumeration<String> aliases=ks.aliases(); aliases.hasMoreElements(); ) {
+				String alias=aliases.nextElement();
+				KeyStore.ProtectionParameter param=ks.isKeyEntry(alias)? protection : null;
+				copy.setEntry(alias,ks.getEntry(alias,param),param);
+			}
+			return copy;
+		}
+		catch (java.security.GeneralSecurityException|java.io.IOException e) {
+			throw new IllegalStateException("Cannot copy the key store",e);
+		}
+	}
+
+
+	@Override
+	public synchronized KeyManager[] getKeyManagers() throws java.security.KeyStoreException, java.security.NoSuchAlgorithmException, java.security.UnrecoverableKeyException {
+		if (key_managers==null) key_managers=super.getKeyManagers();
+		return key_managers.clone();
+	}
+
+
+	@Override
+	public synchronized TrustManager[] getTrustManagers() throws java.security.KeyStoreException, java.security.NoSuchAlgorithmException {
+		if (trust_managers==null) trust_managers=super.getTrustManagers();
+		return trust_managers.clone();
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[key="+key_file+",cert="+cert_file+",trust="+Arrays.toString(trust_folders)+",trust_all="+isTrustAll()+"]";
+	}
+
+}
@@ -25,6 +25,7 @@ package org.zoolu.net;
 
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -36,8 +37,10 @@ import java.io.Writer;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyStore;
-//import java.security.cert.Certificate;
+import java.security.cert.Certificate;
+import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
 //import sun.misc.BASE64Encoder;
 //import sun.misc.BASE64Decoder;
 
@@ -55,6 +58,18 @@ public class TlsKeyTool {
 	/** End private key */
 	static final String END_PRIVATE_KEY="-----END PRIVATE KEY-----";
 
+	/** Begin certificate */
+	static final String BEGIN_CERTIFICATE="-----BEGIN CERTIFICATE-----";
+
+	/** End certificate */
+	static final String END_CERTIFICATE="-----END CERTIFICATE-----";
+
+	/** Supported private key algorithms */
+	static final String[] KEY_ALGORITHMS={ "RSA", "EC" };
+
+	/** Keys already imported from base64 files, by canonical file name */
+	static final ConcurrentHashMap<String,CachedKey> KEY_CACHE=new ConcurrentHashMap<>();
+
 
 
 	/** Imports a private key. */
@@ -70,36 +85,63 @@ public class TlsKeyTool {
 	public static Key importPrivateKey(InputStream is) throws Exception {
 		byte[] buff=new byte[is.available()];
 		is.read(buff);
-		PKCS8EncodedKeySpec pkcs8_eks=new PKCS8EncodedKeySpec(buff);
-		KeyFactory kf=KeyFactory.getInstance("RSA");
-		return kf.generatePrivate(pkcs8_eks);
+		return generatePrivateKey(buff);
 	}
 
 
-	/** Imports a private key from base64 format. */
+	/** Imports a private key from base64 format.
+	 * Keys are cached, and the file is parsed again only if its modification time or size has changed. */
 	public static Key importPrivateKeyBASE64(String file_name) throws Exception {
-		BufferedReader rr=new BufferedReader(new FileReader(file_name));
-		Key key=importPrivateKeyBASE64(rr);
-		rr.close();
+		File file=new File(file_name);
+		String path=file.getCanonicalPath();
+		long modified=file.lastModified();
+		long length=file.length();
+		CachedKey cached=KEY_CACHE.get(path);
+		if (cached!=null && cached.modified==modified && cached.length==length) return cached.key;
+		// else
+		BufferedReader rr=new BufferedReader(new FileReader(file));
+		Key key;
+		try {
+			key=importPrivateKeyBASE64(rr);
+		}
+		finally {
+			rr.close();
+		}
+		KEY_CACHE.put(path,new CachedKey(key,modified,length));
 		return key;
 	}
 
 	/** Imports a private key from base64 format. */
 	public static Key importPrivateKeyBASE64(BufferedReader rr) throws Exception {
-		String buff="";
+		StringBuilder sb=new StringBuilder();
 		for (String line=rr.readLine(); line!=null; line=rr.readLine()) {
-			buff+=line;
+			sb.append(line);
 		}
+		String buff=sb.toString();
 		int begin=buff.indexOf(BEGIN_PRIVATE_KEY);
-		if (begin>=0) begin+=BEGIN_PRIVATE_KEY.length(); //else begin=0;
+		if (begin>=0) begin+=BEGIN_PRIVATE_KEY.length(); else begin=0;
 		int end=buff.indexOf(END_PRIVATE_KEY);
-		//if (end<0) end=buff.length();
+		if (end<0) end=buff.length();
 		String encoded=buff.substring(begin,end);
 		//BASE64Decoder decoder=new BASE64Decoder();
 		//PKCS8EncodedKeySpec pkcs8_eks=new PKCS8EncodedKeySpec(decoder.decodeBuffer(encoded));
-		PKCS8EncodedKeySpec pkcs8_eks=new PKCS8EncodedKeySpec(Base64.decode(encoded));
-		KeyFactory kf=KeyFactory.getInstance("RSA");
-		return kf.generatePrivate(pkcs8_eks);
+		return generatePrivateKey(Base64.decode(encoded));
+	}
+
+
+	/** Generates a private key from its PKCS#8 encoding, trying the supported key algorithms. */
+	private static Key generatePrivateKey(byte[] encoded) throws Exception {
+		PKCS8EncodedKeySpec pkcs8_eks=new PKCS8EncodedKeySpec(encoded);
+		InvalidKeySpecException error=null;
+		for (String algorithm : KEY_ALGORITHMS) {
+			try {
+				return KeyFactory.getInstance(algorithm).generatePrivate(pkcs8_eks);
+			}
+			catch (InvalidKeySpecException e) {
+				if (error==null) error=e;
+			}
+		}
+		throw error;
 	}
 
 
@@ -136,6 +178,59 @@ public class TlsKeyTool {
 	}
 
 
+	/** Exports a certificate in base64 (PEM) format. */
+	public static void exportCertificateBASE64(Certificate cert, String file_name) throws Exception {
+		FileWriter file=new FileWriter(file_name);
+		exportCertificateBASE64(cert,file);
+		file.close();
+	}
+
+
+	/** Exports a certificate in base64 (PEM) format. */
+	public static void exportCertificateBASE64(Certificate cert, Writer wr) throws Exception {
+		String encoded=Base64.encode(cert.getEncoded());
+		wr.write(BEGIN_CERTIFICATE+"\r\n");
+		for (int i=0; i<encoded.length(); i+=64) wr.write(encoded.substring(i,Math.min(i+64,encoded.length()))+"\r\n");
+		wr.write(END_CERTIFICATE+"\r\n");
+	}
+
+
+	/** Generates a new private key and a self-signed certificate.
+	 * Keys are generated through the <i>keytool</i> command of the running JRE, within a temporary key store.
+	 * @param key_alg key algorithm ("RSA" or "EC")
+	 * @param key_size key size, in bits (e.g. 2048 for RSA and 256 for EC)
+	 * @param dname distinguished name of the certificate subject (e.g. "CN=localhost")
+	 * @param validity certificate validity, in days
+	 * @param key_file the file where the private key is stored, in base64 format
+	 * @param cert_file the file where the certificate is stored, in base64 format */
+	public static void generateKeyCert(String key_alg, int key_size, String dname, int validity, String key_file, String cert_file) throws Exception {
+		File store_file=File.createTempFile("tlskeytool",".p12");
+		store_file.delete();
+		String alias="key";
+		char[] passwd="TLS_KEY_TOOL_PASSWD".toCharArray();
+		try {
+			String keytool=System.getProperty("java.home")+File.separator+"bin"+File.separator+"keytool";
+			Process process=new ProcessBuilder(keytool,"-genkeypair","-keystore",store_file.getPath(),"-storetype","PKCS12","-storepass",new String(passwd),
+					"-alias",alias,"-keyalg",key_alg,"-keysize",String.valueOf(key_size),"-dname",dname,"-validity",String.valueOf(validity)).redirectErrorStream(true).start();
+			InputStream is=process.getInputStream();
+			StringBuilder output=new StringBuilder();
+			int c;
+			while ((c=is.read())>=0) output.append((char)c);
+			if (process.waitFor()!=0) throw new IOException("keytool failed: "+output.toString().trim());
+			// else
+			KeyStore ks=KeyStore.getInstance("PKCS12");
+			FileInputStream fis=new FileInputStream(store_file);
+			ks.load(fis,passwd);
+			fis.close();
+			exportPrivateKeyBASE64(ks.getKey(alias,passwd),key_file);
+			exportCertificateBASE64(ks.getCertificate(alias),cert_file);
+		}
+		finally {
+			store_file.delete();
+		}
+	}
+
+
 	/** Main method. */
 	public static void main(String[] args) {
 		String store_file=null;
@@ -179,4 +274,26 @@ public class TlsKeyTool {
 		}
 	}
 
+
+
+	/** Key imported from a file. */
+	static class CachedKey {
+
+		/** The key */
+		Key key;
+
+		/** File modification time */
+		long modified;
+
+		/** File size */
+		long length;
+
+		/** Creates a new cached key. */
+		CachedKey(Key key, long modified, long length) {
+			this.key=key;
+			this.modified=modified;
+			this.length=length;
+		}
+	}
+
 }
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import org.zoolu.util.ByteBufferPool;
+
+
+/** Non-blocking TLS transport.
+  * <p>
+  * A single selector thread handles any number of TLS connections ({@link TlsChannel}s),
+  * both client connections (created through {@link #connect(SocketAddress, TlsChannelListener)})
+  * and server connections (accepted on ports opened through {@link #listen(int, AcceptListener)}).
+  * TLS is implemented through {@link javax.net.ssl.SSLEngine}, with keys and trusted certificates
+  * taken from a {@link TlsContext}.
+  * <p>
+  * Network and application buffers used for wrapping and unwrapping are pooled and shared
+  * by all connections, so that memory usage depends on the number of active connections
+  * rather than on the total number of connections.
+  * <p>
+  * All listener methods are called by the selector thread.
+  */
+public class TlsSelector extends Thread {
+
+	/** Listener for new server connections. */
+	@FunctionalInterface
+	public static interface AcceptListener {
+
+		/** When a new connection has been accepted.
+		 * The TLS handshake has not been completed yet.
+		 * @param channel the new channel
+		 * @return the listener for the new channel */
+		public TlsChannelListener onAccepted(TlsChannel channel);
+	}
+
+
+	/** Default server socket backlog value */
+	public static int DEFAULT_SOCKET_BACKLOG=50;
+
+	/** Maximum number of pooled buffers of each type */
+	public static int MAX_POOLED_BUFFERS=256;
+
+
+	/** SSL context */
+	SSLContext ssl_context;
+
+	/** Selector */
+	Selector selector;
+
+	/** Tasks to be executed by the selector thread */
+	ConcurrentLinkedQueue<Runnable> tasks=new ConcurrentLinkedQueue<>();
+
+	/** Pool of network buffers */
+	ByteBufferPool net_buffers;
+
+	/** Pool of application buffers */
+	ByteBufferPool app_buffers;
+
+	/** Active channels */
+	HashSet<TlsChannel> channels=new HashSet<>();
+
+	/** Enabled protocol versions */
+	String[] enabled_protocols=null;
+
+	/** Enabled cipher suites */
+	String[] enabled_cipher_suites=null;
+
+	/** Whether requiring client authentication */
+	boolean client_auth=false;
+
+	/** Session cache, or <i>null</i> */
+	TlsSessionCache session_cache=null;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates and starts a new TLS selector.
+	 * @param tls_context the TLS context
+	 * @throws IOException
+	 * @throws java.security.GeneralSecurityException */
+	public TlsSelector(TlsContext tls_context) throws IOException, java.security.GeneralSecurityException {
+		this(tls_context.createSSLContext("TLS"));
+	}
+
+
+	/** Creates and starts a new TLS selector.
+	 * @param ssl_context the SSL context
+	 * @throws IOException */
+	public TlsSelector(SSLContext ssl_context) throws IOException {
+		this.ssl_context=ssl_context;
+		SSLSession session=ssl_context.createSSLEngine().getSession();
+		net_buffers=new ByteBufferPool(session.getPacketBufferSize(),MAX_POOLED_BUFFERS);
+		app_buffers=new ByteBufferPool(session.getApplicationBufferSize(),MAX_POOLED_BUFFERS);
+		selector=Selector.open();
+		setName("TlsSelector");
+		setDaemon(true);
+		start();
+	}
+
+
+	/** Sets the list of enabled protocol versions for new connections.
+	 * @param enabled_protocols the protocol versions, or <i>null</i> for the defaults */
+	public void setEnabledProtocols(String[] enabled_protocols) {
+		this.enabled_protocols=enabled_protocols;
+	}
+
+
+	/** Sets the list of enabled cipher suites for new connections.
+	 * @param enabled_cipher_suites the cipher suites, or <i>null</i> for the defaults */
+	public void setEnabledCipherSuites(String[] enabled_cipher_suites) {
+		this.enabled_cipher_suites=enabled_cipher_suites;
+	}
+
+
+	/** Sets whether requiring client authentication on server connections. */
+	public void setNeedClientAuth(boolean flag) {
+		client_auth=flag;
+	}
+
+
+	/** Sets the session cache.
+	 * Size and timeout of the cache are applied to the client and server session contexts,
+	 * and resumption statistics are collected for all new channels.
+	 * @param session_cache the session cache, or <i>null</i> to stop collecting statistics */
+	public void setSessionCache(TlsSessionCache session_cache) {
+		this.session_cache=session_cache;
+		if (session_cache!=null) {
+			session_cache.apply(ssl_context.getClientSessionContext());
+			session_cache.apply(ssl_context.getServerSessionContext());
+		}
+	}
+
+
+	/** Gets the session cache.
+	 * @return the session cache, or <i>null</i> */
+	public TlsSessionCache getSessionCache() {
+		return session_cache;
+	}
+
+
+	/** Gets the SSL context.
+	 * @return the context */
+	public SSLContext getSSLContext() {
+		return ssl_context;
+	}
+
+
+	/** Gets the number of active channels.
+	 * @return the number of channels */
+	public int getChannelCount() {
+		synchronized (channels) {
+			return channels.size();
+		}
+	}
+
+
+	/** Opens a new TLS connection.
+	 * The connection and the handshake are performed asynchronously;
+	 * method {@link TlsChannelListener#onConnected(TlsChannel)} is called when the handshake is completed.
+	 * @param remote_soaddr the remote socket address
+	 * @param listener the channel listener
+	 * @return the new channel
+	 * @throws IOException */
+	public TlsChannel connect(SocketAddress remote_soaddr, TlsChannelListener listener) throws IOException {
+		SocketChannel socket=SocketChannel.open();
+		socket.configureBlocking(false);
+		SSLEngine engine;
+		if (remote_soaddr instanceof InetSocketAddress) {
+			InetSocketAddress inet_soaddr=(InetSocketAddress)remote_soaddr;
+			engine=ssl_context.createSSLEngine(inet_soaddr.getHostString(),inet_soaddr.getPort());
+		}
+		else engine=ssl_context.createSSLEngine();
+		engine.setUseClientMode(true);
+		configure(engine);
+		final TlsChannel channel=new TlsChannel(this,socket,engine,listener);
+		addChannel(channel);
+		final boolean connected=socket.connect(remote_soaddr);
+		execute(()->{
+			try {
+				if (connected) {
+					channel.key=socket.register(selector,SelectionKey.OP_READ,channel);
+					channel.engine.beginHandshake();
+					channel.process(false);
+				}
+				else channel.key=socket.register(selector,SelectionKey.OP_CONNECT,channel);
+			}
+			catch (IOException e) {
+				channel.terminate(e);
+			}
+		});
+		return channel;
+	}
+
+
+	/** Starts accepting TLS connections on a given port, on all local addresses.
+	 * @param port the server port
+	 * @param listener the listener for new connections
+	 * @return the server socket channel
+	 * @throws IOException */
+	public ServerSocketChannel listen(int port, AcceptListener listener) throws IOException {
+		return listen(port,null,listener);
+	}
+
+
+	/** Starts accepting TLS connections on a given port and address.
+	 * @param port the server port
+	 * @param bind_ipaddr the local address, or <i>null</i> for all local addresses
+	 * @param listener the listener for new connections
+	 * @return the server socket channel
+	 * @throws IOException */
+	public ServerSocketChannel listen(int port, InetAddress bind_ipaddr, final AcceptListener listener) throws IOException {
+		final ServerSocketChannel server=ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.bind(new InetSocketAddress(bind_ipaddr,port),DEFAULT_SOCKET_BACKLOG);
+		execute(()->{
+			try {
+				server.register(selector,SelectionKey.OP_ACCEPT,listener);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		return server;
+	}
+
+
+	/** Runs a task in the selector thread.
+	 * @param task the task */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+
+	/** Stops the selector thread and closes all channels. */
+	public void halt() {
+		stop=true;
+		selector.wakeup();
+	}
+
+
+	/** Configures a new engine. */
+	private void configure(SSLEngine engine) {
+		if (enabled_protocols!=null) engine.setEnabledProtocols(enabled_protocols);
+		if (enabled_cipher_suites!=null) engine.setEnabledCipherSuites(enabled_cipher_suites);
+	}
+
+
+	/** Adds an active channel. */
+	private void addChannel(TlsChannel channel) {
+		synchronized (channels) {
+			channels.add(channel);
+		}
+	}
+
+
+	/** When a channel has been closed. */
+	void onChannelClosed(TlsChannel channel) {
+		synchronized (channels) {
+			channels.remove(channel);
+		}
+	}
+
+
+	/** The selector loop. */
+	public void run() {
+		while (!stop) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task=tasks.poll())!=null) task.run();
+				Iterator<SelectionKey> i=selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					SelectionKey key=i.next();
+					i.remove();
+					if (!key.isValid()) continue;
+					// else
+					if (key.isAcceptable()) accept(key);
+					else
+					if (key.isConnectable()) finishConnect((TlsChannel)key.attachment());
+					else
+					((TlsChannel)key.attachment()).process(key.isReadable());
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		// close all channels and server sockets
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof TlsChannel) ((TlsChannel)key.attachment()).terminate(null);
+			else try { key.channel().close(); } catch (IOException e) {}
+		}
+		try { selector.close(); } catch (IOException e) {}
+	}
+
+
+	/** Accepts a new connection. */
+	private void accept(SelectionKey key) throws IOException {
+		SocketChannel socket=((ServerSocketChannel)key.channel()).accept();
+		if (socket==null) return;
+		// else
+		socket.configureBlocking(false);
+		SSLEngine engine=ssl_context.createSSLEngine();
+		engine.setUseClientMode(false);
+		if (client_auth) engine.setNeedClientAuth(true);
+		configure(engine);
+		TlsChannel channel=new TlsChannel(this,socket,engine,null);
+		addChannel(channel);
+		try {
+			channel.listener=((AcceptListener)key.attachment()).onAccepted(channel);
+			channel.key=socket.register(selector,SelectionKey.OP_READ,channel);
+			engine.beginHandshake();
+			channel.process(false);
+		}
+		catch (Exception e) {
+			channel.terminate(e);
+		}
+	}
+
+
+	/** Completes the connection of a client channel. */
+	private void finishConnect(TlsChannel channel) {
+		try {
+			if (!channel.socket.finishConnect()) return;
+			// else
+			channel.key.interestOps(SelectionKey.OP_READ);
+			channel.engine.beginHandshake();
+			channel.process(false);
+		}
+		catch (IOException e) {
+			channel.terminate(e);
+		}
+	}
+
+}
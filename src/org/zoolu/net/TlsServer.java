@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.zoolu.util.Timer;
+
+
+/** Managed TLS server.
+  * <p>
+  * Connections are accepted by a single thread, that never performs TLS handshakes;
+  * each accepted connection is passed to a worker of a bounded executor, that completes the handshake
+  * and then calls {@link TlsServerListener#onConnected(TlsServer, SSLSocket)}.
+  * <p>
+  * At most <i>max_workers</i> connections are handled at the same time. When all workers are busy,
+  * the accept thread stops accepting, and new connections are queued by the operating system
+  * in the server socket backlog.
+  * A worker is held from the start of the handshake until {@link TlsServerListener#onConnected(TlsServer, SSLSocket)}
+  * returns, so <i>max_workers</i> also limits the number of connections served at the same time by a listener
+  * that blocks for the whole lifetime of the connection; a listener that serves long-lived connections
+  * without such limit has to pass the socket to another thread and return.
+  * <p>
+  * Handshakes that do not complete within {@link #HANDSHAKE_TIMEOUT} milliseconds fail, and the socket is closed,
+  * so that slow or idle clients cannot hold a worker, even if they keep sending data slowly.
+  * <p>
+  * Workers are virtual threads, if supported by the JVM and {@link #USE_VIRTUAL_THREADS} is <i>true</i>;
+  * otherwise they are platform daemon threads.
+  * <p>
+  * Accept rate, handshake latency, and failures are collected in a {@link TlsServerStats}.
+  */
+public class TlsServer extends Thread {
+
+	/** Default maximum number of connections handled at the same time */
+	public static int DEFAULT_MAX_WORKERS=256;
+
+	/** Handshake timeout, in milliseconds (0 means no timeout) */
+	public static int HANDSHAKE_TIMEOUT=10000;
+
+	/** Whether using virtual threads, if available */
+	public static boolean USE_VIRTUAL_THREADS=true;
+
+
+	/** Server factory */
+	TlsServerFactory server_factory;
+
+	/** Server socket */
+	SSLServerSocket ssl_server;
+
+	/** Server listener */
+	TlsServerListener listener;
+
+	/** Worker executor */
+	ExecutorService executor;
+
+	/** Whether workers are virtual threads */
+	boolean virtual_threads;
+
+	/** Available workers */
+	Semaphore workers;
+
+	/** Statistics */
+	TlsServerStats stats=new TlsServerStats();
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates and starts a new TLS server, on all local addresses.
+	 * @param server_factory the server factory
+	 * @param port the server port
+	 * @param listener the server listener
+	 * @throws IOException */
+	public TlsServer(TlsServerFactory server_factory, int port, TlsServerListener listener) throws IOException {
+		this(server_factory,port,null,TlsServerFactory.DEFAULT_SOCKET_BACKLOG,DEFAULT_MAX_WORKERS,listener);
+	}
+
+
+	/** Creates and starts a new TLS server.
+	 * @param server_factory the server factory
+	 * @param port the server port
+	 * @param bind_ipaddr the local address, or <i>null</i> for all local addresses
+	 * @param backlog maximum number of pending connections not yet accepted
+	 * @param max_workers maximum number of connections handled at the same time
+	 * @param listener the server listener
+	 * @throws IOException */
+	public TlsServer(TlsServerFactory server_factory, int port, InetAddress bind_ipaddr, int backlog, int max_workers, TlsServerListener listener) throws IOException {
+		if (max_workers<=0) throw new IllegalArgumentException("Invalid maximum number of workers: "+max_workers);
+		this.server_factory=server_factory;
+		this.listener=listener;
+		workers=new Semaphore(max_workers);
+		executor=createVirtualThreadExecutor();
+		virtual_threads=executor!=null;
+		if (!virtual_threads) executor=createThreadPoolExecutor(max_workers);
+		ssl_server=server_factory.createTlsServer(port,bind_ipaddr,backlog);
+		setName("TlsServer");
+		start();
+	}
+
+
+	/** Creates an executor that starts a new virtual thread for each task.
+	 * @return the executor, or <i>null</i> if virtual threads are not supported or not enabled */
+	private static ExecutorService createVirtualThreadExecutor() {
+		if (!USE_VIRTUAL_THREADS) return null;
+		// else
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+
+	/** Creates an executor with a pool of platform daemon threads.
+	 * @param max_workers maximum number of threads
+	 * @return the executor */
+	private static ExecutorService createThreadPoolExecutor(int max_workers) {
+		ThreadPoolExecutor executor=new ThreadPoolExecutor(max_workers,max_workers,60,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),task->{
+			Thread thread=new Thread(task,"TlsServer-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+
+	/** Gets the server socket.
+	 * @return the socket */
+	public SSLServerSocket getServerSocket() {
+		return ssl_server;
+	}
+
+
+	/** Gets the local port.
+	 * @return the port */
+	public int getPort() {
+		return ssl_server.getLocalPort();
+	}
+
+
+	/** Whether workers are virtual threads.
+	 * @return <i>true</i> if virtual threads are used */
+	public boolean isVirtual() {
+		return virtual_threads;
+	}
+
+
+	/** Gets the statistics.
+	 * @return the statistics */
+	public TlsServerStats getStats() {
+		return stats;
+	}
+
+
+	/** Stops accepting new connections.
+	 * Connections already passed to the listener are not closed. */
+	public void halt() {
+		stop=true;
+		try { ssl_server.close(); } catch (IOException e) {}
+		interrupt();
+	}
+
+
+	/** The accept loop. */
+	public void run() {
+		Exception error=null;
+		try {
+			while (!stop) {
+				workers.acquire();
+				SSLSocket socket;
+				try {
+					socket=server_factory.acceptTlsSocket(ssl_server);
+				}
+				catch (IOException e) {
+					workers.release();
+					throw e;
+				}
+				final long accept_time=System.nanoTime();
+				stats.accepted.increment();
+				try {
+					executor.execute(()->handle(socket,accept_time));
+				}
+				catch (RejectedExecutionException e) {
+					workers.release();
+					try { socket.close(); } catch (IOException e2) {}
+				}
+			}
+		}
+		catch (InterruptedException e) {}
+		catch (Exception e) {
+			if (!stop) error=e;
+		}
+		stop=true;
+		try { ssl_server.close(); } catch (IOException e) {}
+		executor.shutdown();
+		if (listener!=null) listener.onServerTerminated(this,error);
+	}
+
+
+	/** Completes the handshake of an accepted connection and passes it to the listener.
+	 * It is run by a worker. */
+	private void handle(final SSLSocket socket, long accept_time) {
+		stats.active.increment();
+		try {
+			// the socket timeout applies to each read, so the handshake deadline is enforced by closing the socket
+			final AtomicBoolean handshaking=new AtomicBoolean(true);
+			Timer deadline_timer=null;
+			if (HANDSHAKE_TIMEOUT>0) {
+				deadline_timer=new Timer(HANDSHAKE_TIMEOUT,t->{
+					if (handshaking.compareAndSet(true,false)) try { socket.close(); } catch (IOException e) {}
+				});
+				deadline_timer.start(true);
+			}
+			try {
+				socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+				socket.startHandshake();
+				socket.setSoTimeout(0);
+				if (!handshaking.compareAndSet(true,false)) throw new IOException("Handshake timeout");
+			}
+			catch (IOException e) {
+				stats.handshake_failures.increment();
+				try { socket.close(); } catch (IOException e2) {}
+				return;
+			}
+			finally {
+				if (deadline_timer!=null) deadline_timer.halt();
+			}
+			stats.handshake_latency.add(System.nanoTime()-accept_time);
+			stats.handshakes.increment();
+			if (listener!=null) {
+				try {
+					listener.onConnected(this,socket);
+				}
+				catch (RuntimeException e) {
+					stats.listener_exceptions.increment();
+					e.printStackTrace();
+				}
+			}
+		}
+		finally {
+			stats.active.decrement();
+			workers.release();
+		}
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+'['+ssl_server.getLocalSocketAddress()+']';
+	}
+
+}
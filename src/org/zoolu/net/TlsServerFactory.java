@@ -25,15 +25,13 @@ package org.zoolu.net;
 
 
 import java.net.InetAddress;
-import java.security.KeyStore;
 
 import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 
 
 /** TLS server factory.
@@ -44,9 +42,15 @@ public class TlsServerFactory {
 	public static int DEFAULT_SOCKET_BACKLOG=50;
 
 	
+	/** SSL context */
+	SSLContext ssl_context;
+
 	/** SSLServerSocketFactory */
 	SSLServerSocketFactory ssl_factory;
 
+	/** Session cache, or <i>null</i> */
+	TlsSessionCache session_cache=null;
+
 	/** Whether using client mode in first TLS handshake */
 	boolean client_mode=false;
 	
@@ -59,6 +63,9 @@ public class TlsServerFactory {
 	/* Enabled protocol versions */
 	String[] enabled_protocols=null;
 
+	/* Enabled cipher suites */
+	String[] enabled_cipher_suites=null;
+
 
 
 	/** Creates a new TLS server factory.
@@ -68,23 +75,34 @@ public class TlsServerFactory {
 	 * @throws java.security.UnrecoverableKeyException
 	 * @throws java.security.NoSuchAlgorithmException */
 	public TlsServerFactory(TlsContext tls_context) throws java.security.KeyStoreException, java.security.KeyManagementException, java.security.UnrecoverableKeyException, java.security.NoSuchAlgorithmException {
-		KeyStore ks=tls_context.getKeyStore();
-		// get key managers
-		KeyManagerFactory key_manager_factory=KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-		key_manager_factory.init(ks,TlsContext.DEFAULT_PASSWORD);            
-		KeyManager[] key_managers=key_manager_factory.getKeyManagers();
-		// get trust managers
-		TrustManagerFactory trust_manager_factory=TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-		trust_manager_factory.init(ks);            
-		TrustManager[] trust_managers=trust_manager_factory.getTrustManagers();      
-		// install only the key managers
+		// get key and trust managers
+		KeyManager[] key_managers=tls_context.getKeyManagers();
+		TrustManager[] trust_managers=tls_context.getTrustManagers();
 		SSLContext sc=SSLContext.getInstance("SSL");
 		sc.init(key_managers,trust_managers,null/*new java.security.SecureRandom()*/);
 		// get the socket factory
+		ssl_context=sc;
 		ssl_factory=sc.getServerSocketFactory();
 	}
 
 
+	/** Sets the session cache.
+	 * Size and timeout of the cache are applied to the server session context, and resumption statistics
+	 * are collected for all sockets accepted through {@link #acceptTlsSocket(SSLServerSocket)}.
+	 * @param session_cache the session cache, or <i>null</i> to stop collecting statistics */
+	public void setSessionCache(TlsSessionCache session_cache) {
+		this.session_cache=session_cache;
+		if (session_cache!=null) session_cache.apply(ssl_context.getServerSessionContext());
+	}
+
+
+	/** Gets the session cache.
+	 * @return the session cache, or <i>null</i> */
+	public TlsSessionCache getSessionCache() {
+		return session_cache;
+	}
+
+
 	/** Sets whether using client (or server) mode in its first handshake.
 	  * Servers normally authenticate themselves, and clients are not required to do so. */
 	public void setUseClientMode(boolean flag) {
@@ -124,6 +142,25 @@ public class TlsServerFactory {
 	}
 
 
+	/** Gets the list of supported cipher suites. */
+	public String[] getSupportedCipherSuites() {
+		return ssl_factory.getSupportedCipherSuites();
+	}
+
+
+	/** Gets the list of enabled cipher suites. */
+	public String[] getEnabledCipherSuites() {
+		return enabled_cipher_suites!=null? enabled_cipher_suites : ssl_factory.getDefaultCipherSuites();
+	}
+
+
+	/** Sets the list of enabled cipher suites.
+	 * @param enabled_cipher_suites the cipher suites, or <i>null</i> for the defaults */
+	public void setEnabledCipherSuites(String[] enabled_cipher_suites) {
+		this.enabled_cipher_suites=enabled_cipher_suites;
+	}
+
+
 	/** Inits supported and enabled protocol versions. */
 	private void initSupportedProtocols() {
 		try {
@@ -145,6 +182,7 @@ public class TlsServerFactory {
 		if (client_mode) ssl_server.setUseClientMode(true);
 		if (client_auth) ssl_server.setNeedClientAuth(true);
 		if (enabled_protocols!=null) ssl_server.setEnabledProtocols(enabled_protocols);
+		if (enabled_cipher_suites!=null) ssl_server.setEnabledCipherSuites(enabled_cipher_suites);
 		return ssl_server;
 	}
 
@@ -155,11 +193,35 @@ public class TlsServerFactory {
 	 * @return the server socket
 	 * @throws java.io.IOException */
 	public SSLServerSocket createTlsServer(int port, InetAddress bind_ipaddr) throws java.io.IOException {
-		SSLServerSocket ssl_server=(SSLServerSocket)ssl_factory.createServerSocket(port,DEFAULT_SOCKET_BACKLOG,bind_ipaddr);
+		return createTlsServer(port,bind_ipaddr,DEFAULT_SOCKET_BACKLOG);
+	}
+
+
+	/** Creates a new TLS server socket bound to a given port and address, with a given backlog.
+	 * @param port server listening port
+	 * @param bind_ipaddr server listening address, or <i>null</i> for all local addresses
+	 * @param backlog maximum number of pending connections not yet accepted
+	 * @return the server socket
+	 * @throws java.io.IOException */
+	public SSLServerSocket createTlsServer(int port, InetAddress bind_ipaddr, int backlog) throws java.io.IOException {
+		SSLServerSocket ssl_server=(SSLServerSocket)ssl_factory.createServerSocket(port,backlog,bind_ipaddr);
 		if (client_mode) ssl_server.setUseClientMode(true);
 		if (client_auth) ssl_server.setNeedClientAuth(true);
 		if (enabled_protocols!=null) ssl_server.setEnabledProtocols(enabled_protocols);
+		if (enabled_cipher_suites!=null) ssl_server.setEnabledCipherSuites(enabled_cipher_suites);
 		return ssl_server;
 	}
 
+
+	/** Accepts a new TLS connection.
+	 * Unlike {@link SSLServerSocket#accept()}, it collects resumption statistics if a session cache is set.
+	 * @param ssl_server the server socket
+	 * @return the accepted socket
+	 * @throws java.io.IOException */
+	public SSLSocket acceptTlsSocket(SSLServerSocket ssl_server) throws java.io.IOException {
+		SSLSocket ssl_socket=(SSLSocket)ssl_server.accept();
+		if (session_cache!=null) session_cache.watch(ssl_socket);
+		return ssl_socket;
+	}
+
 }
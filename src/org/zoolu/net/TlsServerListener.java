@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import javax.net.ssl.SSLSocket;
+
+
+/** Listener for TlsServer events.
+  */
+public interface TlsServerListener {
+
+	/** When a new connection has been accepted and the TLS handshake has been completed.
+	 * <p>
+	 * It is called by a worker thread of the server, and may block while serving the connection;
+	 * the worker is given back to the server when this method returns.
+	 * The socket is not closed by the server.
+	 * @param server the TLS server
+	 * @param socket the connected socket */
+	public void onConnected(TlsServer server, SSLSocket socket);
+
+	/** When the server terminates.
+	 * @param server the TLS server
+	 * @param error the exception that caused the server to terminate, or <i>null</i> */
+	public void onServerTerminated(TlsServer server, Exception error);
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.zoolu.util.Histogram;
+
+
+/** Statistics of a {@link TlsServer}.
+  * <p>
+  * Counters are kept in {@link java.util.concurrent.atomic.LongAdder}s, so that updating them
+  * from the accept thread and from different worker threads has a very low overhead.
+  * Method {@link #getSnapshot()} returns a copy of the current values.
+  */
+public class TlsServerStats {
+
+	/** Accepted connections */
+	final LongAdder accepted=new LongAdder();
+
+	/** Completed handshakes */
+	final LongAdder handshakes=new LongAdder();
+
+	/** Failed handshakes */
+	final LongAdder handshake_failures=new LongAdder();
+
+	/** Exceptions thrown by the listener */
+	final LongAdder listener_exceptions=new LongAdder();
+
+	/** Connections currently handled by workers */
+	final LongAdder active=new LongAdder();
+
+	/** Time between the acceptance of a connection and the completion of the handshake, in nanoseconds */
+	final Histogram handshake_latency=new Histogram();
+
+	/** Time the statistics have been started or reset, in nanoseconds */
+	volatile long start_time=System.nanoTime();
+
+
+	/** Resets all counters and histograms. */
+	public void reset() {
+		accepted.reset();
+		handshakes.reset();
+		handshake_failures.reset();
+		listener_exceptions.reset();
+		handshake_latency.reset();
+		start_time=System.nanoTime();
+	}
+
+
+	/** Gets a snapshot of the current values.
+	 * @return the snapshot */
+	public Snapshot getSnapshot() {
+		return new Snapshot(this);
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getSnapshot().toString();
+	}
+
+
+	/** Immutable copy of the statistics of a TlsServer.
+	  */
+	public static class Snapshot {
+
+		/** Accepted connections */
+		public final long accepted;
+
+		/** Completed handshakes */
+		public final long handshakes;
+
+		/** Failed handshakes */
+		public final long handshake_failures;
+
+		/** Exceptions thrown by the listener */
+		public final long listener_exceptions;
+
+		/** Connections currently handled by workers */
+		public final long active;
+
+		/** Time between the acceptance of a connection and the completion of the handshake, in nanoseconds */
+		public final Histogram.Snapshot handshake_latency;
+
+		/** Time elapsed since the statistics have been started or reset, in nanoseconds */
+		public final long elapsed_time;
+
+
+		/** Creates a new snapshot. */
+		Snapshot(TlsServerStats stats) {
+			elapsed_time=System.nanoTime()-stats.start_time;
+			accepted=stats.accepted.sum();
+			handshakes=stats.handshakes.sum();
+			handshake_failures=stats.handshake_failures.sum();
+			listener_exceptions=stats.listener_exceptions.sum();
+			active=stats.active.sum();
+			handshake_latency=stats.handshake_latency.getSnapshot();
+		}
+
+		/** Gets the accept rate.
+		 * @return the number of accepted connections per second */
+		public double getAcceptRate() {
+			return elapsed_time>0? accepted*1e9/elapsed_time : 0;
+		}
+
+		/** Gets the handshake failure ratio.
+		 * @return the ratio of failed handshakes, between 0 and 1 */
+		public double getFailureRatio() {
+			long total=handshakes+handshake_failures;
+			return total>0? (double)handshake_failures/total : 0;
+		}
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			StringBuffer sb=new StringBuffer();
+			sb.append("accepted=").append(accepted).append(String.format(" (%.1f/s)",getAcceptRate()));
+			sb.append(", handshakes=").append(handshakes);
+			sb.append(", failures=").append(handshake_failures);
+			sb.append(", errors=").append(listener_exceptions);
+			sb.append(", active=").append(active);
+			sb.append(", handshake_latency=[").append(handshake_latency).append(']');
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+
+/** TLS session cache configuration and resumption statistics.
+  * <p>
+  * A session cache sets size and timeout of the client and server session caches of
+  * the {@link TlsSocketFactory}, {@link TlsServerFactory}, or {@link TlsSelector} it is attached to,
+  * and counts how many handshakes resumed a cached session (hits) and how many
+  * performed a full handshake (misses).
+  * <p>
+  * Client sessions are cached per peer, keyed by host and port. Sockets created
+  * through {@link TlsSocketFactory} always carry the peer host and port, so that reconnections
+  * to the same server can resume the previous session.
+  * <p>
+  * A handshake is counted as resumed when the negotiated session has been created before the handshake started;
+  * this holds for both TLS 1.2 session-id/ticket resumption and TLS 1.3 PSK resumption.
+  */
+public class TlsSessionCache {
+
+	/** Default maximum number of cached sessions (0 means no limit) */
+	public static int DEFAULT_CACHE_SIZE=20480;
+
+	/** Default session timeout, in seconds (0 means no limit) */
+	public static int DEFAULT_TIMEOUT=86400;
+
+
+	/** Maximum number of cached sessions */
+	int cache_size;
+
+	/** Session timeout, in seconds */
+	int timeout;
+
+	/** Number of resumed handshakes */
+	LongAdder hits=new LongAdder();
+
+	/** Number of full handshakes */
+	LongAdder misses=new LongAdder();
+
+
+
+	/** Creates a new session cache with default size and timeout. */
+	public TlsSessionCache() {
+		this(DEFAULT_CACHE_SIZE,DEFAULT_TIMEOUT);
+	}
+
+
+	/** Creates a new session cache.
+	 * @param cache_size maximum number of cached sessions (0 means no limit)
+	 * @param timeout session timeout, in seconds (0 means no limit) */
+	public TlsSessionCache(int cache_size, int timeout) {
+		if (cache_size<0 || timeout<0) throw new IllegalArgumentException("Invalid cache size or timeout: "+cache_size+", "+timeout);
+		this.cache_size=cache_size;
+		this.timeout=timeout;
+	}
+
+
+	/** Enables or disables session tickets (RFC 5077 and TLS 1.3 stateless resumption), both for clients and servers.
+	 * <p>
+	 * The JSSE provider reads this setting only once, so this method has to be called before any TLS context is created.
+	 * @param enabled whether session tickets are used */
+	public static void setSessionTicketsEnabled(boolean enabled) {
+		System.setProperty("jdk.tls.client.enableSessionTicketExtension",String.valueOf(enabled));
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension",String.valueOf(enabled));
+	}
+
+
+	/** Gets the maximum number of cached sessions.
+	 * @return the cache size */
+	public int getCacheSize() {
+		return cache_size;
+	}
+
+
+	/** Gets the session timeout.
+	 * @return the timeout, in seconds */
+	public int getTimeout() {
+		return timeout;
+	}
+
+
+	/** Configures a session context with size and timeout of this cache.
+	 * @param session_context the client or server session context */
+	public void apply(SSLSessionContext session_context) {
+		if (session_context==null) return;
+		// else
+		session_context.setSessionCacheSize(cache_size);
+		session_context.setSessionTimeout(timeout);
+	}
+
+
+	/** Starts collecting resumption statistics on a socket.
+	 * It has to be called before the handshake starts.
+	 * @param ssl_socket the socket */
+	public void watch(SSLSocket ssl_socket) {
+		final long start_time=System.currentTimeMillis();
+		ssl_socket.addHandshakeCompletedListener(event->onHandshakeCompleted(event.getSession(),start_time));
+	}
+
+
+	/** When a handshake has been completed.
+	 * @param session the negotiated session
+	 * @param start_time the time before the handshake started, in milliseconds */
+	void onHandshakeCompleted(SSLSession session, long start_time) {
+		if (session.getCreationTime()<start_time) hits.increment();
+		else misses.increment();
+	}
+
+
+	/** Gets the number of resumed handshakes.
+	 * @return the number of cache hits */
+	public long getHits() {
+		return hits.sum();
+	}
+
+
+	/** Gets the number of full handshakes.
+	 * @return the number of cache misses */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+
+	/** Gets the ratio of resumed handshakes.
+	 * @return the hit ratio, between 0 and 1 */
+	public double getHitRatio() {
+		long hit_count=hits.sum();
+		long total=hit_count+misses.sum();
+		return total>0? (double)hit_count/total : 0;
+	}
+
+
+	/** Resets the hit and miss counters. */
+	public void reset() {
+		hits.reset();
+		misses.reset();
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[cache_size="+cache_size+",timeout="+timeout+",hits="+getHits()+",misses="+getMisses()+"]";
+	}
+
+}
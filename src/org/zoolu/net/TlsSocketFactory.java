@@ -25,17 +25,12 @@ package org.zoolu.net;
 
 
 import java.net.Socket;
-import java.security.KeyStore;
-import java.security.cert.X509Certificate;
 
 import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 
 /** TLS socket factory.
@@ -43,9 +38,15 @@ import javax.net.ssl.X509TrustManager;
 public class TlsSocketFactory {
 	
 
+	/** SSL context */
+	SSLContext ssl_context;
+
 	/** SSLSocketFactory */
 	SSLSocketFactory ssl_factory;
 
+	/** Session cache, or <i>null</i> */
+	TlsSessionCache session_cache=null;
+
 	/** Whether using client mode in first TLS handshake */
 	boolean client_mode=true;
 
@@ -55,38 +56,44 @@ public class TlsSocketFactory {
 	/* Enabled protocol versions */
 	String[] enabled_protocols=null;
 
+	/* Enabled cipher suites */
+	String[] enabled_cipher_suites=null;
+
 
 
 	/** Creates a new TlsSocketFactory */
 	public TlsSocketFactory(TlsContext tls_context) throws java.security.KeyStoreException, java.security.KeyManagementException, java.security.UnrecoverableKeyException, java.security.NoSuchAlgorithmException {
-		KeyStore ks=tls_context.getKeyStore();
-		// get key managers
-		KeyManagerFactory key_manager_factory=KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-		key_manager_factory.init(ks,TlsContext.DEFAULT_PASSWORD);            
-		KeyManager[] key_managers=key_manager_factory.getKeyManagers();
-		TrustManager[] trust_managers;
-		// get trust managers
-		if (tls_context.isTrustAll()) {
-			X509TrustManager trust_all=new X509TrustManager() {
-				public X509Certificate[] getAcceptedIssuers() {  return new X509Certificate[0];  }
-				public void checkClientTrusted(X509Certificate[] certs, String auth_type) {}
-				public void checkServerTrusted(X509Certificate[] certs, String auth_type) {}
-			};
-			trust_managers=new TrustManager[] { trust_all };  
-		}
-		else {
-			TrustManagerFactory trust_manager_factory=TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-			trust_manager_factory.init(ks);            
-			trust_managers=trust_manager_factory.getTrustManagers();      
-		}
-		// install only the trust managers
+		// get key and trust managers
+		KeyManager[] key_managers=tls_context.getKeyManagers();
+		TrustManager[] trust_managers=tls_context.getTrustManagers();
 		SSLContext sc=SSLContext.getInstance("SSL");
 		sc.init(key_managers,trust_managers,null/*new java.security.SecureRandom()*/);
 		// get the socket factory
+		ssl_context=sc;
 		ssl_factory=sc.getSocketFactory();
 	}
 
 
+	/** Sets the session cache.
+	 * Size and timeout of the cache are applied to the client and server session contexts,
+	 * and resumption statistics are collected for all sockets created afterwards.
+	 * @param session_cache the session cache, or <i>null</i> to stop collecting statistics */
+	public void setSessionCache(TlsSessionCache session_cache) {
+		this.session_cache=session_cache;
+		if (session_cache!=null) {
+			session_cache.apply(ssl_context.getClientSessionContext());
+			session_cache.apply(ssl_context.getServerSessionContext());
+		}
+	}
+
+
+	/** Gets the session cache.
+	 * @return the session cache, or <i>null</i> */
+	public TlsSessionCache getSessionCache() {
+		return session_cache;
+	}
+
+
 	/** Sets whether using client (or server) mode in its first handshake.
 	  * Servers normally authenticate themselves, and clients are not required to do so. */
 	public void setUseClientMode(boolean flag) {
@@ -121,6 +128,25 @@ public class TlsSocketFactory {
 	}
 
 
+	/** Gets the list of supported cipher suites. */
+	public String[] getSupportedCipherSuites() {
+		return ssl_factory.getSupportedCipherSuites();
+	}
+
+
+	/** Gets the list of enabled cipher suites. */
+	public String[] getEnabledCipherSuites() {
+		return enabled_cipher_suites!=null? enabled_cipher_suites : ssl_factory.getDefaultCipherSuites();
+	}
+
+
+	/** Sets the list of enabled cipher suites.
+	 * @param enabled_cipher_suites the cipher suites, or <i>null</i> for the defaults */
+	public void setEnabledCipherSuites(String[] enabled_cipher_suites) {
+		this.enabled_cipher_suites=enabled_cipher_suites;
+	}
+
+
 	/** Inits supported and enabled protocol versions. */
 	private void initSupportedProtocols() {
 		try {
@@ -134,23 +160,52 @@ public class TlsSocketFactory {
 
 
 	/** Creates a new TLS socket.
+	 * The session is cached per remote host and port, once the socket is connected.
 	 * @return the socket
 	 * @throws java.io.IOException */
 	public SSLSocket createTlsSocket() throws java.io.IOException {
-		SSLSocket ssl_socket=(SSLSocket)ssl_factory.createSocket();
-		if (!client_mode) ssl_socket.setUseClientMode(false);
-		if (enabled_protocols!=null) ssl_socket.setEnabledProtocols(enabled_protocols);
-		return ssl_socket;
+		return init((SSLSocket)ssl_factory.createSocket());
+	}
+	
+	/** Creates a new TLS socket connected to a remote host.
+	 * The session is cached per remote host and port, so that following connections to the same peer can resume it.
+	 * @param host remote host
+	 * @param port remote port
+	 * @return the socket
+	 * @throws java.io.IOException */
+	public SSLSocket createTlsSocket(String host, int port) throws java.io.IOException {
+		return init((SSLSocket)ssl_factory.createSocket(host,port));
 	}
 	
 	/** Creates a new TLS socket from a TCP socket.
+	 * If the TCP socket is connected, the session is cached per remote address and port.
 	 * @param socket TCP socket
 	 * @return the TLS socket
 	 * @throws java.io.IOException */
 	public SSLSocket createTlsSocket(Socket socket) throws java.io.IOException {
-		SSLSocket ssl_socket=(SSLSocket)ssl_factory.createSocket(socket,null,socket.getLocalPort(),false);
+		String host=socket.isConnected()? socket.getInetAddress().getHostAddress() : null;
+		return createTlsSocket(socket,host);
+	}
+	
+	/** Creates a new TLS socket from a TCP socket connected to a given host.
+	 * The session is cached per remote host and port.
+	 * @param socket TCP socket
+	 * @param host remote host name, used also for server name indication
+	 * @return the TLS socket
+	 * @throws java.io.IOException */
+	public SSLSocket createTlsSocket(Socket socket, String host) throws java.io.IOException {
+		int port=host!=null? socket.getPort() : socket.getLocalPort();
+		return init((SSLSocket)ssl_factory.createSocket(socket,host,port,false));
+	}
+
+	/** Configures a new TLS socket.
+	 * @param ssl_socket the socket
+	 * @return the same socket */
+	private SSLSocket init(SSLSocket ssl_socket) {
 		if (!client_mode) ssl_socket.setUseClientMode(false);
 		if (enabled_protocols!=null) ssl_socket.setEnabledProtocols(enabled_protocols);
+		if (enabled_cipher_suites!=null) ssl_socket.setEnabledCipherSuites(enabled_cipher_suites);
+		if (session_cache!=null) session_cache.watch(ssl_socket);
 		return ssl_socket;
 	}
 
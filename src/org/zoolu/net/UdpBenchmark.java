@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.zoolu.util.Bytes;
+import org.zoolu.util.Flags;
+import org.zoolu.util.Histogram;
+
+
+/** Load test of {@link UdpProvider} over the loopback interface.
+  * <p>
+  * For each combination of receive mode, packet size, and listener cost, it runs
+  * <i>N</i> sender threads against a UdpProvider bound to 127.0.0.1 and reports:
+  * received packets per second, loss rate, p50/p99 latency, and allocation rate
+  * of the receiver thread.
+  * <p>
+  * The packet rate counts only the packets received while the senders are running, so that it is not
+  * affected by the time spent draining the socket buffer at the end of the run; the loss rate counts also
+  * the packets received while draining.
+  * The latency is the time from the send call to the call of the listener, including the time spent in the
+  * socket buffer; it is measured by writing the sending time into each packet, so it is available only for
+  * packets of at least 8 bytes.
+  * <p>
+  * Receive modes are the ones supported by UdpProvider ('blocking' and 'nonblocking'),
+  * so that they can be compared under the same load.
+  * <p>
+  * Usage: <code>java org.zoolu.net.UdpBenchmark [options]</code> (option '-h' for help).
+  */
+public class UdpBenchmark {
+
+	/** Result of a single run. */
+	public static class Result {
+
+		/** Receive mode */
+		public String mode;
+
+		/** Packet size */
+		public int size;
+
+		/** Listener cost in nanoseconds */
+		public long cost;
+
+		/** Sent packets */
+		public long sent;
+
+		/** Received packets */
+		public long received;
+
+		/** Received packets per second */
+		public double pps;
+
+		/** Latency from send to the call of the listener, in nanoseconds */
+		public Histogram.Snapshot latency;
+
+		/** Receiver allocation rate, in bytes per second (-1 if not available) */
+		public double alloc_rate;
+
+		/** Gets the loss rate.
+		 * @return the fraction of lost packets */
+		public double getLossRate() {
+			return sent>0? (double)(sent-received)/sent : 0;
+		}
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			boolean has_latency=latency.getCount()>0;
+			return String.format("%-12s %6d %8d %12.0f %8.2f%% %10s %10s %12s",mode,size,cost,pps,getLossRate()*100,has_latency? String.valueOf(latency.getPercentile(50)) : "n/a",has_latency? String.valueOf(latency.getPercentile(99)) : "n/a",alloc_rate>=0? String.format("%.1f",alloc_rate/1000000) : "n/a");
+		}
+
+		/** Gets the header line for {@link #toString()}.
+		 * @return the header */
+		public static String getHeader() {
+			return String.format("%-12s %6s %8s %12s %9s %10s %10s %12s","mode","size","cost[ns]","rx[pkt/s]","loss","p50[ns]","p99[ns]","alloc[MB/s]");
+		}
+	}
+
+
+	/** Number of senders */
+	int senders;
+
+	/** Duration of each run, in milliseconds */
+	long duration;
+
+	/** Rate of each sender in packets per second (0 for no limit) */
+	long rate;
+
+	/** Receive buffer size (0 for system default) */
+	int rcvbuf;
+
+
+	/** Creates a new benchmark.
+	 * @param senders number of sender threads
+	 * @param duration duration of each run, in milliseconds
+	 * @param rate rate of each sender in packets per second (0 for no limit)
+	 * @param rcvbuf receive buffer size (0 for system default) */
+	public UdpBenchmark(int senders, long duration, long rate, int rcvbuf) {
+		this.senders=senders;
+		this.duration=duration;
+		this.rate=rate;
+		this.rcvbuf=rcvbuf;
+	}
+
+
+	/** Runs a single test.
+	 * @param mode receive mode ('blocking' or 'nonblocking')
+	 * @param size packet size
+	 * @param cost listener cost, in nanoseconds of busy waiting per packet
+	 * @return the result
+	 * @throws IOException */
+	public Result run(String mode, int size, final long cost) throws IOException {
+		DatagramChannel channel=DatagramChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+		UdpProviderConfig config=new UdpProviderConfig();
+		config.receive_buffer_size=rcvbuf;
+		config.max_datagram_size=Math.max(size,1);
+		config.non_blocking=mode.equals("nonblocking");
+		final LongAdder received=new LongAdder();
+		final Histogram latency=new Histogram();
+		UdpProvider udp=new UdpProvider(channel.socket(),config,new UdpProviderListener() {
+			public void onReceivedPacket(UdpProvider udp, DatagramPacket packet) {
+				received.increment();
+				if (packet.getLength()>=8) latency.add(System.nanoTime()-Bytes.toInt(packet.getData(),packet.getOffset(),8));
+				if (cost>0) spin(cost);
+			}
+			public void onServiceTerminated(UdpProvider udp, Exception error) {
+				if (error!=null) error.printStackTrace();
+			}
+		});
+		ThreadMXBean mx=ManagementFactory.getThreadMXBean();
+		long alloc_start=getAllocatedBytes(mx,udp.getId());
+		final SocketAddress dest_soaddr=channel.getLocalAddress();
+		final LongAdder sent=new LongAdder();
+		long start_time=System.nanoTime();
+		final long end_time=start_time+duration*1000000L;
+		Thread[] threads=new Thread[senders];
+		for (int i=0; i<senders; i++) {
+			threads[i]=new Thread(()->{
+				try (DatagramSocket socket=new DatagramSocket()) {
+					byte[] data=new byte[size];
+					DatagramPacket packet=new DatagramPacket(data,data.length,dest_soaddr);
+					long interval=rate>0? 1000000000L/rate : 0;
+					long next=System.nanoTime();
+					long now;
+					while ((now=System.nanoTime())<end_time) {
+						if (size>=8) Bytes.fromInt64(now,data,0);
+						socket.send(packet);
+						sent.increment();
+						if (interval>0) {
+							next+=interval;
+							long wait=next-System.nanoTime();
+							if (wait>0) LockSupport.parkNanos(wait);
+						}
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			try { t.join(); } catch (InterruptedException e) {}
+		}
+		double send_secs=(System.nanoTime()-start_time)/1e9;
+		long received_in_window=received.sum();
+		// let the receiver drain the socket buffer
+		long last=-1;
+		while (received.sum()!=last) {
+			last=received.sum();
+			LockSupport.parkNanos(100000000L);
+		}
+		double secs=(System.nanoTime()-start_time)/1e9;
+		long alloc_end=getAllocatedBytes(mx,udp.getId());
+		udp.halt();
+		channel.close();
+		Result result=new Result();
+		result.mode=mode;
+		result.size=size;
+		result.cost=cost;
+		result.sent=sent.sum();
+		result.received=received.sum();
+		result.pps=received_in_window/send_secs;
+		result.latency=latency.getSnapshot();
+		result.alloc_rate=alloc_start>=0 && alloc_end>=0? (alloc_end-alloc_start)/secs : -1;
+		return result;
+	}
+
+
+	/** Busy waits for a given time. */
+	static void spin(long nanosecs) {
+		long end=System.nanoTime()+nanosecs;
+		while (System.nanoTime()<end);
+	}
+
+
+	/** Gets the number of bytes allocated by a thread, if supported by the JVM.
+	 * @return the allocated bytes, or -1 */
+	static long getAllocatedBytes(ThreadMXBean mx, long thread_id) {
+		if (mx instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun_mx=(com.sun.management.ThreadMXBean)mx;
+			if (sun_mx.isThreadAllocatedMemorySupported() && sun_mx.isThreadAllocatedMemoryEnabled()) return sun_mx.getThreadAllocatedBytes(thread_id);
+		}
+		return -1;
+	}
+
+
+	/** Parses a comma-separated list of values. */
+	private static long[] parseList(String str) {
+		String[] values=str.split(",");
+		long[] list=new long[values.length];
+		for (int i=0; i<values.length; i++) list[i]=Long.parseLong(values[i].trim());
+		return list;
+	}
+
+
+	/** Main method. */
+	public static void main(String[] args) throws IOException {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this message");
+		int senders=flags.getInteger("-n",4,"<num>","number of sender threads (default 4)");
+		long duration=flags.getLong("-t",2000,"<millisecs>","duration of each run (default 2000)");
+		long rate=flags.getLong("-r",0,"<pps>","packet rate of each sender (default 0, that is no limit)");
+		int rcvbuf=flags.getInteger("-b",0,"<bytes>","socket receive buffer size (default system value)");
+		String sizes=flags.getString("-s","64,512,1400","<list>","comma-separated list of packet sizes (default 64,512,1400)");
+		String costs=flags.getString("-c","0,1000,10000","<list>","comma-separated list of listener costs in nanoseconds (default 0,1000,10000)");
+		String modes=flags.getString("-m","blocking,nonblocking","<list>","comma-separated list of receive modes (default blocking,nonblocking)");
+		if (help) {
+			System.out.println(flags.toUsageString(UdpBenchmark.class));
+			return;
+		}
+		// else
+		UdpBenchmark benchmark=new UdpBenchmark(senders,duration,rate,rcvbuf);
+		System.out.println("senders="+senders+", duration="+duration+"ms, rate="+(rate>0? rate+"pkt/s" : "unlimited"));
+		System.out.println(Result.getHeader());
+		for (long size : parseList(sizes)) {
+			for (long cost : parseList(costs)) {
+				for (String mode : modes.split(",")) {
+					System.out.println(benchmark.run(mode.trim(),(int)size,cost));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zoolu.util.Bytes;
+import org.zoolu.util.Clock;
+import org.zoolu.util.Random;
+import org.zoolu.util.Timer;
+
+
+/** Application-level fragmentation and reassembly of UDP payloads.
+  * <p>
+  * Payloads longer than the maximum datagram size are split into fragments that fit
+  * the path MTU, so that they are never fragmented at IP level.
+  * Each datagram is prefixed by an 8-byte header:
+  * <pre>
+  * message id (4B) | fragment index (2B) | fragment count (2B)
+  * </pre>
+  * Both peers have to use a fragmenter, since also non-fragmented payloads carry the header.
+  * <p>
+  * Incomplete messages are kept in a reassembly buffer keyed by source address and message id.
+  * The buffer is bounded in size: when the maximum size is reached the oldest incomplete
+  * messages are evicted. Fragments are stored sparsely, and the bookkeeping of each message
+  * and fragment is charged to the buffer size too, so that the bound holds also for many
+  * small or sparse fragments. Incomplete messages are also evicted after a timeout, through
+  * a {@link org.zoolu.util.Timer} that runs only while the buffer is not empty.
+  * <p>
+  * A fragmenter is attached to a provider through {@link UdpProvider#setFragmenter(UdpFragmenter)}.
+  */
+public class UdpFragmenter {
+
+	/** Default maximum datagram size, including the fragment header */
+	public static int DEFAULT_MAX_DATAGRAM_SIZE=1200;
+
+	/** Default maximum size of the reassembly buffer, in bytes */
+	public static int DEFAULT_BUFFER_SIZE=4*1024*1024;
+
+	/** Default reassembly timeout, in milliseconds */
+	public static long DEFAULT_TIMEOUT=5000;
+
+	/** Header length */
+	public static final int HDR_LEN=8;
+
+	/** Maximum number of fragments of a message */
+	static final int MAX_FRAGMENTS=0xffff;
+
+	/** Memory charged to the reassembly buffer for each incomplete message, in addition to its fragments */
+	static final int REASSEMBLY_OVERHEAD=128;
+
+	/** Memory charged to the reassembly buffer for each fragment, in addition to its payload */
+	static final int FRAGMENT_OVERHEAD=64;
+
+
+	/** Maximum datagram size */
+	int max_datagram_size;
+
+	/** Maximum size of the reassembly buffer */
+	int buffer_size;
+
+	/** Reassembly timeout */
+	long timeout;
+
+	/** Next message id */
+	AtomicInteger message_id=new AtomicInteger(Random.nextInt());
+
+	/** Incomplete messages, in order of arrival of the first fragment */
+	LinkedHashMap<Key,Reassembly> reassemblies=new LinkedHashMap<>();
+
+	/** Current size of the reassembly buffer */
+	int buffered=0;
+
+	/** Eviction timer */
+	Timer timer=null;
+
+	/** Number of reassembled messages */
+	long reassembled=0;
+
+	/** Number of messages evicted for timeout */
+	long timeout_evictions=0;
+
+	/** Number of messages evicted since the buffer was full */
+	long overflow_evictions=0;
+
+
+	/** Creates a new fragmenter with default values. */
+	public UdpFragmenter() {
+		this(DEFAULT_MAX_DATAGRAM_SIZE,DEFAULT_BUFFER_SIZE,DEFAULT_TIMEOUT);
+	}
+
+
+	/** Creates a new fragmenter.
+	 * @param max_datagram_size maximum datagram size, including the fragment header
+	 * @param buffer_size maximum size of the reassembly buffer, in bytes
+	 * @param timeout reassembly timeout, in milliseconds */
+	public UdpFragmenter(int max_datagram_size, int buffer_size, long timeout) {
+		if (max_datagram_size<=HDR_LEN || max_datagram_size>UdpProvider.BUFFER_SIZE) throw new IllegalArgumentException("Invalid maximum datagram size: "+max_datagram_size);
+		this.max_datagram_size=max_datagram_size;
+		this.buffer_size=buffer_size;
+		this.timeout=timeout;
+	}
+
+
+	/** Gets the maximum datagram size.
+	 * @return the size, including the fragment header */
+	public int getMaxDatagramSize() {
+		return max_datagram_size;
+	}
+
+
+	/** Gets the maximum payload size.
+	 * @return the size of the longest payload that can be sent */
+	public int getMaxPayloadSize() {
+		return (max_datagram_size-HDR_LEN)*MAX_FRAGMENTS;
+	}
+
+
+	/** Gets the number of reassembled messages.
+	 * @return the number of messages */
+	public synchronized long getReassembledMessages() {
+		return reassembled;
+	}
+
+
+	/** Gets the number of incomplete messages evicted for timeout.
+	 * @return the number of messages */
+	public synchronized long getTimeoutEvictions() {
+		return timeout_evictions;
+	}
+
+
+	/** Gets the number of incomplete messages evicted since the reassembly buffer was full.
+	 * @return the number of messages */
+	public synchronized long getOverflowEvictions() {
+		return overflow_evictions;
+	}
+
+
+	/** Gets the current size of the reassembly buffer.
+	 * @return the size in bytes */
+	public synchronized int getBufferedBytes() {
+		return buffered;
+	}
+
+
+	/** Splits a packet into fragments.
+	 * @param packet the packet to be sent
+	 * @return the fragments */
+	public DatagramPacket[] fragment(DatagramPacket packet) {
+		byte[] buf=packet.getData();
+		int off=packet.getOffset();
+		int len=packet.getLength();
+		SocketAddress dest_soaddr=packet.getSocketAddress();
+		int frag_size=max_datagram_size-HDR_LEN;
+		int n=len==0? 1 : (len+frag_size-1)/frag_size;
+		if (n>MAX_FRAGMENTS) throw new IllegalArgumentException("Payload too long: "+len);
+		// else
+		int id=message_id.getAndIncrement();
+		DatagramPacket[] fragments=new DatagramPacket[n];
+		for (int i=0; i<n; i++) {
+			int frag_len=Math.min(frag_size,len-i*frag_size);
+			byte[] data=new byte[HDR_LEN+frag_len];
+			Bytes.fromInt32(id&0xffffffffL,data,0);
+			Bytes.fromInt16(i,data,4);
+			Bytes.fromInt16(n,data,6);
+			Bytes.copy(buf,off+i*frag_size,data,HDR_LEN,frag_len);
+			fragments[i]=new DatagramPacket(data,data.length,dest_soaddr);
+		}
+		return fragments;
+	}
+
+
+	/** Processes a received fragment.
+	 * @param packet the received packet
+	 * @return the reassembled packet, or <i>null</i> if the message is not complete yet (or the fragment is not valid) */
+	public DatagramPacket reassemble(DatagramPacket packet) {
+		byte[] buf=packet.getData();
+		int off=packet.getOffset();
+		int len=packet.getLength();
+		if (len<HDR_LEN) return null;
+		// else
+		int index=Bytes.toInt16(buf,off+4);
+		int count=Bytes.toInt16(buf,off+6);
+		if (count==0 || index>=count) return null;
+		// else
+		if (count==1) {
+			packet.setData(buf,off+HDR_LEN,len-HDR_LEN);
+			return packet;
+		}
+		// else
+		Key key=new Key(packet.getSocketAddress(),Bytes.toInt32(buf,off));
+		int frag_len=len-HDR_LEN;
+		int frag_cost=frag_len+FRAGMENT_OVERHEAD;
+		ArrayList<Timer> timers=new ArrayList<>();
+		DatagramPacket reassembled_packet=null;
+		synchronized (this) {
+			Reassembly r=reassemblies.get(key);
+			if (r==null) {
+				if (REASSEMBLY_OVERHEAD+frag_cost>buffer_size) return null;
+				// else
+				r=new Reassembly(count);
+				reassemblies.put(key,r);
+				buffered+=r.cost;
+			}
+			if (r.count!=count || r.fragments.containsKey(index)) return null;
+			// else
+			r.fragments.put(index,Bytes.copy(buf,off+HDR_LEN,frag_len));
+			r.size+=frag_len;
+			r.cost+=frag_cost;
+			buffered+=frag_cost;
+			if (r.fragments.size()==count) {
+				reassemblies.remove(key);
+				buffered-=r.cost;
+				reassembled++;
+				byte[] data=new byte[r.size];
+				int data_off=0;
+				for (int i=0; i<count; i++) {
+					byte[] fragment=r.fragments.get(i);
+					Bytes.copy(fragment,data,data_off);
+					data_off+=fragment.length;
+				}
+				reassembled_packet=new DatagramPacket(data,data.length,packet.getSocketAddress());
+			}
+			// evict oldest incomplete messages if the buffer is full
+			for (Iterator<Reassembly> i=reassemblies.values().iterator(); buffered>buffer_size && i.hasNext(); ) {
+				Reassembly oldest=i.next();
+				i.remove();
+				buffered-=oldest.cost;
+				overflow_evictions++;
+			}
+			if (reassemblies.size()>0 && timer==null) {
+				timer=new Timer(timeout/2+1,this::processTimeout);
+				timer.start(true);
+			}
+			else
+			if (reassemblies.size()==0 && timer!=null) {
+				timers.add(timer);
+				timer=null;
+			}
+		}
+		for (Timer t : timers) t.halt();
+		return reassembled_packet;
+	}
+
+
+	/** Discards all incomplete messages. */
+	public void clear() {
+		Timer t;
+		synchronized (this) {
+			reassemblies.clear();
+			buffered=0;
+			t=timer;
+			timer=null;
+		}
+		if (t!=null) t.halt();
+	}
+
+
+	/** Evicts incomplete messages older than the timeout. */
+	private synchronized void processTimeout(Timer t) {
+		if (t!=timer) return;
+		// else
+		long expire=Clock.getDefaultClock().currentTimeMillis()-timeout;
+		for (Iterator<Reassembly> i=reassemblies.values().iterator(); i.hasNext(); ) {
+			Reassembly r=i.next();
+			// reassemblies are sorted by creation time
+			if (r.time>expire) break;
+			// else
+			i.remove();
+			buffered-=r.cost;
+			timeout_evictions++;
+		}
+		if (reassemblies.size()>0) {
+			timer=new Timer(timeout/2+1,this::processTimeout);
+			timer.start(true);
+		}
+		else timer=null;
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[max_datagram_size="+max_datagram_size+",buffer_size="+buffer_size+",timeout="+timeout+"]";
+	}
+
+
+	/** Reassembly key, formed by source address and message id. */
+	static class Key {
+
+		/** Source address */
+		SocketAddress soaddr;
+
+		/** Message id */
+		long id;
+
+		/** Creates a new key. */
+		Key(SocketAddress soaddr, long id) {
+			this.soaddr=soaddr;
+			this.id=id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			// else
+			Key k=(Key)obj;
+			return id==k.id && soaddr.equals(k.soaddr);
+		}
+
+		@Override
+		public int hashCode() {
+			return soaddr.hashCode()*31+(int)id;
+		}
+	}
+
+
+	/** Incomplete message. */
+	static class Reassembly {
+
+		/** Creation time, in milliseconds */
+		long time=Clock.getDefaultClock().currentTimeMillis();
+
+		/** Number of fragments of the message */
+		int count;
+
+		/** Received fragments, by index */
+		HashMap<Integer,byte[]> fragments=new HashMap<>();
+
+		/** Total size of the received fragments */
+		int size=0;
+
+		/** Memory charged to the reassembly buffer */
+		int cost=REASSEMBLY_OVERHEAD;
+
+		/** Creates a new reassembly. */
+		Reassembly(int count) {
+			this.count=count;
+		}
+	}
+
+}
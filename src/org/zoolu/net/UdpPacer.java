@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import org.zoolu.util.Bytes;
+import org.zoolu.util.TokenBucket;
+
+
+/** Output pacing for a {@link UdpProvider}.
+  * <p>
+  * Outgoing packets are put in a per-destination send queue and are sent only when
+  * both the provider token bucket and the destination token bucket contain enough tokens
+  * (one token per byte). Sending never blocks the caller; if the queue of a destination
+  * is full, the packet is discarded and an IOException is thrown.
+  * <p>
+  * All queues are drained by a single pacing thread, that waits for the next packet
+  * deadline with nanosecond precision ({@link java.util.concurrent.locks.LockSupport#parkNanos(long)}).
+  * Destinations are served in round-robin order, so that a slow destination does not
+  * block the other ones: a destination that has sent a packet is moved to the end of the service order,
+  * and when the provider token bucket is empty the next pass starts from the first destination not served.
+  * <p>
+  * A pacer is attached to a provider through {@link UdpProvider#setPacer(UdpPacer)},
+  * and it is stopped when the provider terminates.
+  */
+public class UdpPacer {
+
+	/** Default maximum number of queued packets for each destination */
+	public static int DEFAULT_QUEUE_SIZE=1024;
+
+	/** Maximum time to wait when no packet is queued (in nanoseconds) */
+	static final long IDLE_TIME=1000000000L;
+
+
+	/** Provider rate, in bytes per second */
+	long rate;
+
+	/** Provider burst size, in bytes */
+	long burst;
+
+	/** Destination rate, in bytes per second (0 for no per-destination limit) */
+	long dest_rate;
+
+	/** Destination burst size, in bytes */
+	long dest_burst;
+
+	/** Maximum number of queued packets for each destination */
+	int queue_size=DEFAULT_QUEUE_SIZE;
+
+	/** Provider token bucket */
+	TokenBucket bucket;
+
+	/** Active destinations, in service order */
+	LinkedHashMap<SocketAddress,Destination> destinations=new LinkedHashMap<>();
+
+	/** Total number of queued packets */
+	int queued=0;
+
+	/** Number of packets discarded since the queue was full */
+	long dropped=0;
+
+	/** UDP provider */
+	UdpProvider udp=null;
+
+	/** Pacing thread */
+	volatile Thread thread=null;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+	/** Creates a new pacer.
+	 * @param rate the maximum provider output rate, in bytes per second
+	 * @param burst the maximum provider burst size, in bytes */
+	public UdpPacer(long rate, long burst) {
+		this(rate,burst,0,0);
+	}
+
+
+	/** Creates a new pacer.
+	 * @param rate the maximum provider output rate, in bytes per second
+	 * @param burst the maximum provider burst size, in bytes
+	 * @param dest_rate the maximum output rate toward each destination, in bytes per second (0 for no per-destination limit)
+	 * @param dest_burst the maximum burst size toward each destination, in bytes */
+	public UdpPacer(long rate, long burst, long dest_rate, long dest_burst) {
+		this.rate=rate;
+		this.burst=burst;
+		this.dest_rate=dest_rate;
+		this.dest_burst=dest_burst;
+		bucket=new TokenBucket(rate,burst);
+	}
+
+
+	/** Sets the maximum number of queued packets for each destination.
+	 * @param queue_size the queue size */
+	public void setQueueSize(int queue_size) {
+		this.queue_size=queue_size;
+	}
+
+
+	/** Gets the maximum number of queued packets for each destination.
+	 * @return the queue size */
+	public int getQueueSize() {
+		return queue_size;
+	}
+
+
+	/** Gets the current number of queued packets.
+	 * @return the number of packets */
+	public synchronized int getQueuedPackets() {
+		return queued;
+	}
+
+
+	/** Gets the number of packets discarded since the destination queue was full.
+	 * @return the number of packets */
+	public synchronized long getDroppedPackets() {
+		return dropped;
+	}
+
+
+	/** Attaches this pacer to a provider and starts the pacing thread. */
+	synchronized void attach(UdpProvider udp) {
+		if (this.udp!=null) throw new IllegalStateException("Pacer already attached to "+this.udp);
+		// else
+		this.udp=udp;
+		thread=new Thread(this::run,"UdpPacer-"+udp.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/** Queues a packet.
+	 * The packet data is copied, so that the packet can be reused by the caller.
+	 * @param packet the packet to be sent
+	 * @throws IOException if the destination queue is full */
+	public void send(DatagramPacket packet) throws IOException {
+		SocketAddress dest_soaddr=packet.getSocketAddress();
+		byte[] data=Bytes.copy(packet.getData(),packet.getOffset(),packet.getLength());
+		boolean was_empty;
+		synchronized (this) {
+			Destination dest=destinations.get(dest_soaddr);
+			if (dest==null) {
+				dest=new Destination(dest_soaddr);
+				destinations.put(dest_soaddr,dest);
+			}
+			if (dest.queue.size()>=queue_size) {
+				dropped++;
+				throw new IOException("Send queue full for destination "+dest_soaddr);
+			}
+			// else
+			dest.queue.add(new DatagramPacket(data,data.length,dest_soaddr));
+			was_empty=queued==0;
+			queued++;
+		}
+		Thread thread=this.thread;
+		if (was_empty && thread!=null) LockSupport.unpark(thread);
+	}
+
+
+	/** Stops the pacing thread. Queued packets are discarded. */
+	public void halt() {
+		stop=true;
+		Thread thread=this.thread;
+		if (thread!=null) LockSupport.unpark(thread);
+	}
+
+
+	/** Pacing loop. */
+	private void run() {
+		ArrayList<DatagramPacket> ready=new ArrayList<>();
+		while (!stop) {
+			long wait=collectReadyPackets(ready);
+			for (int i=0; i<ready.size(); i++) {
+				try {
+					udp.sendNow(ready.get(i));
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (ready.size()==0 && wait>0) LockSupport.parkNanos(this,wait);
+			ready.clear();
+		}
+		synchronized (this) {
+			destinations.clear();
+			queued=0;
+		}
+	}
+
+
+	/** Moves the packets that can be sent now from the destination queues to a given list.
+	 * At most one packet per destination is moved each time, and served destinations are moved to the end
+	 * of the service order, in order to serve destinations in round-robin.
+	 * @param ready the list where packets that can be sent are added
+	 * @return the time to wait before the next packet can be sent, in nanoseconds */
+	private synchronized long collectReadyPackets(ArrayList<DatagramPacket> ready) {
+		if (queued==0) return IDLE_TIME;
+		// else
+		long wait=IDLE_TIME;
+		ArrayList<Destination> served=new ArrayList<>();
+		for (Iterator<Destination> i=destinations.values().iterator(); i.hasNext(); ) {
+			Destination dest=i.next();
+			DatagramPacket packet=dest.queue.peek();
+			if (packet==null) {
+				// remove idle destinations, once their bucket has been refilled
+				if (dest.bucket==null || dest.bucket.isFull()) i.remove();
+				continue;
+			}
+			// else
+			int len=packet.getLength();
+			long dest_wait=dest.bucket!=null? dest.bucket.getWaitingTime(len) : 0;
+			if (dest_wait>0) {
+				wait=Math.min(wait,dest_wait);
+				continue;
+			}
+			// else
+			if (!bucket.tryConsume(len)) {
+				// the next pass starts from this destination
+				wait=Math.min(wait,bucket.getWaitingTime(len));
+				break;
+			}
+			// else
+			if (dest.bucket!=null) dest.bucket.tryConsume(len);
+			dest.queue.poll();
+			queued--;
+			ready.add(packet);
+			i.remove();
+			served.add(dest);
+		}
+		for (Destination dest : served) destinations.put(dest.soaddr,dest);
+		return wait;
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[rate="+rate+",burst="+burst+",dest_rate="+dest_rate+",dest_burst="+dest_burst+"]";
+	}
+
+
+	/** Queue and token bucket of a destination. */
+	class Destination {
+
+		/** Destination address */
+		SocketAddress soaddr;
+
+		/** Queued packets */
+		ArrayDeque<DatagramPacket> queue=new ArrayDeque<>();
+
+		/** Destination token bucket */
+		TokenBucket bucket=dest_rate>0? new TokenBucket(dest_rate,dest_burst>0? dest_burst : dest_rate) : null;
+
+		/** Creates a new destination. */
+		Destination(SocketAddress soaddr) {
+			this.soaddr=soaddr;
+		}
+	}
+
+}
@@ -26,6 +26,11 @@ import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 import org.zoolu.util.SystemUtils;
 
@@ -39,10 +44,17 @@ import org.zoolu.util.SystemUtils;
   * method is fired.
   * <p> Method onServiceTerminated(UdpProvider) is fired when the the UdpProvider stops 
   * receiving packets.
+  * <p> Traffic statistics (packets, bytes, drops, and listener time)
+  * are collected in a {@link UdpProviderStats} object, returned by {@link #getStats()}.
+  * <p> Socket buffer sizes, traffic class, maximum datagram size, and blocking mode
+  * can be set through a {@link UdpProviderConfig}.
+  * <p> Outgoing packets can be paced through a {@link UdpPacer}.
+  * <p> Payloads longer than the path MTU can be fragmented and reassembled at application level
+  * through a {@link UdpFragmenter}.
   */
 public class UdpProvider extends Thread {
 	
-	/** The reading buffer size */
+	/** The default (and maximum) reading buffer size */
 	public static final int BUFFER_SIZE=65535;
 	  
 	/** Default value for the maximum time that the UDP receiver can remain active after been halted (in milliseconds) */
@@ -69,6 +81,21 @@ public class UdpProvider extends Thread {
 	/** Whether it is running */
 	protected boolean is_running; 
 
+	/** Traffic statistics */
+	protected UdpProviderStats stats=new UdpProviderStats(this);
+
+	/** Socket configuration actually in use */
+	protected UdpProviderConfig effective_config;
+
+	/** Selector, used in non-blocking mode */
+	Selector selector=null;
+
+	/** Output pacer, or <i>null</i> if packets are sent immediately */
+	UdpPacer pacer=null;
+
+	/** Fragmenter, or <i>null</i> if packets are not fragmented */
+	UdpFragmenter fragmenter=null;
+
 
 	  
 	/** Creates a new UdpProvider. */ 
@@ -85,6 +112,29 @@ public class UdpProvider extends Thread {
 	}
 
 
+	/** Creates a new UdpProvider.
+	 * @param socket the UDP socket
+	 * @param config the socket configuration
+	 * @param listener the provider listener
+	 * @throws IOException if the configuration cannot be applied to the socket */ 
+	public UdpProvider(DatagramSocket socket, UdpProviderConfig config, UdpProviderListener listener) throws IOException {
+		this(socket,0,config,listener);
+	}
+
+
+	/** Creates a new UdpProvider.
+	 * @param socket the UDP socket
+	 * @param alive_time maximum time that the UDP receiver remains active without receiving UDP datagrams (in milliseconds)
+	 * @param config the socket configuration
+	 * @param listener the provider listener
+	 * @throws IOException if the configuration cannot be applied to the socket */ 
+	public UdpProvider(DatagramSocket socket, long alive_time, UdpProviderConfig config, UdpProviderListener listener) throws IOException {
+		init(socket,alive_time,listener);
+		if (config!=null) effective_config=config.apply(socket);
+		start();
+	}
+
+
 	/** Inits the UdpProvider. */ 
 	private void init(DatagramSocket socket, long alive_time, UdpProviderListener listener) {
 		this.listener=listener;
@@ -94,6 +144,7 @@ public class UdpProvider extends Thread {
 		this.minimum_length=0; 
 		this.stop=false; 
 		this.is_running=true; 
+		this.effective_config=null;
 	}
 
 
@@ -147,58 +198,212 @@ public class UdpProvider extends Thread {
 	}
 
 
-	/** Sends a UDP packet. */
+	/** Gets the socket configuration actually in use.
+	  * Values are those granted by the system, that may differ from the requested ones.
+	  * @return the effective configuration */
+	public UdpProviderConfig getEffectiveConfig() {
+		try {
+			int max_datagram_size=effective_config!=null? effective_config.max_datagram_size : BUFFER_SIZE;
+			return UdpProviderConfig.getEffectiveConfig(socket,max_datagram_size);
+		}
+		catch (IOException e) {
+			return effective_config!=null? new UdpProviderConfig(effective_config) : null;
+		}
+	}
+
+
+	/** Whether the socket is used in non-blocking mode. */
+	private boolean isNonBlocking() {
+		DatagramChannel channel=socket.getChannel();
+		return channel!=null && !channel.isBlocking();
+	}
+
+
+	/** Gets the traffic statistics.
+	  * @return the statistics of this provider */
+	public UdpProviderStats getStats() {
+		return stats;
+	}
+
+
+	/** Sets an output pacer.
+	  * All packets passed to {@link #send(DatagramPacket)} are then queued and sent by the pacer.
+	  * @param pacer the pacer */
+	public void setPacer(UdpPacer pacer) {
+		pacer.attach(this);
+		this.pacer=pacer;
+		if (stop) pacer.halt();
+	}
+
+
+	/** Gets the output pacer.
+	  * @return the pacer, or <i>null</i> if packets are sent immediately */
+	public UdpPacer getPacer() {
+		return pacer;
+	}
+
+
+	/** Sets a fragmenter.
+	  * All packets passed to {@link #send(DatagramPacket)} are then split into fragments,
+	  * and received fragments are reassembled before being passed to the listener.
+	  * The remote peers must use a fragmenter too.
+	  * @param fragmenter the fragmenter, or <i>null</i> for sending and receiving packets as they are */
+	public void setFragmenter(UdpFragmenter fragmenter) {
+		this.fragmenter=fragmenter;
+	}
+
+
+	/** Gets the fragmenter.
+	  * @return the fragmenter, or <i>null</i> if packets are not fragmented */
+	public UdpFragmenter getFragmenter() {
+		return fragmenter;
+	}
+
+
+	/** Sends a UDP packet.
+	  * If a fragmenter is set, the packet is split into fragments that are sent separately.
+	  * If an output pacer is set, the packet is queued and sent later by the pacer;
+	  * an IOException is thrown if the pacer queue is full.
+	  * In non-blocking mode, an IOException is thrown if the packet cannot be sent since the socket send buffer is full. */
 	public void send(DatagramPacket packet) throws IOException {
-		if (!stop) socket.send(packet);
+		if (!stop) {
+			UdpFragmenter fragmenter=this.fragmenter;
+			if (fragmenter!=null) {
+				for (DatagramPacket fragment : fragmenter.fragment(packet)) {
+					if (pacer!=null) pacer.send(fragment);
+					else sendNow(fragment);
+				}
+			}
+			else
+			if (pacer!=null) pacer.send(packet);
+			else sendNow(packet);
+		}
+	}
+
+
+	/** Sends a UDP packet immediately, without pacing. */
+	void sendNow(DatagramPacket packet) throws IOException {
+		if (!stop) {
+			if (isNonBlocking()) {
+				ByteBuffer bb=ByteBuffer.wrap(packet.getData(),packet.getOffset(),packet.getLength());
+				if (socket.getChannel().send(bb,packet.getSocketAddress())==0) throw new IOException("Socket send buffer full");
+			}
+			else socket.send(packet);
+			stats.onSent(packet.getLength());
+		}
 	}
 
 
 	/** Stops running. */
 	public void halt() {
 		stop=true;
+		Selector selector=this.selector;
+		if (selector!=null) selector.wakeup();
 	}
 
 
 	/** The main thread. */
 	public void run() {
-		
-		byte[] buf=new byte[BUFFER_SIZE];
-		DatagramPacket packet=new DatagramPacket(buf, buf.length);
-					
+		int max_datagram_size=effective_config!=null? effective_config.max_datagram_size : BUFFER_SIZE;
 		Exception error=null;
+		try {
+			if (isNonBlocking()) receiveNonBlocking(new byte[max_datagram_size]);
+			else receiveBlocking(new byte[max_datagram_size]);
+		}
+		catch (Exception e) {
+			error=e;
+			stop=true;
+		} 
+		is_running=false;
+		stats.stopLogging();
+		if (pacer!=null) pacer.halt();
+		if (fragmenter!=null) fragmenter.clear();
+		if (listener!=null) listener.onServiceTerminated(this,error);
+		listener=null;
+	}
+
+	
+	/** Receives packets in blocking mode. */
+	private void receiveBlocking(byte[] buf) throws IOException {
+		DatagramPacket packet=new DatagramPacket(buf, buf.length);
+		long expire=0;
+		if (alive_time>0) expire=System.currentTimeMillis()+alive_time;
+		socket.setSoTimeout(socket_timeout);
+		// loop
+		while(!stop) {
+			try {
+				socket.receive(packet);
+			}
+			catch (InterruptedIOException ie) {
+				if (alive_time>0 && System.currentTimeMillis()>expire) halt();
+				continue;
+			}
+			if (processReceivedPacket(packet) && alive_time>0) expire=System.currentTimeMillis()+alive_time;
+			packet=new DatagramPacket(buf, buf.length);
+		}
+	}
+
+
+	/** Receives packets in non-blocking mode.
+	  * All packets already queued in the socket receive buffer are processed after each selection. */
+	private void receiveNonBlocking(byte[] buf) throws IOException {
+		DatagramChannel channel=socket.getChannel();
+		ByteBuffer bb=ByteBuffer.wrap(buf);
 		long expire=0;
 		if (alive_time>0) expire=System.currentTimeMillis()+alive_time;
+		selector=Selector.open();
 		try {
-			socket.setSoTimeout(socket_timeout);
+			channel.register(selector,SelectionKey.OP_READ);
 			// loop
 			while(!stop) {
-				try {
-					socket.receive(packet);
-				}
-				catch (InterruptedIOException ie) {
+				if (selector.select(socket_timeout)==0) {
 					if (alive_time>0 && System.currentTimeMillis()>expire) halt();
 					continue;
 				}
-				if (packet.getLength()>=minimum_length) {
-					//if (listener!=null) listener.onReceivedPacket(this,packet);
-					if (listener!=null)
-						try { listener.onReceivedPacket(this,packet);
-						}
-						catch (Exception e) {
-							e.printStackTrace();
-						}
-					if (alive_time>0) expire=System.currentTimeMillis()+alive_time;
+				selector.selectedKeys().clear();
+				SocketAddress remote_soaddr;
+				while (!stop && (remote_soaddr=channel.receive(bb))!=null) {
+					DatagramPacket packet=new DatagramPacket(buf,bb.position(),remote_soaddr);
+					if (processReceivedPacket(packet) && alive_time>0) expire=System.currentTimeMillis()+alive_time;
+					bb.clear();
 				}
-				packet=new DatagramPacket(buf, buf.length);
 			}
 		}
-		catch (Exception e) {
-			error=e;
-			stop=true;
-		} 
-		is_running=false;
-		if (listener!=null) listener.onServiceTerminated(this,error);
-		listener=null;
+		finally {
+			Selector selector=this.selector;
+			this.selector=null;
+			selector.close();
+		}
+	}
+
+
+	/** Processes a received packet.
+	 * @param packet the received packet
+	 * @return whether the packet has been passed to the listener, that is not discarded */
+	private boolean processReceivedPacket(DatagramPacket packet) {
+		stats.onReceived(packet.getLength());
+		if (packet.getLength()<minimum_length) {
+			stats.dropped_packets.increment();
+			return false;
+		}
+		// else
+		UdpFragmenter fragmenter=this.fragmenter;
+		if (fragmenter!=null) {
+			packet=fragmenter.reassemble(packet);
+			if (packet==null) return true;
+		}
+		//if (listener!=null) listener.onReceivedPacket(this,packet);
+		if (listener!=null) {
+			long dispatch_time=System.nanoTime();
+			try { listener.onReceivedPacket(this,packet);
+			}
+			catch (Exception e) {
+				stats.listener_exceptions.increment();
+				e.printStackTrace();
+			}
+			stats.listener_time.add(System.nanoTime()-dispatch_time);
+		}
+		return true;
 	}
 
 	
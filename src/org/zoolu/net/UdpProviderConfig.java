@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
+
+
+/** Socket configuration of a {@link UdpProvider}.
+  * <p>
+  * Attributes with value 0 (or -1 for the traffic class) are not set,
+  * and the system defaults are used.
+  * <p>
+  * Since all attributes are public fields, a configuration can also be read from a file
+  * through {@link org.zoolu.util.config.Configure}.
+  * <p>
+  * The kernel may grant values different from the requested ones (e.g. buffer sizes are
+  * limited by system-wide maximum values). The actually applied values are returned by
+  * {@link UdpProvider#getEffectiveConfig()}.
+  */
+public class UdpProviderConfig {
+
+	/** Size of the socket receive buffer (SO_RCVBUF) in bytes; 0 means system default */
+	public int receive_buffer_size=0;
+
+	/** Size of the socket send buffer (SO_SNDBUF) in bytes; 0 means system default */
+	public int send_buffer_size=0;
+
+	/** Traffic class or type-of-service octet (IP_TOS); -1 means system default */
+	public int traffic_class=-1;
+
+	/** Maximum size of received datagrams in bytes; longer datagrams are truncated */
+	public int max_datagram_size=UdpProvider.BUFFER_SIZE;
+
+	/** Whether the socket is used in non-blocking mode.
+	  * Non-blocking mode requires a socket associated to a {@link java.nio.channels.DatagramChannel}
+	  * (e.g. <code>DatagramChannel.open().socket()</code>). */
+	public boolean non_blocking=false;
+
+
+	/** Creates a new configuration with default values. */
+	public UdpProviderConfig() {
+	}
+
+
+	/** Creates a copy of a given configuration.
+	 * @param config the configuration to be copied */
+	public UdpProviderConfig(UdpProviderConfig config) {
+		receive_buffer_size=config.receive_buffer_size;
+		send_buffer_size=config.send_buffer_size;
+		traffic_class=config.traffic_class;
+		max_datagram_size=config.max_datagram_size;
+		non_blocking=config.non_blocking;
+	}
+
+
+	/** Sets the DSCP value.
+	 * It sets the six most significant bits of the traffic class, leaving the ECN bits to 0.
+	 * @param dscp the DSCP value (0-63) */
+	public void setDscp(int dscp) {
+		if (dscp<0 || dscp>63) throw new IllegalArgumentException("Invalid DSCP value: "+dscp);
+		traffic_class=dscp<<2;
+	}
+
+
+	/** Gets the DSCP value.
+	 * @return the DSCP value, or -1 if the traffic class is not set */
+	public int getDscp() {
+		return traffic_class<0? -1 : (traffic_class&0xff)>>2;
+	}
+
+
+	/** Applies this configuration to a given socket.
+	 * @param socket the UDP socket
+	 * @return the configuration with the values actually granted by the system
+	 * @throws IOException */
+	public UdpProviderConfig apply(DatagramSocket socket) throws IOException {
+		if (max_datagram_size<=0 || max_datagram_size>UdpProvider.BUFFER_SIZE) throw new IllegalArgumentException("Invalid maximum datagram size: "+max_datagram_size);
+		if (receive_buffer_size>0) socket.setReceiveBufferSize(receive_buffer_size);
+		if (send_buffer_size>0) socket.setSendBufferSize(send_buffer_size);
+		if (traffic_class>=0) socket.setTrafficClass(traffic_class);
+		DatagramChannel channel=socket.getChannel();
+		if (non_blocking) {
+			if (channel==null) throw new IOException("Non-blocking mode requires a DatagramChannel socket");
+			channel.configureBlocking(false);
+		}
+		else
+		if (channel!=null) channel.configureBlocking(true);
+		return getEffectiveConfig(socket,max_datagram_size);
+	}
+
+
+	/** Gets the configuration currently used by a given socket.
+	 * @param socket the UDP socket
+	 * @param max_datagram_size the maximum size of received datagrams
+	 * @return the configuration
+	 * @throws IOException */
+	static UdpProviderConfig getEffectiveConfig(DatagramSocket socket, int max_datagram_size) throws IOException {
+		UdpProviderConfig config=new UdpProviderConfig();
+		config.receive_buffer_size=socket.getReceiveBufferSize();
+		config.send_buffer_size=socket.getSendBufferSize();
+		config.traffic_class=socket.getTrafficClass();
+		config.max_datagram_size=max_datagram_size;
+		DatagramChannel channel=socket.getChannel();
+		config.non_blocking=channel!=null && !channel.isBlocking();
+		return config;
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return "rcvbuf="+receive_buffer_size+", sndbuf="+send_buffer_size+", tclass="+traffic_class+", maxsize="+max_datagram_size+", nonblocking="+non_blocking;
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.net;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.zoolu.util.Histogram;
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
+import org.zoolu.util.log.Logger;
+import org.zoolu.util.log.LoggerLevel;
+
+
+/** Traffic statistics of a {@link UdpProvider}.
+  * <p>
+  * Counters are kept in {@link java.util.concurrent.atomic.LongAdder}s, so that updating them
+  * from the receiver thread and from different sender threads has a very low overhead.
+  * Method {@link #getSnapshot()} returns a copy of the current values.
+  * <p>
+  * Statistics can also be periodically written to a {@link org.zoolu.util.log.Logger},
+  * through the method {@link #startLogging(Logger, long)}.
+  */
+public class UdpProviderStats {
+
+	/** Received packets */
+	final LongAdder received_packets=new LongAdder();
+
+	/** Received bytes */
+	final LongAdder received_bytes=new LongAdder();
+
+	/** Sent packets */
+	final LongAdder sent_packets=new LongAdder();
+
+	/** Sent bytes */
+	final LongAdder sent_bytes=new LongAdder();
+
+	/** Packets dropped since shorter than the minimum length */
+	final LongAdder dropped_packets=new LongAdder();
+
+	/** Exceptions thrown by the listener */
+	final LongAdder listener_exceptions=new LongAdder();
+
+	/** Listener execution time in nanoseconds */
+	final Histogram listener_time=new Histogram();
+
+	/** Source of the statistics, used for logging */
+	Object source;
+
+	/** Logging timer */
+	Timer log_timer=null;
+
+
+	/** Creates a new statistics object.
+	 * @param source the object the statistics refer to (used only for logging) */
+	public UdpProviderStats(Object source) {
+		this.source=source;
+	}
+
+
+	/** Counts a received packet.
+	 * @param len the packet length */
+	void onReceived(int len) {
+		received_packets.increment();
+		received_bytes.add(len);
+	}
+
+
+	/** Counts a sent packet.
+	 * @param len the packet length */
+	void onSent(int len) {
+		sent_packets.increment();
+		sent_bytes.add(len);
+	}
+
+
+	/** Resets all counters and histograms. */
+	public void reset() {
+		received_packets.reset();
+		received_bytes.reset();
+		sent_packets.reset();
+		sent_bytes.reset();
+		dropped_packets.reset();
+		listener_exceptions.reset();
+		listener_time.reset();
+	}
+
+
+	/** Gets a snapshot of the current values.
+	 * @return the snapshot */
+	public Snapshot getSnapshot() {
+		return new Snapshot(this);
+	}
+
+
+	/** Starts logging the statistics periodically, with level {@link LoggerLevel#INFO}.
+	 * @param logger the logger
+	 * @param millisecs the logging period in milliseconds */
+	public void startLogging(Logger logger, long millisecs) {
+		startLogging(logger,LoggerLevel.INFO,millisecs);
+	}
+
+
+	/** Starts logging the statistics periodically.
+	 * Statistics are logged through daemon timers, that do not prevent the program from terminating.
+	 * @param logger the logger
+	 * @param level the log level
+	 * @param millisecs the logging period in milliseconds */
+	public synchronized void startLogging(final Logger logger, final LoggerLevel level, final long millisecs) {
+		stopLogging();
+		if (logger==null || millisecs<=0) return;
+		// else
+		log_timer=new Timer(millisecs,new TimerListener() {
+			public void onTimeout(Timer t) {
+				synchronized (UdpProviderStats.this) {
+					if (t!=log_timer) return;
+					// else
+					logger.log(level,UdpProviderStats.class,source+": "+getSnapshot());
+					log_timer=new Timer(millisecs,this);
+					log_timer.start(true);
+				}
+			}
+		});
+		log_timer.start(true);
+	}
+
+
+	/** Stops logging the statistics. */
+	public synchronized void stopLogging() {
+		if (log_timer!=null) {
+			log_timer.halt();
+			log_timer=null;
+		}
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getSnapshot().toString();
+	}
+
+
+	/** Immutable copy of the statistics of a UdpProvider.
+	  */
+	public static class Snapshot {
+
+		/** Received packets */
+		public final long received_packets;
+
+		/** Received bytes */
+		public final long received_bytes;
+
+		/** Sent packets */
+		public final long sent_packets;
+
+		/** Sent bytes */
+		public final long sent_bytes;
+
+		/** Packets dropped since shorter than the minimum length */
+		public final long dropped_packets;
+
+		/** Exceptions thrown by the listener */
+		public final long listener_exceptions;
+
+		/** Listener execution time in nanoseconds */
+		public final Histogram.Snapshot listener_time;
+
+
+		/** Creates a new snapshot. */
+		Snapshot(UdpProviderStats stats) {
+			received_packets=stats.received_packets.sum();
+			received_bytes=stats.received_bytes.sum();
+			sent_packets=stats.sent_packets.sum();
+			sent_bytes=stats.sent_bytes.sum();
+			dropped_packets=stats.dropped_packets.sum();
+			listener_exceptions=stats.listener_exceptions.sum();
+			listener_time=stats.listener_time.getSnapshot();
+		}
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			StringBuffer sb=new StringBuffer();
+			sb.append("rx=").append(received_packets).append('/').append(received_bytes).append('B');
+			sb.append(", tx=").append(sent_packets).append('/').append(sent_bytes).append('B');
+			sb.append(", dropped=").append(dropped_packets);
+			sb.append(", errors=").append(listener_exceptions);
+			sb.append(", listener_time=[").append(listener_time).append(']');
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** Pool of heap byte buffers of the same size.
+  * <p>
+  * Buffers returned to the pool through {@link #release(ByteBuffer)} are cleared
+  * and reused by following {@link #get()} calls. At most <i>max_pooled</i> buffers are kept
+  * in the pool; further released buffers are left to the garbage collector.
+  */
+public class ByteBufferPool {
+
+	/** Buffer size */
+	int buffer_size;
+
+	/** Maximum number of pooled buffers */
+	int max_pooled;
+
+	/** Pooled buffers */
+	ConcurrentLinkedQueue<ByteBuffer> buffers=new ConcurrentLinkedQueue<>();
+
+	/** Number of pooled buffers */
+	AtomicInteger pooled=new AtomicInteger(0);
+
+
+	/** Creates a new pool.
+	 * @param buffer_size the size of the buffers
+	 * @param max_pooled the maximum number of buffers kept in the pool */
+	public ByteBufferPool(int buffer_size, int max_pooled) {
+		this.buffer_size=buffer_size;
+		this.max_pooled=max_pooled;
+	}
+
+
+	/** Gets the buffer size.
+	 * @return the size of the buffers */
+	public int getBufferSize() {
+		return buffer_size;
+	}
+
+
+	/** Gets the number of buffers currently in the pool.
+	 * @return the number of buffers */
+	public int size() {
+		return pooled.get();
+	}
+
+
+	/** Gets a buffer.
+	 * @return a cleared buffer, taken from the pool if available */
+	public ByteBuffer get() {
+		ByteBuffer buffer=buffers.poll();
+		if (buffer==null) return ByteBuffer.allocate(buffer_size);
+		// else
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+
+	/** Returns a buffer to the pool.
+	 * @param buffer the buffer; buffers of a different size are ignored */
+	public void release(ByteBuffer buffer) {
+		if (buffer==null || buffer.capacity()!=buffer_size) return;
+		// else
+		if (pooled.incrementAndGet()<=max_pooled) {
+			buffer.clear();
+			buffers.add(buffer);
+		}
+		else pooled.decrementAndGet();
+	}
+
+}
@@ -21,10 +21,17 @@
 package org.zoolu.util;
 
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
 
 /** A clock that maintains a time variable.
  * It provides methods for getting the current time and for creating {@link org.zoolu.util.Timer timers}.
  * <p>
+ * Timers created by a clock measure time through {@link #nanoTime()} and are scheduled through
+ * {@link #getScheduler(boolean, boolean)}, so that a different clock (e.g. a {@link SimulatedClock})
+ * also changes the timing of its timers.
+ * <p>
  * This class has also a default clock that can be handled through the corresponding
  * two <i>static</i> methods {@link #setDefaultClock(Clock)} and {@link #getDefaultClock()}.
  */
@@ -58,7 +65,45 @@ public class Clock {
 	  * @param nanosecs 0-999999 additional nanoseconds before expires
 	  * @param listener timer listener */
 	public Timer newTimer(long millisecs, int nanosecs, TimerListener listener) {
-		return new Timer(millisecs,nanosecs,listener);
+		return new Timer(this,millisecs,nanosecs,listener);
+	}
+	
+	/** Gets the scheduler of timers of this clock.
+	  * This clock uses the default schedulers of {@link Timer}.
+	  * @param daemon_mode whether running in 'daemon' mode
+	  * @param high_resolution whether running in high-resolution mode
+	  * @return the scheduler */
+	public TimerScheduler getScheduler(boolean daemon_mode, boolean high_resolution) {
+		return high_resolution? Timer.getHighResolutionScheduler(daemon_mode) : Timer.getDefaultScheduler(daemon_mode);
+	}
+	
+	/** Sets a timeout on a future.
+	  * If the future is not completed within the given time, it is completed exceptionally with a {@link TimeoutException}.
+	  * The timer is halted as soon as the future completes, so that completed futures do not leave scheduled timeouts.
+	  * The timer runs in 'daemon' mode.
+	  * @param future the future
+	  * @param millisecs the timeout in milliseconds
+	  * @return the same future */
+	public <T> CompletableFuture<T> timeout(final CompletableFuture<T> future, final long millisecs) {
+		if (future.isDone()) return future;
+		// else
+		final Timer timer=newTimer(millisecs,t->future.completeExceptionally(new TimeoutException("Timeout after "+millisecs+"ms")));
+		timer.start(true);
+		future.whenComplete((result,error)->timer.halt());
+		return future;
+	}
+	
+	/** Gets a future that is completed after a given time.
+	  * If the future is completed (or cancelled) earlier by the caller, the timer is halted.
+	  * The timer runs in 'daemon' mode.
+	  * @param millisecs the delay in milliseconds
+	  * @return the future */
+	public CompletableFuture<Void> delay(long millisecs) {
+		final CompletableFuture<Void> future=new CompletableFuture<>();
+		final Timer timer=newTimer(millisecs,t->future.complete(null));
+		timer.start(true);
+		future.whenComplete((result,error)->timer.halt());
+		return future;
 	}
 	
 	/** Gets current time in milliseconds.
@@ -81,10 +126,15 @@ public class Clock {
 	}
 	
 	/** Waits for a specified period.
+	  * If some additional nanoseconds are specified, the thread parks and then busy-waits until the exact deadline
+	  * (see {@link HighResolutionScheduler#parkUntil(long, long)}).
 	  * @param millisecs the length of time to sleep in milliseconds
 	  * @param nanosecs 0-999999 additional nanoseconds to sleep */
 	public void sleep(long millisecs, int nanosecs) {
-		try { Thread.sleep(millisecs,0); } catch (Exception e) {};
+		if (nanosecs==0) {
+			try { Thread.sleep(millisecs); } catch (Exception e) {};
+		}
+		else HighResolutionScheduler.parkUntil(System.nanoTime()+millisecs*1000000+nanosecs,HighResolutionScheduler.DEFAULT_SPIN_TIME);
 	}
 
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+
+/** High-resolution scheduler, with sub-millisecond accuracy.
+  * <p>
+  * Tasks are kept in a priority queue ordered by their {@link System#nanoTime()} deadlines,
+  * and are run by a single scheduler thread. The thread parks through {@link LockSupport#parkNanos(Object, long)}
+  * until the next deadline is closer than the spin time, and then busy-waits until the deadline, so that
+  * the wake-up latency of the operating system does not add to the timeout.
+  * <p>
+  * The spin phase consumes CPU, so this scheduler is meant for a limited number of timers
+  * that need precise deadlines (e.g. media pacing), rather than as a general-purpose timer backend.
+  * It is used by timers with the high-resolution mode set (see {@link Timer#setHighResolution(boolean)}).
+  * <p>
+  * In 'non-daemon' mode the thread is terminated as soon as there are no more scheduled tasks,
+  * so that it does not prevent the program from terminating.
+  */
+public class HighResolutionScheduler implements TimerScheduler {
+
+	/** Default spin time, in nanoseconds */
+	public static long DEFAULT_SPIN_TIME=100000;
+
+
+	/** Whether running in 'daemon' mode */
+	boolean daemon_mode;
+
+	/** Spin time, in nanoseconds */
+	long spin_time;
+
+	/** Scheduled tasks */
+	PriorityQueue<Entry> queue=new PriorityQueue<>();
+
+	/** Sequence number of the next entry, for running tasks with the same deadline in scheduling order */
+	long sequence=0;
+
+	/** Number of fired tasks */
+	long fired_count=0;
+
+	/** Number of cancelled tasks */
+	long cancelled_count=0;
+
+	/** Lateness of fired tasks, in nanoseconds */
+	final Histogram lateness=new Histogram();
+
+	/** Whether the first task has changed since the scheduler thread looked at it */
+	volatile boolean changed=false;
+
+	/** Whether it has been halted */
+	boolean halted=false;
+
+	/** Scheduler thread, or <i>null</i> */
+	Thread thread=null;
+
+
+
+	/** Creates a new scheduler, with default spin time.
+	 * @param daemon_mode whether running in 'daemon' mode */
+	public HighResolutionScheduler(boolean daemon_mode) {
+		this(DEFAULT_SPIN_TIME,daemon_mode);
+	}
+
+
+	/** Creates a new scheduler.
+	 * @param spin_time time before each deadline spent busy-waiting rather than parked, in nanoseconds
+	 * @param daemon_mode whether running in 'daemon' mode */
+	public HighResolutionScheduler(long spin_time, boolean daemon_mode) {
+		if (spin_time<0) throw new IllegalArgumentException("Invalid spin time: "+spin_time);
+		this.spin_time=spin_time;
+		this.daemon_mode=daemon_mode;
+	}
+
+
+	/** Gets the spin time.
+	 * @return the spin time, in nanoseconds */
+	public long getSpinTime() {
+		return spin_time;
+	}
+
+
+	/** Waits until a given time, parking and then spinning for the last part.
+	 * It returns earlier if the current thread is interrupted; in this case the interrupted status is cleared.
+	 * @param deadline the time, as given by {@link System#nanoTime()}
+	 * @param spin_time time before the deadline spent busy-waiting, in nanoseconds
+	 * @return <i>false</i> if it has been interrupted */
+	public static boolean parkUntil(long deadline, long spin_time) {
+		long wait;
+		while ((wait=deadline-System.nanoTime())>0) {
+			if (Thread.interrupted()) return false;
+			// else
+			if (wait>spin_time) LockSupport.parkNanos(wait-spin_time);
+			else Thread.onSpinWait();
+		}
+		return true;
+	}
+
+
+	@Override
+	public Handle schedule(Runnable task, long nanosecs) {
+		return schedule(new Entry(task,System.nanoTime()+Math.max(nanosecs,0),0,false));
+	}
+
+
+	@Override
+	public Handle schedule(Runnable task, long delay, long period, boolean fixed_rate) {
+		if (period<=0) throw new IllegalArgumentException("Invalid period: "+period);
+		// else
+		return schedule(new Entry(task,System.nanoTime()+Math.max(delay,0),period,fixed_rate));
+	}
+
+
+	/** Schedules a new entry.
+	 * @param entry the entry
+	 * @return the entry */
+	private Entry schedule(Entry entry) {
+		boolean wakeup;
+		synchronized (this) {
+			if (halted) throw new IllegalStateException("Scheduler halted");
+			// else
+			entry.sequence=sequence++;
+			queue.add(entry);
+			if (thread==null) {
+				thread=new Thread(this::run,"HighResolutionScheduler");
+				thread.setDaemon(daemon_mode);
+				thread.setPriority(Thread.MAX_PRIORITY);
+				thread.start();
+				wakeup=false;
+			}
+			else wakeup=queue.peek()==entry;
+		}
+		if (wakeup) {
+			changed=true;
+			LockSupport.unpark(thread);
+		}
+		return entry;
+	}
+
+
+	/** Cancels a task.
+	 * @return <i>true</i> if the task has been cancelled */
+	synchronized boolean cancel(Entry entry) {
+		if (entry.cancelled) return false;
+		// else
+		// a periodic task that is not in the queue is currently running
+		if (!queue.remove(entry) && entry.period==0) return false;
+		// else
+		entry.cancelled=true;
+		cancelled_count++;
+		return true;
+	}
+
+
+	@Override
+	public void halt() {
+		Thread thread;
+		synchronized (this) {
+			halted=true;
+			queue.clear();
+			thread=this.thread;
+		}
+		changed=true;
+		LockSupport.unpark(thread);
+	}
+
+
+	@Override
+	public synchronized long getPendingCount() {
+		return queue.size();
+	}
+
+
+	@Override
+	public synchronized long getFiredCount() {
+		return fired_count;
+	}
+
+
+	@Override
+	public synchronized long getCancelledCount() {
+		return cancelled_count;
+	}
+
+
+	@Override
+	public Histogram.Snapshot getLateness() {
+		return lateness.getSnapshot();
+	}
+
+
+	/** Scheduler thread. */
+	private void run() {
+		while (true) {
+			Entry entry;
+			long wait;
+			synchronized (this) {
+				changed=false;
+				if (halted) {
+					thread=null;
+					return;
+				}
+				// else
+				entry=queue.peek();
+				if (entry==null) {
+					if (!daemon_mode) {
+						thread=null;
+						return;
+					}
+					// else
+					wait=Long.MAX_VALUE;
+				}
+				else {
+					wait=entry.deadline-System.nanoTime();
+					if (wait<=0) {
+						queue.poll();
+						fired_count++;
+					}
+				}
+			}
+			if (wait<=0) {
+				lateness.add(System.nanoTime()-entry.deadline);
+				try {
+					entry.task.run();
+				}
+				catch (Throwable e) {
+					e.printStackTrace();
+				}
+				if (entry.period>0) {
+					// schedule the next run, reusing the same entry
+					synchronized (this) {
+						if (!entry.cancelled && !halted) {
+							entry.deadline=entry.fixed_rate? entry.deadline+entry.period : System.nanoTime()+entry.period;
+							entry.sequence=sequence++;
+							queue.add(entry);
+						}
+					}
+				}
+				continue;
+			}
+			// else
+			if (wait==Long.MAX_VALUE) LockSupport.park(this);
+			else
+			if (wait>spin_time) LockSupport.parkNanos(this,wait-spin_time);
+			else {
+				long deadline=entry.deadline;
+				while (!changed && System.nanoTime()-deadline<0) Thread.onSpinWait();
+			}
+		}
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[spin="+spin_time+"ns,daemon="+daemon_mode+"]";
+	}
+
+
+
+	/** Scheduled task. */
+	class Entry extends ScheduledTask {
+
+		/** Creates a new entry. */
+		Entry(Runnable task, long deadline, long period, boolean fixed_rate) {
+			super(task,deadline,period,fixed_rate);
+		}
+
+		@Override
+		public boolean cancel() {
+			return HighResolutionScheduler.this.cancel(this);
+		}
+	}
+
+}
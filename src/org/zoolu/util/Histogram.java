@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/** Concurrent histogram of non-negative long values (e.g. time intervals in nanoseconds).
+  * <p>
+  * Values are counted in logarithmic buckets, with four sub-buckets for each power of two,
+  * so that the relative error of the returned percentiles is less than 25%.
+  * Each bucket is a {@link java.util.concurrent.atomic.LongAdder}, so that concurrent updates
+  * from different threads do not contend on the same memory location.
+  * <p>
+  * Method {@link #getSnapshot()} returns a consistent-enough copy of the current values
+  * that can be used for computing count, mean, maximum, and percentiles.
+  */
+public class Histogram {
+
+	/** Number of buckets */
+	static final int BUCKETS=248;
+
+	/** Buckets */
+	LongAdder[] buckets=new LongAdder[BUCKETS];
+
+	/** Sum of all values */
+	LongAdder sum=new LongAdder();
+
+	/** Maximum value */
+	LongAccumulator max=new LongAccumulator(Math::max,0);
+
+
+	/** Creates a new histogram. */
+	public Histogram() {
+		for (int i=0; i<BUCKETS; i++) buckets[i]=new LongAdder();
+	}
+
+
+	/** Adds a value.
+	 * @param value the value; negative values are counted as 0 */
+	public void add(long value) {
+		if (value<0) value=0;
+		buckets[indexOf(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+
+	/** Resets all values. */
+	public void reset() {
+		for (int i=0; i<BUCKETS; i++) buckets[i].reset();
+		sum.reset();
+		max.reset();
+	}
+
+
+	/** Gets a snapshot of the current values.
+	 * @return the snapshot */
+	public Snapshot getSnapshot() {
+		long[] counts=new long[BUCKETS];
+		for (int i=0; i<BUCKETS; i++) counts[i]=buckets[i].sum();
+		return new Snapshot(counts,sum.sum(),max.get());
+	}
+
+
+	/** Gets the index of the bucket for a given value. */
+	static int indexOf(long value) {
+		if (value<4) return (int)value;
+		// else
+		int exp=63-Long.numberOfLeadingZeros(value);
+		int sub=(int)(value>>>(exp-2))&3;
+		return ((exp-1)<<2)+sub;
+	}
+
+
+	/** Gets the highest value that falls in a given bucket. */
+	static long upperBoundOf(int index) {
+		if (index<4) return index;
+		// else
+		int exp=(index>>2)+1;
+		int sub=index&3;
+		long lower=((long)(4+sub))<<(exp-2);
+		return lower+(1L<<(exp-2))-1;
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getSnapshot().toString();
+	}
+
+
+	/** Immutable copy of the histogram values.
+	  */
+	public static class Snapshot {
+
+		/** Bucket counts */
+		long[] counts;
+
+		/** Total number of values */
+		long count=0;
+
+		/** Sum of all values */
+		long sum;
+
+		/** Maximum value */
+		long max;
+
+
+		/** Creates a new snapshot. */
+		Snapshot(long[] counts, long sum, long max) {
+			this.counts=counts;
+			this.sum=sum;
+			this.max=max;
+			for (long c : counts) count+=c;
+		}
+
+		/** Gets the total number of values.
+		 * @return the count */
+		public long getCount() {
+			return count;
+		}
+
+		/** Gets the sum of all values.
+		 * @return the sum */
+		public long getSum() {
+			return sum;
+		}
+
+		/** Gets the mean value.
+		 * @return the mean, or 0 if there are no values */
+		public double getMean() {
+			return count>0? (double)sum/count : 0;
+		}
+
+		/** Gets the maximum value.
+		 * @return the maximum value */
+		public long getMax() {
+			return max;
+		}
+
+		/** Gets an estimation of a given percentile.
+		 * @param p the percentile (0-100)
+		 * @return the highest value of the bucket containing the given percentile (never greater than the maximum value) */
+		public long getPercentile(double p) {
+			if (count==0) return 0;
+			// else
+			long rank=(long)Math.ceil(count*p/100.0);
+			if (rank<1) rank=1;
+			long n=0;
+			for (int i=0; i<counts.length; i++) {
+				n+=counts[i];
+				if (n>=rank) return Math.min(upperBoundOf(i),max);
+			}
+			return max;
+		}
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			return "count="+count+",mean="+(long)getMean()+",p50="+getPercentile(50)+",p99="+getPercentile(99)+",max="+max;
+		}
+	}
+
+}
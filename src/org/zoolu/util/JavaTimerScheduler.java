@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+import java.util.TimerTask;
+
+
+/** Timer scheduler based on {@link java.util.Timer}.
+  * <p>
+  * Tasks are run by a single thread, created when the first task is scheduled.
+  * In 'non-daemon' mode the thread is terminated as soon as there are no more scheduled tasks,
+  * so that it does not prevent the program from terminating.
+  * <p>
+  * Since java.util.Timer has only millisecond precision, delays with a sub-millisecond
+  * part are rounded up or down at random, with a probability proportional to the remainder.
+  * Periodic tasks are scheduled in java.util.Timer as one-shot tasks, one run at a time, from their deadline in nanoseconds:
+  * at fixed rate, each deadline is one period after the previous deadline, so that the rounding errors do not accumulate;
+  * with fixed delay, each deadline is one period after the end of the previous run.
+  * Since a java.util.TimerTask cannot be scheduled again, each run allocates a new one, scheduled while holding the lock
+  * of this scheduler; periodic timers that must not allocate per run should use {@link TimingWheelScheduler}
+  * or {@link HighResolutionScheduler}, that reuse the same entry.
+  * <p>
+  * Tasks cancelled through {@link TimerScheduler.Handle#cancel()} are only marked as cancelled by java.util.Timer,
+  * and would stay in its queue until their deadline. Therefore, cancelled tasks are removed from the queue
+  * (through {@link java.util.Timer#purge()}) as soon as they are at least {@link #PURGE_THRESHOLD}
+  * and at least as many as the pending tasks, so that the purge cost is amortized over the cancellations.
+  */
+public class JavaTimerScheduler implements TimerScheduler {
+
+	/** Maximum number of attempts to schedule the task */
+	static final int MAX_ATTEMPTS=2;
+
+	/** Minimum number of cancelled tasks that triggers a purge of the task queue */
+	public static int PURGE_THRESHOLD=1024;
+
+
+	/** Whether the thread runs in 'daemon' mode */
+	boolean daemon_mode;
+
+	/** Inner timer */
+	java.util.Timer timer=null;
+
+	/** Number of scheduled tasks, not yet run or cancelled */
+	int scheduled_tasks=0;
+
+	/** Number of cancelled tasks still in the task queue */
+	int cancelled_tasks=0;
+
+	/** Number of fired tasks */
+	long fired_count=0;
+
+	/** Number of cancelled tasks */
+	long cancelled_count=0;
+
+	/** Lateness of fired tasks, in nanoseconds */
+	final Histogram lateness=new Histogram();
+
+	/** Whether it has been halted */
+	boolean halted=false;
+
+
+
+	/** Creates a new scheduler.
+	 * @param daemon_mode whether running in 'daemon' mode; in 'daemon' mode, scheduled tasks do not prevent the program from terminating */
+	public JavaTimerScheduler(boolean daemon_mode) {
+		this.daemon_mode=daemon_mode;
+	}
+
+
+	@Override
+	public Handle schedule(Runnable task, long nanosecs) {
+		return schedule(new JavaTask(task,System.nanoTime()+nanosecs,0,false),nanosecs);
+	}
+
+
+	@Override
+	public Handle schedule(Runnable task, long delay, long period, boolean fixed_rate) {
+		if (period<=0) throw new IllegalArgumentException("Invalid period: "+period);
+		// else
+		return schedule(new JavaTask(task,System.nanoTime()+delay,period,fixed_rate),delay);
+	}
+
+
+	/** Schedules a task in the inner timer.
+	 * @param java_task the task
+	 * @param nanosecs the delay of the first run, in nanoseconds
+	 * @return the task */
+	private synchronized JavaTask schedule(JavaTask java_task, long nanosecs) {
+		if (halted) throw new IllegalStateException("Scheduler halted");
+		// else
+		scheduleRun(java_task,nanosecs);
+		scheduled_tasks++;
+		return java_task;
+	}
+
+
+	/** Schedules the next run of a periodic task, at its deadline.
+	 * @param java_task the task */
+	private synchronized void reschedule(JavaTask java_task) {
+		if (java_task.terminated || halted) return;
+		// else
+		scheduleRun(java_task,java_task.deadline-System.nanoTime());
+	}
+
+
+	/** Schedules a single run of a task in the inner timer.
+	 * It must be called while holding the lock of this scheduler.
+	 * @param java_task the task
+	 * @param nanosecs the delay of the run, in nanoseconds */
+	private void scheduleRun(final JavaTask java_task, long nanosecs) {
+		if (nanosecs<0) nanosecs=0;
+		// since java.util.Time has only milliseconds precision, do statistical approximation (if nanosecs%1000000!=0)
+		long millisecs=nanosecs/1000000;
+		long nanoremainder=nanosecs%1000000;
+		if (nanoremainder>0 && Random.nextInt(1000000)<nanoremainder) millisecs++;
+		TimerTask timer_task=new TimerTask() {
+			public void run() {
+				java_task.run();
+			}
+		};
+		for (int attempts=0; attempts<MAX_ATTEMPTS; attempts++) {
+			try  {
+				if (timer==null) timer=new java.util.Timer(daemon_mode);
+				timer.schedule(timer_task,millisecs);
+				break;
+			}
+			catch (IllegalStateException e) { timer=null; }
+		}
+		java_task.timer_task=timer_task;
+	}
+
+
+	@Override
+	public synchronized void halt() {
+		halted=true;
+		if (timer!=null) {
+			timer.cancel();
+			timer=null;
+		}
+		scheduled_tasks=0;
+		cancelled_tasks=0;
+	}
+
+
+	/** Counts a run of a periodic task.
+	 * @param java_task the task
+	 * @return <i>false</i> if the task has been cancelled */
+	private synchronized boolean fire(JavaTask java_task) {
+		if (java_task.terminated) return false;
+		// else
+		fired_count++;
+		return true;
+	}
+
+
+	/** Marks a task as terminated (run or cancelled).
+	 * In 'non-daemon' mode, when there are no more scheduled tasks, the timer thread is terminated.
+	 * @param java_task the task
+	 * @param cancelled whether the task has been cancelled
+	 * @return <i>false</i> if the task was already terminated */
+	private synchronized boolean terminate(JavaTask java_task, boolean cancelled) {
+		if (java_task.terminated) return false;
+		// else
+		java_task.terminated=true;
+		scheduled_tasks--;
+		if (cancelled) {
+			// mark as cancelled before counting it for purging
+			java_task.timer_task.cancel();
+			cancelled_count++;
+			cancelled_tasks++;
+		}
+		else fired_count++;
+		if (timer!=null) {
+			if (scheduled_tasks==0 && !daemon_mode) {
+				timer.cancel();
+				timer=null;
+				cancelled_tasks=0;
+			}
+			else
+			if (cancelled_tasks>=PURGE_THRESHOLD && cancelled_tasks>=scheduled_tasks) {
+				timer.purge();
+				cancelled_tasks=0;
+			}
+		}
+		return true;
+	}
+
+
+	@Override
+	public synchronized long getPendingCount() {
+		return scheduled_tasks;
+	}
+
+
+	@Override
+	public synchronized long getFiredCount() {
+		return fired_count;
+	}
+
+
+	@Override
+	public synchronized long getCancelledCount() {
+		return cancelled_count;
+	}
+
+
+	@Override
+	public Histogram.Snapshot getLateness() {
+		return lateness.getSnapshot();
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[daemon="+daemon_mode+"]";
+	}
+
+
+
+	/** Task scheduled in the inner timer, one run at a time. */
+	class JavaTask implements Handle {
+
+		/** The task */
+		Runnable task;
+
+		/** Deadline of the next run, in nanoseconds */
+		long deadline;
+
+		/** Period, in nanoseconds, or 0 for a one-shot task */
+		final long period;
+
+		/** Whether a periodic task runs at fixed rate */
+		final boolean fixed_rate;
+
+		/** Whether the task has been run or cancelled */
+		boolean terminated=false;
+
+		/** Inner timer task of the next run */
+		TimerTask timer_task;
+
+		/** Creates a new task. */
+		JavaTask(Runnable task, long deadline, long period, boolean fixed_rate) {
+			this.task=task;
+			this.deadline=deadline;
+			this.period=period;
+			this.fixed_rate=fixed_rate;
+		}
+
+		/** Runs the task, and schedules the next run of a periodic task. */
+		void run() {
+			Runnable task=this.task;
+			if (!(period>0? fire(this) : terminate(this,false))) return;
+			// else
+			lateness.add(System.nanoTime()-deadline);
+			if (period==0) {
+				task.run();
+				return;
+			}
+			// else
+			if (fixed_rate) {
+				deadline+=period;
+				reschedule(this);
+				task.run();
+				return;
+			}
+			// else
+			try {
+				task.run();
+			}
+			finally {
+				deadline=System.nanoTime()+period;
+				reschedule(this);
+			}
+		}
+
+		@Override
+		public boolean cancel() {
+			if (!terminate(this,true)) return false;
+			// else
+			task=null;
+			return true;
+		}
+	}
+
+}
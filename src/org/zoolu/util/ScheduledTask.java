@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+
+/** Task scheduled in a deadline-ordered queue, shared by {@link HighResolutionScheduler} and {@link SimulatedClock}.
+  * <p>
+  * Tasks are ordered by deadline, and tasks with the same deadline by sequence number,
+  * so that they are run in scheduling order. The same task is kept for all runs of a periodic task.
+  */
+abstract class ScheduledTask implements TimerScheduler.Handle, Comparable<ScheduledTask> {
+
+	/** The task */
+	final Runnable task;
+
+	/** Deadline, in nanoseconds */
+	long deadline;
+
+	/** Period, in nanoseconds, or 0 for a one-shot task */
+	final long period;
+
+	/** Whether a periodic task runs at fixed rate */
+	final boolean fixed_rate;
+
+	/** Whether the task has been cancelled */
+	boolean cancelled=false;
+
+	/** Sequence number */
+	long sequence;
+
+	/** Creates a new scheduled task. */
+	ScheduledTask(Runnable task, long deadline, long period, boolean fixed_rate) {
+		this.task=task;
+		this.deadline=deadline;
+		this.period=period;
+		this.fixed_rate=fixed_rate;
+	}
+
+	@Override
+	public int compareTo(ScheduledTask other) {
+		long diff=deadline-other.deadline;
+		if (diff!=0) return diff<0? -1 : 1;
+		// else
+		return Long.compare(sequence,other.sequence);
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+import java.util.PriorityQueue;
+
+
+/** Discrete-event simulated clock.
+  * <p>
+  * Time does not flow by itself: it is advanced explicitly through {@link #step()}, {@link #advance(long)},
+  * {@link #runUntilIdle(long)}, or {@link #sleep(long, int)}, and it jumps instantly from one deadline to the next one,
+  * firing the expired timers in deadline order (timers with the same deadline are fired in the order they were started).
+  * In this way hours of protocol timeouts can be simulated in a few milliseconds, deterministically.
+  * <p>
+  * The clock is also the {@link TimerScheduler} of all its timers, regardless of their 'daemon' and high-resolution modes.
+  * Timers are fired by the thread that advances the clock, and may start further timers.
+  * <p>
+  * Timers created through {@link #newTimer(long, TimerListener)}, or created after the clock has been set as default clock
+  * (see {@link Clock#setDefaultClock(Clock)}), use the simulated time.
+  */
+public class SimulatedClock extends Clock implements TimerScheduler {
+
+	/** Current time, in nanoseconds */
+	long now;
+
+	/** Wall-clock time corresponding to time 0, in milliseconds */
+	long origin_millis;
+
+	/** Scheduled tasks */
+	PriorityQueue<Entry> queue=new PriorityQueue<>();
+
+	/** Sequence number of the next entry */
+	long sequence=0;
+
+	/** Number of fired tasks */
+	long fired_count=0;
+
+	/** Number of cancelled tasks */
+	long cancelled_count=0;
+
+	/** Lateness of fired tasks, in nanoseconds */
+	final Histogram lateness=new Histogram();
+
+	/** Whether it has been halted */
+	boolean halted=false;
+
+
+
+	/** Creates a new clock, starting from the current wall-clock time. */
+	public SimulatedClock() {
+		this(System.currentTimeMillis());
+	}
+
+
+	/** Creates a new clock.
+	 * @param origin_millis the initial wall-clock time, in milliseconds */
+	public SimulatedClock(long origin_millis) {
+		this.origin_millis=origin_millis;
+		this.now=0;
+	}
+
+
+	@Override
+	public synchronized long currentTimeMillis() {
+		return origin_millis+now/1000000;
+	}
+
+
+	@Override
+	public synchronized long nanoTime() {
+		return now;
+	}
+
+
+	/** Advances the time, firing all timers that expire in the meantime.
+	 * @param millisecs the time to advance, in milliseconds
+	 * @param nanosecs 0-999999 additional nanoseconds */
+	@Override
+	public void sleep(long millisecs, int nanosecs) {
+		advance(millisecs*1000000+nanosecs);
+	}
+
+
+	@Override
+	public TimerScheduler getScheduler(boolean daemon_mode, boolean high_resolution) {
+		return this;
+	}
+
+
+	@Override
+	public synchronized Handle schedule(Runnable task, long nanosecs) {
+		return schedule(new Entry(task,now+Math.max(nanosecs,0),0,false));
+	}
+
+
+	@Override
+	public synchronized Handle schedule(Runnable task, long delay, long period, boolean fixed_rate) {
+		if (period<=0) throw new IllegalArgumentException("Invalid period: "+period);
+		// else
+		return schedule(new Entry(task,now+Math.max(delay,0),period,fixed_rate));
+	}
+
+
+	/** Schedules a new entry.
+	 * @param entry the entry
+	 * @return the entry */
+	private synchronized Entry schedule(Entry entry) {
+		if (halted) throw new IllegalStateException("Clock halted");
+		// else
+		entry.sequence=sequence++;
+		queue.add(entry);
+		return entry;
+	}
+
+
+	/** Stops the clock as scheduler of its timers.
+	 * Pending timers are discarded, and further attempts to start a timer throw an {@link IllegalStateException}.
+	 * The time can still be advanced. */
+	@Override
+	public synchronized void halt() {
+		halted=true;
+		queue.clear();
+	}
+
+
+	/** Cancels a task.
+	 * @return <i>true</i> if the task has been cancelled */
+	synchronized boolean cancel(Entry entry) {
+		if (entry.cancelled) return false;
+		// else
+		// a periodic task that is not in the queue is currently running
+		if (!queue.remove(entry) && entry.period==0) return false;
+		// else
+		entry.cancelled=true;
+		cancelled_count++;
+		return true;
+	}
+
+
+	/** Advances the time to the next deadline, and fires the corresponding timer.
+	 * @return <i>false</i> if there are no scheduled timers */
+	public boolean step() {
+		return fireNext(Long.MAX_VALUE);
+	}
+
+
+	/** Advances the time, firing all timers that expire in the meantime, in deadline order.
+	 * @param nanosecs the time to advance, in nanoseconds
+	 * @return the number of fired timers */
+	public long advance(long nanosecs) {
+		long end_time;
+		synchronized (this) {
+			end_time=now+nanosecs;
+		}
+		long count=0;
+		while (fireNext(end_time)) count++;
+		synchronized (this) {
+			if (now-end_time<0) now=end_time;
+		}
+		return count;
+	}
+
+
+	/** Fires timers, in deadline order, until there are no more scheduled timers.
+	 * Since periodic timers never end by themselves, a time limit has to be set.
+	 * @param max_nanosecs the maximum time to advance, in nanoseconds
+	 * @return the number of fired timers */
+	public long runUntilIdle(long max_nanosecs) {
+		long end_time;
+		synchronized (this) {
+			end_time=now+max_nanosecs;
+		}
+		long count=0;
+		while (fireNext(end_time)) count++;
+		return count;
+	}
+
+
+	/** Advances the time to the next deadline, if not after a given time, and fires the corresponding timer.
+	 * @param end_time the maximum time
+	 * @return <i>false</i> if there are no scheduled timers not after the given time */
+	private boolean fireNext(long end_time) {
+		Entry entry;
+		synchronized (this) {
+			entry=queue.peek();
+			if (entry==null || entry.deadline-end_time>0) return false;
+			// else
+			queue.poll();
+			if (entry.deadline-now>0) now=entry.deadline;
+			fired_count++;
+			lateness.add(now-entry.deadline);
+		}
+		try {
+			entry.task.run();
+		}
+		catch (Throwable e) {
+			e.printStackTrace();
+		}
+		if (entry.period>0) {
+			// schedule the next run, reusing the same entry
+			synchronized (this) {
+				if (!entry.cancelled && !halted) {
+					entry.deadline=entry.fixed_rate? entry.deadline+entry.period : now+entry.period;
+					entry.sequence=sequence++;
+					queue.add(entry);
+				}
+			}
+		}
+		return true;
+	}
+
+
+	@Override
+	public synchronized long getPendingCount() {
+		return queue.size();
+	}
+
+
+	@Override
+	public synchronized long getFiredCount() {
+		return fired_count;
+	}
+
+
+	@Override
+	public synchronized long getCancelledCount() {
+		return cancelled_count;
+	}
+
+
+	@Override
+	public Histogram.Snapshot getLateness() {
+		return lateness.getSnapshot();
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public synchronized String toString() {
+		return getClass().getSimpleName()+"[time="+now+"ns,pending="+queue.size()+"]";
+	}
+
+
+
+	/** Scheduled task. */
+	class Entry extends ScheduledTask {
+
+		/** Creates a new entry. */
+		Entry(Runnable task, long deadline, long period, boolean fixed_rate) {
+			super(task,deadline,period,fixed_rate);
+		}
+
+		@Override
+		public boolean cancel() {
+			return SimulatedClock.this.cancel(this);
+		}
+	}
+
+}
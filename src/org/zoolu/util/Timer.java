@@ -21,8 +21,6 @@
 package org.zoolu.util;
 
 
-import java.util.TimerTask;
-
 
 /** A Timer is a simple object that fires the {@link TimerListener#onTimeout(Timer)}
   * method when the time expires.
@@ -35,39 +33,102 @@ import java.util.TimerTask;
   * <br>
   * Conversely, in 'non-daemon' mode, the program terminates only when the timer
   * expires (or it is explicitly halted).
+  * <p>
+  * Time is measured through the {@link Clock} of the timer (by default, the default clock at the time the timer is created),
+  * and timeouts are scheduled through the scheduler provided by the clock.
+  * A {@link TimerService} provides its own schedulers, with an explicit lifecycle.
+  * With the system clock, timeouts are scheduled through the default {@link TimerScheduler}s; by default a {@link JavaTimerScheduler} is used;
+  * a different scheduler (e.g. a {@link TimingWheelScheduler}) can be set through {@link #setDefaultScheduler(TimerScheduler, TimerScheduler)}.
+  * <p>
+  * A timer can also be periodic (see {@link #setPeriod(long, int, boolean)}): in this case, after the first timeout,
+  * the listener is fired every period until the timer is halted, reusing the same scheduled task.
+  * <p>
+  * Timers that need sub-millisecond accuracy can be set in high-resolution mode through {@link #setHighResolution(boolean)};
+  * they are scheduled through a {@link HighResolutionScheduler}, that parks and then spins until the exact deadline.
+  * <p>
+  * If the scheduler dispatches expired tasks to an executor (see {@link TimingWheelScheduler#setExecutor(java.util.concurrent.Executor)}),
+  * listeners of different timers may be called concurrently; listener calls for the same timer are still serialized.
   */
 public class Timer {
 	
 	/** Whether the default mode is 'daemon', or not */
 	public static boolean DEFAULT_DAEMON_MODE=false;
 
-	/** Maximum number of attempts to schedule the task */
-	static final int MAX_ATTEPTS=2;
-	
-	// Non-daemon scheduled tasks:
+	/** Default scheduler of non-daemon timers. The program terminates only when all non-daemon timers have ended (for timeout or explicitly halted) */
+	static volatile TimerScheduler default_scheduler=new JavaTimerScheduler(false);
+
+	/** Default scheduler of daemon timers. Daemon timers silently terminate (without firing the corresponding timeout callbacks) when all program threads end */
+	static volatile TimerScheduler default_daemon_scheduler=new JavaTimerScheduler(true);
 
-	/** Current number of total non-daemon scheduled tasks */
-	static int scheduled_tasks=0;
 
-	/** Inner non-daemon scheduler. The program terminates only when all non-daemon timers (associated to this scheduler) have ended (for timeout or explicitly halted) */
-	static java.util.Timer scheduler=null;
+	/** Scheduler of non-daemon high-resolution timers */
+	static volatile TimerScheduler high_resolution_scheduler=new HighResolutionScheduler(false);
 
-	/** Lock for the non-daemon scheduler */
-	static Object scheduler_lock=new Object();
+	/** Scheduler of daemon high-resolution timers */
+	static volatile TimerScheduler high_resolution_daemon_scheduler=new HighResolutionScheduler(true);
 
-	// Daemon scheduled tasks:
 
-	/** Inner daemon scheduler. Daemon timers (associated to the this scheduler) silently terminate (without firing the corresponding timeout callbacks) when all program threads end */
-	static java.util.Timer daemon_scheduler=null;
+	/** Sets the default schedulers.
+	 * Timers that are already running are not affected.
+	 * @param scheduler the scheduler of non-daemon timers; its threads must not prevent the program from terminating when there are no scheduled tasks
+	 * @param daemon_scheduler the scheduler of daemon timers; its threads must not prevent the program from terminating */
+	public static void setDefaultScheduler(TimerScheduler scheduler, TimerScheduler daemon_scheduler) {
+		default_scheduler=scheduler;
+		default_daemon_scheduler=daemon_scheduler;
+	}
+
+
+	/** Gets the default scheduler.
+	 * @param daemon_mode whether running in 'daemon' mode
+	 * @return the scheduler of daemon or non-daemon timers */
+	public static TimerScheduler getDefaultScheduler(boolean daemon_mode) {
+		return daemon_mode? default_daemon_scheduler : default_scheduler;
+	}
+
+
+	/** Sets the schedulers of high-resolution timers.
+	 * Timers that are already running are not affected.
+	 * @param scheduler the scheduler of non-daemon high-resolution timers
+	 * @param daemon_scheduler the scheduler of daemon high-resolution timers */
+	public static void setHighResolutionScheduler(TimerScheduler scheduler, TimerScheduler daemon_scheduler) {
+		high_resolution_scheduler=scheduler;
+		high_resolution_daemon_scheduler=daemon_scheduler;
+	}
+
+
+	/** Gets the scheduler of high-resolution timers.
+	 * @param daemon_mode whether running in 'daemon' mode
+	 * @return the scheduler of daemon or non-daemon high-resolution timers */
+	public static TimerScheduler getHighResolutionScheduler(boolean daemon_mode) {
+		return daemon_mode? high_resolution_daemon_scheduler : high_resolution_scheduler;
+	}
 
 
 	
+	/** Clock */
+	Clock clock;
+
 	/** Whether running in 'daemon' mode */
 	boolean daemon_mode;
 
+	/** Whether running in high-resolution mode */
+	boolean high_resolution=false;
+
+	/** Period in nanoseconds, or 0 for a one-shot timer */
+	long period_nanosecs=0;
+
+	/** Whether a periodic timer runs at fixed rate */
+	boolean fixed_rate=false;
+
+	/** Period of the current run in nanoseconds, or 0 if one-shot */
+	long running_period=0;
+
 	/** Start time in time_nanosecs */
 	long start_time=0;
 
+	/** Next expiration time, in nanoseconds */
+	long expire_time=0;
+
 	/** Expiration time in time_nanosecs */
 	protected long time_nanosecs;
 
@@ -76,6 +137,9 @@ public class Timer {
 
 	/** Timer listener */
 	protected TimerListener listener;
+
+	/** Handle of the scheduled timeout */
+	TimerScheduler.Handle handle=null;
 	  
 
 	
@@ -96,10 +160,79 @@ public class Timer {
 	  * @param nanosecs 0-999999 additional nanoseconds before the timer expires
 	  * @param listener timer listener */
 	public Timer(long millisecs, int nanosecs, TimerListener listener) {
+		this(Clock.getDefaultClock(),millisecs,nanosecs,listener);
+	}  
+
+	
+	/** Creates a new timer.
+	  * <p>
+	  * The timer is not automatically started. You need to call the {@link #start()} method.
+	  * @param clock the clock used for measuring time and scheduling the timeout
+	  * @param millisecs expiration time in milliseconds
+	  * @param nanosecs 0-999999 additional nanoseconds before the timer expires
+	  * @param listener timer listener */
+	public Timer(Clock clock, long millisecs, int nanosecs, TimerListener listener) {
+		this.clock=clock;
 		this.listener=listener;
 		this.time_nanosecs=millisecs*1000000+nanosecs;
 	}  
 
+
+	/** Gets the clock.
+	  * @return the clock used by this timer */
+	public Clock getClock() {
+		return clock;
+	}
+
+	
+	/** Sets the high-resolution mode.
+	  * In high-resolution mode the timer expires at the exact nanosecond deadline (within the scheduling jitter
+	  * of the system), at the cost of some busy-waiting right before it; otherwise the deadline is rounded to milliseconds.
+	  * It takes effect the next time the timer is started.
+	  * @param high_resolution whether running in high-resolution mode */
+	public void setHighResolution(boolean high_resolution) {
+		this.high_resolution=high_resolution;
+	}
+
+
+	/** Makes the timer periodic.
+	  * After the first timeout, the listener is fired every period until the timer is halted.
+	  * <p>
+	  * With fixed rate, timeouts are scheduled at fixed times from the start, so that late timeouts do not make the following ones drift;
+	  * with fixed delay, each timeout is scheduled one period after the listener of the previous one has returned.
+	  * It takes effect the next time the timer is started.
+	  * @param millisecs period in milliseconds, or 0 (together with <i>nanosecs</i>) for a one-shot timer
+	  * @param nanosecs 0-999999 additional nanoseconds of the period
+	  * @param fixed_rate whether running at fixed rate, rather than with fixed delay */
+	public synchronized void setPeriod(long millisecs, int nanosecs, boolean fixed_rate) {
+		long period_nanosecs=millisecs*1000000+nanosecs;
+		if (period_nanosecs<0) throw new IllegalArgumentException("Invalid period: "+period_nanosecs+"ns");
+		// else
+		this.period_nanosecs=period_nanosecs;
+		this.fixed_rate=fixed_rate;
+	}
+
+
+	/** Gets the period in nanoseconds.
+	  * @return the period, or 0 if the timer is one-shot */
+	public long getPeriodNanosecs() {
+		return period_nanosecs;
+	}
+
+
+	/** Whether a periodic timer runs at fixed rate.
+	  * @return <i>true</i> if at fixed rate, <i>false</i> if with fixed delay */
+	public boolean isFixedRate() {
+		return fixed_rate;
+	}
+
+
+	/** Whether running in high-resolution mode.
+	  * @return <i>true</i> if in high-resolution mode */
+	public boolean isHighResolution() {
+		return high_resolution;
+	}
+
 	
 	/** Gets the initial expiration time in milliseconds.
 	  * @return the expiration time in milliseconds */
@@ -123,10 +256,11 @@ public class Timer {
 	
 
 	/** Gets the remaining time in nanoseconds.
+	  * For a periodic timer, it is the time until the next timeout.
 	  * @return the remaining time in nanoseconds */
 	public long getExpirationTimeNanosecs() {
 		if (is_running) {
-			long expire=start_time+time_nanosecs-System.nanoTime();
+			long expire=expire_time-clock.nanoTime();
 			return (expire>0)? expire : 0;
 		}
 		else return time_nanosecs;
@@ -144,60 +278,33 @@ public class Timer {
 	 * In 'daemon' mode, when all other threads terminate, the program also ends
 	 * regardless the timer was still running, and no timeout callback is fired.
 	 * In 'non-daemon' mode, the program ends only when all active timers have expired
-	 * or explicitly halted. */
+	 * or explicitly halted.
+	 * @throws IllegalStateException if the scheduler of the clock has been halted (e.g. a {@link TimerService} that is not running) */
 	public synchronized void start(boolean daemon_mode) {
 		if (time_nanosecs<0 || is_running) return;
 		// else
 		this.daemon_mode=daemon_mode;
-		start_time=System.nanoTime();
+		start_time=clock.nanoTime();
+		expire_time=start_time+time_nanosecs;
+		running_period=period_nanosecs;
 		is_running=true;
-		if (time_nanosecs>0) {
-			TimerTask task=new TimerTask() {
-				public void run() { processInnerTimeout(); }   
-			};
-			scheduleTask(task,time_nanosecs,daemon_mode);
+		if (time_nanosecs>0 || running_period>0) {
+			try {
+				TimerScheduler scheduler=clock.getScheduler(daemon_mode,high_resolution);
+				if (running_period>0) handle=scheduler.schedule(this::processInnerTimeout,time_nanosecs,running_period,fixed_rate);
+				else handle=scheduler.schedule(this::processInnerTimeout,time_nanosecs);
+			}
+			catch (IllegalStateException e) {
+				// the scheduler has been halted
+				is_running=false;
+				throw e;
+			}
 		}
 		else {
 			// fire now!			
 			processInnerTimeout();  
 		}
 	}
-	
-	
-	/** Schedule a new task.
-	 * @param task the task to be scheduled
-	 * @param time_nanosecs the time in nanoseconds
-	 * @param daemon_mode whether running in 'daemon' mode */
-	private synchronized static void scheduleTask(TimerTask task, long nanosecs, boolean daemon_mode) {
-		// FIX: since java.util.Time has only milliseconds precision, do statistical approximation (if nanosecs%1000000!=0)
-		long millisecs=nanosecs/1000000;
-		long nanoremainder=nanosecs%1000000;
-		if (nanoremainder>0 && Random.nextInt(1000000)<nanoremainder) millisecs++;
-		
-		for (int attempts=0; attempts<MAX_ATTEPTS; attempts++) {
-			if (daemon_mode) {
-				try  {
-					if (daemon_scheduler==null) daemon_scheduler=new java.util.Timer(true); 
-					//daemon_scheduler.schedule(task,nanosecs/1000000);
-					daemon_scheduler.schedule(task,millisecs);
-					break;
-				}
-				catch (IllegalStateException e) { daemon_scheduler=null; }
-			}
-			else {
-				synchronized (scheduler_lock) {
-					try  {
-						if (scheduler==null) scheduler=new java.util.Timer(false); 
-						//scheduler.schedule(task,nanosecs/1000000);
-						scheduler.schedule(task,millisecs);
-						scheduled_tasks++;
-					    break;						
-					}
-					catch (IllegalStateException e) { scheduler=null; }	
-				}
-			}
-		}
-	}
 
 
 	/** Whether the timer is running.
@@ -217,7 +324,9 @@ public class Timer {
 	/** When the InnerTimer expires. */
 	private synchronized void processInnerTimeout() {
 		if (is_running && listener!=null) listener.onTimeout(this);  
-		terminate();
+		if (running_period==0) terminate();
+		else
+		if (is_running) expire_time=fixed_rate? expire_time+running_period : clock.nanoTime()+running_period;
 	}
 
 	
@@ -226,16 +335,10 @@ public class Timer {
 		if (is_running) {
 			is_running=false;
 			listener=null;
-			if (!daemon_mode && time_nanosecs>0) {
-				// the timer has been scheduled in 'non-daemon' mode
-				synchronized (scheduler_lock) {
-					scheduled_tasks--;
-					if (scheduled_tasks==0) {
-						scheduler.cancel();
-						scheduler.purge();
-					}			
-				}
-			}		
+			if (handle!=null) {
+				handle.cancel();
+				handle=null;
+			}
 		}
 	}
 	
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.CountDownLatch;
+
+
+/** Benchmark of {@link Timer} over the different {@link TimerScheduler} backends.
+  * <p>
+  * It runs three tests, so that backends can be compared directly:
+  * <ul>
+  * <li>throughput: <i>N</i> threads repeatedly start and halt timers (that never expire), and the number of start/halt pairs per second is reported;</li>
+  * <li>jitter: for each delay, a sequence of timers is started one after the other (each from the listener of the previous one), and the jitter
+  *     (that is the absolute difference between the time each listener is called and the timer deadline) is reported as p50/p99/p99.9/max values;</li>
+  * <li>memory: a large number of timers is started (with a timeout far in the future), and the heap growth per pending timer is reported.</li>
+  * </ul>
+  * Each backend is set as default scheduler of {@link Timer} while it is tested
+  * ('hires' timers are also set in high-resolution mode); the previous schedulers are restored at the end of each run.
+  * <p>
+  * Usage: <code>java org.zoolu.util.TimerBenchmark [options]</code> (option '-h' for help).
+  */
+public class TimerBenchmark {
+
+	/** Result of a jitter run. */
+	public static class JitterResult {
+
+		/** Backend name */
+		public String backend;
+
+		/** Delay, in nanoseconds */
+		public long delay;
+
+		/** Jitter, in nanoseconds */
+		public Histogram.Snapshot jitter;
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			return String.format("%-10s %10d %10d %10d %10d %10d",backend,delay,jitter.getPercentile(50),jitter.getPercentile(99),jitter.getPercentile(99.9),jitter.getMax());
+		}
+
+		/** Gets the header line for {@link #toString()}.
+		 * @return the header */
+		public static String getHeader() {
+			return String.format("%-10s %10s %10s %10s %10s %10s","backend","delay[ns]","p50[ns]","p99[ns]","p99.9[ns]","max[ns]");
+		}
+	}
+
+
+	/** Result of a throughput run. */
+	public static class ThroughputResult {
+
+		/** Backend name */
+		public String backend;
+
+		/** Number of threads */
+		public int threads;
+
+		/** Start/halt pairs per second */
+		public double rate;
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			return String.format("%-10s %8d %14.0f",backend,threads,rate);
+		}
+
+		/** Gets the header line for {@link #toString()}.
+		 * @return the header */
+		public static String getHeader() {
+			return String.format("%-10s %8s %14s","backend","threads","start+halt/s");
+		}
+	}
+
+
+	/** Result of a memory run. */
+	public static class MemoryResult {
+
+		/** Backend name */
+		public String backend;
+
+		/** Number of pending timers */
+		public int count;
+
+		/** Heap growth per pending timer, in bytes */
+		public double bytes_per_timer;
+
+		/** Gets a string representation of this object.
+		 * @return the string */
+		public String toString() {
+			return String.format("%-10s %10d %14.1f",backend,count,bytes_per_timer);
+		}
+
+		/** Gets the header line for {@link #toString()}.
+		 * @return the header */
+		public static String getHeader() {
+			return String.format("%-10s %10s %14s","backend","timers","bytes/timer");
+		}
+	}
+
+
+	/** Available backends */
+	public static final String[] BACKENDS={ "java", "wheel", "hires" };
+
+
+	/** Creates a new scheduler.
+	 * @param backend the backend name ('java', 'wheel', or 'hires')
+	 * @return the scheduler, in 'daemon' mode */
+	public static TimerScheduler createScheduler(String backend) {
+		switch (backend) {
+			case "java" : return new JavaTimerScheduler(true);
+			case "wheel" : return new TimingWheelScheduler(true);
+			case "hires" : return new HighResolutionScheduler(true);
+		}
+		throw new IllegalArgumentException("Unknown backend: "+backend);
+	}
+
+
+	/** Sets a backend as default scheduler of timers.
+	 * @param backend the backend name
+	 * @return the previous default and high-resolution schedulers, to be passed to {@link #restoreSchedulers(TimerScheduler[])} */
+	private static TimerScheduler[] setBackend(String backend) {
+		TimerScheduler[] previous={ Timer.getDefaultScheduler(false), Timer.getDefaultScheduler(true), Timer.getHighResolutionScheduler(false), Timer.getHighResolutionScheduler(true) };
+		TimerScheduler scheduler=createScheduler(backend);
+		Timer.setDefaultScheduler(scheduler,scheduler);
+		Timer.setHighResolutionScheduler(scheduler,scheduler);
+		return previous;
+	}
+
+
+	/** Halts the scheduler of the tested backend, and restores the previous schedulers of timers.
+	 * @param previous the schedulers returned by {@link #setBackend(String)} */
+	private static void restoreSchedulers(TimerScheduler[] previous) {
+		TimerScheduler scheduler=Timer.getDefaultScheduler(true);
+		Timer.setDefaultScheduler(previous[0],previous[1]);
+		Timer.setHighResolutionScheduler(previous[2],previous[3]);
+		scheduler.halt();
+	}
+
+
+	/** Creates a new timer for a backend.
+	 * @param backend the backend name
+	 * @param millisecs expiration time in milliseconds
+	 * @param listener timer listener
+	 * @return the timer, in high-resolution mode for the 'hires' backend */
+	private static Timer newTimer(String backend, long millisecs, TimerListener listener) {
+		return newTimer(backend,millisecs,0,listener);
+	}
+
+
+	/** Creates a new timer for a backend.
+	 * @param backend the backend name
+	 * @param millisecs expiration time in milliseconds
+	 * @param nanosecs 0-999999 additional nanoseconds
+	 * @param listener timer listener
+	 * @return the timer, in high-resolution mode for the 'hires' backend */
+	private static Timer newTimer(String backend, long millisecs, int nanosecs, TimerListener listener) {
+		Timer timer=new Timer(millisecs,nanosecs,listener);
+		timer.setHighResolution(backend.equals("hires"));
+		return timer;
+	}
+
+
+	/** Measures the throughput of timer start and halt.
+	 * @param backend the backend name
+	 * @param threads the number of threads
+	 * @param duration the duration of the test, in milliseconds
+	 * @return the result */
+	public static ThroughputResult runThroughput(final String backend, int threads, long duration) {
+		TimerScheduler[] previous=setBackend(backend);
+		long total=0;
+		double secs;
+		try {
+			final TimerListener listener=t->{};
+			final long end_time=System.nanoTime()+duration*1000000L;
+			final long[] counts=new long[threads];
+			Thread[] workers=new Thread[threads];
+			long start_time=System.nanoTime();
+			for (int i=0; i<threads; i++) {
+				final int index=i;
+				workers[i]=new Thread(()->{
+					long count=0;
+					while ((count&0xff)!=0 || System.nanoTime()<end_time) {
+						Timer timer=newTimer(backend,60000,listener);
+						timer.start(true);
+						timer.halt();
+						count++;
+					}
+					counts[index]=count;
+				});
+				workers[i].start();
+			}
+			for (int i=0; i<threads; i++) {
+				try { workers[i].join(); } catch (InterruptedException e) {}
+				total+=counts[i];
+			}
+			secs=(System.nanoTime()-start_time)/1e9;
+		}
+		finally {
+			restoreSchedulers(previous);
+		}
+		ThroughputResult result=new ThroughputResult();
+		result.backend=backend;
+		result.threads=threads;
+		result.rate=total/secs;
+		return result;
+	}
+
+
+	/** Measures the memory used by pending timers.
+	 * @param backend the backend name
+	 * @param count the number of timers
+	 * @return the result */
+	public static MemoryResult runMemory(String backend, int count) {
+		long timer_size=estimateTimerSize();
+		TimerScheduler[] previous=setBackend(backend);
+		try {
+			TimerListener listener=t->{};
+			// start the scheduler threads before measuring
+			newTimer(backend,3600000,listener).start(true);
+			MemoryMXBean mx=ManagementFactory.getMemoryMXBean();
+			long used_start=getUsedHeap(mx);
+			Timer[] timers=new Timer[count];
+			for (int i=0; i<count; i++) {
+				timers[i]=newTimer(backend,3600000+i%1000,listener);
+				timers[i].start(true);
+			}
+			long used_end=getUsedHeap(mx);
+			MemoryResult result=new MemoryResult();
+			result.backend=backend;
+			result.count=count;
+			// the timer objects themselves are not accounted
+			result.bytes_per_timer=(double)(used_end-used_start)/count-timer_size;
+			for (Timer timer : timers) timer.halt();
+			return result;
+		}
+		finally {
+			restoreSchedulers(previous);
+		}
+	}
+
+
+	/** Estimates the size of a Timer object that has not been started.
+	 * @return the size, in bytes */
+	private static long estimateTimerSize() {
+		MemoryMXBean mx=ManagementFactory.getMemoryMXBean();
+		TimerListener listener=t->{};
+		int count=100000;
+		long used_start=getUsedHeap(mx);
+		Timer[] timers=new Timer[count];
+		for (int i=0; i<count; i++) timers[i]=new Timer(1000,listener);
+		long used_end=getUsedHeap(mx);
+		java.lang.ref.Reference.reachabilityFence(timers);
+		return (used_end-used_start)/count;
+	}
+
+
+	/** Gets the used heap memory, after garbage collection.
+	 * @return the used memory, in bytes */
+	private static long getUsedHeap(MemoryMXBean mx) {
+		for (int i=0; i<3; i++) mx.gc();
+		return mx.getHeapMemoryUsage().getUsed();
+	}
+
+
+	/** Measures the jitter of a backend.
+	 * @param backend the backend name
+	 * @param delay the delay of each timeout, in nanoseconds
+	 * @param count the number of timeouts
+	 * @return the result */
+	public static JitterResult runJitter(final String backend, final long delay, final int count) {
+		TimerScheduler[] previous=setBackend(backend);
+		final Histogram jitter=new Histogram();
+		try {
+			final CountDownLatch done=new CountDownLatch(1);
+			class JitterListener implements TimerListener {
+				int n=0;
+				long deadline;
+				/** Starts the next timer. */
+				void startTimer() {
+					Timer timer=newTimer(backend,delay/1000000,(int)(delay%1000000),this);
+					deadline=System.nanoTime()+delay;
+					timer.start(true);
+				}
+				public void onTimeout(Timer t) {
+					// early timeouts count as jitter too
+					jitter.add(Math.abs(System.nanoTime()-deadline));
+					if (++n>=count) done.countDown();
+					else startTimer();
+				}
+			}
+			new JitterListener().startTimer();
+			try { done.await(); } catch (InterruptedException e) {}
+		}
+		finally {
+			restoreSchedulers(previous);
+		}
+		JitterResult result=new JitterResult();
+		result.backend=backend;
+		result.delay=delay;
+		result.jitter=jitter.getSnapshot();
+		return result;
+	}
+
+
+	/** Parses a comma-separated list of values. */
+	private static long[] parseList(String str) {
+		String[] values=str.split(",");
+		long[] list=new long[values.length];
+		for (int i=0; i<values.length; i++) list[i]=Long.parseLong(values[i].trim());
+		return list;
+	}
+
+
+	/** Main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this message");
+		int count=flags.getInteger("-n",1000,"<num>","number of timeouts for each jitter run (default 1000)");
+		String threads_list=flags.getString("-c","1,4","<list>","comma-separated list of numbers of threads for throughput runs (default 1,4)");
+		long duration=flags.getLong("-t",2000,"<millisecs>","duration of each throughput run (default 2000)");
+		int timers=flags.getInteger("-p",100000,"<num>","number of pending timers for memory runs (default 100000)");
+		String tests=flags.getString("-m","throughput,jitter,memory","<list>","comma-separated list of tests (default throughput,jitter,memory)");
+		String delays=flags.getString("-d","100000,500000,1000000,5000000","<list>","comma-separated list of delays in nanoseconds (default 100000,500000,1000000,5000000)");
+		String backends=flags.getString("-b","java,wheel,hires","<list>","comma-separated list of backends (default java,wheel,hires)");
+		if (help) {
+			System.out.println(flags.toUsageString(TimerBenchmark.class));
+			return;
+		}
+		// else
+		for (String test : tests.split(",")) {
+			test=test.trim();
+			if (test.equals("throughput")) {
+				// warm-up
+				for (String backend : backends.split(",")) runThroughput(backend.trim(),1,duration/4);
+				System.out.println(ThroughputResult.getHeader());
+				for (long threads : parseList(threads_list)) {
+					for (String backend : backends.split(",")) {
+						System.out.println(runThroughput(backend.trim(),(int)threads,duration));
+					}
+				}
+			}
+			else
+			if (test.equals("jitter")) {
+				// warm-up
+				for (String backend : backends.split(",")) runJitter(backend.trim(),100000,count/10+1);
+				System.out.println(JitterResult.getHeader());
+				for (long delay : parseList(delays)) {
+					for (String backend : backends.split(",")) {
+						System.out.println(runJitter(backend.trim(),delay,count));
+					}
+				}
+			}
+			else
+			if (test.equals("memory")) {
+				System.out.println(MemoryResult.getHeader());
+				for (String backend : backends.split(",")) {
+					System.out.println(runMemory(backend.trim(),timers));
+				}
+			}
+			else System.out.println("Unknown test: "+test);
+			System.out.println();
+		}
+	}
+
+}
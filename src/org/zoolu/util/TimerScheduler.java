@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+
+/** Scheduler of timer tasks.
+  * <p>
+  * It is the backend used by {@link Timer} for running timeouts.
+  * Different implementations can be set as default through {@link Timer#setDefaultScheduler(TimerScheduler, TimerScheduler)}.
+  * @see JavaTimerScheduler
+  * @see TimingWheelScheduler
+  */
+public interface TimerScheduler {
+
+	/** Handle of a scheduled task. */
+	public static interface Handle {
+
+		/** Cancels the task.
+		 * A periodic task is not run again after it has been cancelled, even if it is currently running.
+		 * @return <i>true</i> if the task has been cancelled before running (or, for a periodic task, before its next run), <i>false</i> if it was already running, run, or cancelled */
+		public boolean cancel();
+	}
+
+
+	/** Schedules a task.
+	 * @param task the task to be run
+	 * @param nanosecs the delay, in nanoseconds
+	 * @return the handle of the scheduled task */
+	public Handle schedule(Runnable task, long nanosecs);
+
+	/** Schedules a periodic task.
+	 * <p>
+	 * With fixed rate, the <i>n</i>-th run is scheduled at <i>delay</i>+<i>n</i>*<i>period</i> from now,
+	 * so that late runs do not make the following ones drift; if some runs are more than one period late, they are run in a row.
+	 * With fixed delay, each run is scheduled <i>period</i> after the end of the previous one.
+	 * <p>
+	 * Runs of the same task never overlap. The task is run until it is cancelled.
+	 * {@link TimingWheelScheduler} and {@link HighResolutionScheduler} reuse the same scheduled entry for all runs;
+	 * {@link JavaTimerScheduler}, the default backend of {@link Timer}, allocates a new java.util.TimerTask for each run,
+	 * since a java.util.TimerTask cannot be scheduled again.
+	 * @param task the task to be run
+	 * @param delay the delay of the first run, in nanoseconds
+	 * @param period the period, in nanoseconds
+	 * @param fixed_rate whether running at fixed rate, rather than with fixed delay
+	 * @return the handle of the scheduled task */
+	public Handle schedule(Runnable task, long delay, long period, boolean fixed_rate);
+
+	/** Stops the scheduler.
+	 * Pending tasks are discarded without being run, the threads of the scheduler are terminated,
+	 * and further attempts to schedule a task throw an {@link IllegalStateException}. */
+	public void halt();
+
+	/** Gets the number of scheduled tasks, not yet run or cancelled.
+	 * @return the number of pending tasks */
+	public long getPendingCount();
+
+	/** Gets the number of tasks that have been run, counting each run of periodic tasks.
+	 * @return the number of fired tasks */
+	public long getFiredCount();
+
+	/** Gets the number of tasks that have been cancelled before running.
+	 * @return the number of cancelled tasks */
+	public long getCancelledCount();
+
+	/** Gets the lateness of fired tasks, that is the time between the deadline of each task and the moment it started running.
+	 * @return the lateness, in nanoseconds */
+	public Histogram.Snapshot getLateness();
+}
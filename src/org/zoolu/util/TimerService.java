@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+
+/** Timer service with an explicit lifecycle.
+  * <p>
+  * A timer service is a {@link Clock} with its own schedulers, that are created when the service is started
+  * and halted when the service is halted. Timers created through {@link #newTimer(long, TimerListener)}
+  * (or through the other <i>newTimer()</i> methods) are scheduled by the service, rather than by the
+  * static default schedulers of {@link Timer}.
+  * <p>
+  * Different subsystems can use separate services, so that they do not contend on the same scheduler
+  * and a slow listener of a subsystem does not delay the timers of the other ones.
+  * <p>
+  * The scheduler threads stay alive while the service is running, regardless of the number of scheduled timers,
+  * so that they are not repeatedly created and terminated when the number of timers oscillates around zero.
+  * The threads are daemon threads, so that the service does not prevent the program from terminating;
+  * the 'daemon' mode of timers is therefore ignored.
+  * <p>
+  * By default, normal timers are scheduled by a {@link TimingWheelScheduler} and high-resolution timers by a
+  * {@link HighResolutionScheduler}; different schedulers can be used by overriding {@link #createScheduler(boolean)}.
+  */
+public class TimerService extends Clock {
+
+	/** Scheduler of normal timers, or <i>null</i> if not running */
+	volatile TimerScheduler scheduler=null;
+
+	/** Scheduler of high-resolution timers, or <i>null</i> if not running */
+	volatile TimerScheduler high_resolution_scheduler=null;
+
+
+
+	/** Creates a new service.
+	 * The service is not automatically started. You need to call the {@link #start()} method. */
+	public TimerService() {
+	}
+
+
+	/** Creates a scheduler.
+	 * It is called when the service is started, and the returned scheduler is halted when the service is halted.
+	 * @param high_resolution whether the scheduler is for high-resolution timers
+	 * @return a new scheduler, running in 'daemon' mode */
+	protected TimerScheduler createScheduler(boolean high_resolution) {
+		return high_resolution? new HighResolutionScheduler(true) : new TimingWheelScheduler(true);
+	}
+
+
+	/** Starts the service.
+	 * Nothing happens if it is already running. */
+	public synchronized void start() {
+		if (scheduler!=null) return;
+		// else
+		scheduler=createScheduler(false);
+		high_resolution_scheduler=createScheduler(true);
+	}
+
+
+	/** Halts the service.
+	 * Pending timers are discarded, without firing their listeners. The service can be started again. */
+	public synchronized void halt() {
+		if (scheduler==null) return;
+		// else
+		scheduler.halt();
+		high_resolution_scheduler.halt();
+		scheduler=null;
+		high_resolution_scheduler=null;
+	}
+
+
+	/** Whether the service is running.
+	 * @return <i>true</i> if running */
+	public boolean isRunning() {
+		return scheduler!=null;
+	}
+
+
+	/** Gets the scheduler of timers of this service.
+	 * @param daemon_mode ignored, since scheduler threads are always daemon threads
+	 * @param high_resolution whether running in high-resolution mode
+	 * @return the scheduler
+	 * @throws IllegalStateException if the service is not running */
+	@Override
+	public TimerScheduler getScheduler(boolean daemon_mode, boolean high_resolution) {
+		TimerScheduler scheduler=high_resolution? high_resolution_scheduler : this.scheduler;
+		if (scheduler==null) throw new IllegalStateException("Timer service not running");
+		// else
+		return scheduler;
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[scheduler="+scheduler+",high_resolution_scheduler="+high_resolution_scheduler+"]";
+	}
+
+}
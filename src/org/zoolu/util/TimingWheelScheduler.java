@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/** Timer scheduler based on a hierarchical hashed timing wheel.
+  * <p>
+  * Time is divided in ticks of configurable length. Tasks are kept in a hierarchy of wheels:
+  * the first wheel has one slot per tick, and each slot of the following wheels
+  * spans a whole turn of the previous wheel. When a wheel completes a turn, the tasks of the next slot
+  * of the following wheel are redistributed (cascaded) to the lower wheels.
+  * All tasks expiring in the same tick share the same slot, and are collected at once.
+  * <p>
+  * The wheels are accessed only by the scheduler thread, so that scheduling and cancelling tasks do not take any lock.
+  * New tasks are pushed to a lock-free multiple-producer single-consumer queue, which is drained by the scheduler thread
+  * before processing each tick; the thread is woken up only if the new task expires before its planned wake-up.
+  * Cancelled tasks are marked as cancelled and pushed to a second queue, and are removed from their slots
+  * the next time the scheduler thread wakes up, or as soon as they are at least {@link #PURGE_THRESHOLD}.
+  * <p>
+  * Tasks are run by a single thread, at the first tick after their deadline (that is, never in advance,
+  * and with a delay less than one tick, if the thread is not busy).
+  * The thread sleeps until the next tick with some task to be run or cascaded, so that
+  * far-away timeouts do not cause periodic wake-ups.
+  * In 'non-daemon' mode the thread is terminated as soon as there are no more scheduled tasks,
+  * so that it does not prevent the program from terminating.
+  * <p>
+  * By default, expired tasks are run by the scheduler thread itself, so that a slow task delays all following ones.
+  * If an executor is set through {@link #setExecutor(Executor)} (e.g. a {@link java.util.concurrent.ForkJoinPool}
+  * or a virtual-thread executor), the scheduler thread only detects expired tasks and passes them to the executor.
+  * The lateness of fired tasks (time between the deadline and the actual start of the task) is collected in any case.
+  */
+public class TimingWheelScheduler implements TimerScheduler {
+
+	/** Default tick length, in nanoseconds */
+	public static long DEFAULT_TICK=1000000;
+
+	/** Default number of slots of each wheel, as power of 2 */
+	public static int DEFAULT_WHEEL_BITS=8;
+
+	/** Number of cancelled tasks that wakes up the scheduler thread for removing them from their slots */
+	public static int PURGE_THRESHOLD=1024;
+
+
+	/** Entry state: scheduled, waiting in the queue or in a slot */
+	static final int PENDING=0;
+
+	/** Entry state: a periodic task being run */
+	static final int RUNNING=1;
+
+	/** Entry state: a one-shot task that has been fired */
+	static final int FIRED=2;
+
+	/** Entry state: cancelled */
+	static final int CANCELLED=3;
+
+	/** Updater of the entry state */
+	static final AtomicIntegerFieldUpdater<Entry> STATE=AtomicIntegerFieldUpdater.newUpdater(Entry.class,"state");
+
+
+	/** Tick length, in nanoseconds */
+	final long tick;
+
+	/** Number of slots of each wheel, as power of 2 */
+	final int wheel_bits;
+
+	/** Slot index mask */
+	final long wheel_mask;
+
+	/** Slots of all wheels (accessed only by the scheduler thread) */
+	final Entry[][] wheels;
+
+	/** Time origin, in nanoseconds */
+	final long origin=System.nanoTime();
+
+	/** Whether the thread runs in 'daemon' mode */
+	final boolean daemon_mode;
+
+	/** Next tick to be processed (accessed only by the scheduler thread) */
+	long next_tick=0;
+
+	/** Number of entries in the wheels, including cancelled entries not removed yet (accessed only by the scheduler thread) */
+	int wheel_tasks=0;
+
+	/** Tick at which the thread will wake up */
+	volatile long wakeup_tick=Long.MAX_VALUE;
+
+	/** New and rescheduled entries, linked through {@link Entry#next_queued} */
+	final AtomicReference<Entry> queued=new AtomicReference<>();
+
+	/** Cancelled entries to be removed from the wheels, linked through {@link Entry#next_cancelled} */
+	final AtomicReference<Entry> cancelled=new AtomicReference<>();
+
+	/** Number of cancelled entries to be removed from the wheels */
+	final AtomicInteger cancelled_tasks=new AtomicInteger();
+
+	/** Number of scheduled tasks, not yet run or cancelled */
+	final LongAdder scheduled_tasks=new LongAdder();
+
+	/** Number of fired tasks */
+	final LongAdder fired_count=new LongAdder();
+
+	/** Number of cancelled tasks */
+	final LongAdder cancelled_count=new LongAdder();
+
+	/** Lateness of fired tasks, in nanoseconds */
+	final Histogram lateness=new Histogram();
+
+	/** Executor of expired tasks, or <i>null</i> */
+	volatile Executor executor=null;
+
+	/** Whether it has been halted */
+	volatile boolean halted=false;
+
+	/** Whether the scheduler thread is running */
+	final AtomicBoolean running=new AtomicBoolean(false);
+
+	/** Scheduler thread, or <i>null</i> */
+	volatile Thread thread=null;
+
+
+
+	/** Creates a new scheduler, with default tick and wheel size.
+	 * @param daemon_mode whether running in 'daemon' mode; in 'daemon' mode, scheduled tasks do not prevent the program from terminating */
+	public TimingWheelScheduler(boolean daemon_mode) {
+		this(DEFAULT_TICK,DEFAULT_WHEEL_BITS,daemon_mode);
+	}
+
+
+	/** Creates a new scheduler.
+	 * @param tick tick length, in nanoseconds
+	 * @param wheel_bits number of slots of each wheel, as power of 2 (e.g. 8 for 256 slots)
+	 * @param daemon_mode whether running in 'daemon' mode; in 'daemon' mode, scheduled tasks do not prevent the program from terminating */
+	public TimingWheelScheduler(long tick, int wheel_bits, boolean daemon_mode) {
+		if (tick<=0 || wheel_bits<=0 || wheel_bits>16) throw new IllegalArgumentException("Invalid tick length or wheel size: "+tick+", "+wheel_bits);
+		this.tick=tick;
+		this.wheel_bits=wheel_bits;
+		this.wheel_mask=(1L<<wheel_bits)-1;
+		this.daemon_mode=daemon_mode;
+		// enough wheels for covering 63 bits of ticks
+		int levels=(63+wheel_bits-1)/wheel_bits;
+		wheels=new Entry[levels][1<<wheel_bits];
+	}
+
+
+	/** Sets the executor of expired tasks.
+	 * @param executor the executor, or <i>null</i> for running tasks in the scheduler thread */
+	public void setExecutor(Executor executor) {
+		this.executor=executor;
+	}
+
+
+	/** Gets the executor of expired tasks.
+	 * @return the executor, or <i>null</i> if tasks are run in the scheduler thread */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+
+	/** Gets the tick length.
+	 * @return the tick length, in nanoseconds */
+	public long getTick() {
+		return tick;
+	}
+
+
+	@Override
+	public long getPendingCount() {
+		return scheduled_tasks.sum();
+	}
+
+
+	@Override
+	public long getFiredCount() {
+		return fired_count.sum();
+	}
+
+
+	@Override
+	public long getCancelledCount() {
+		return cancelled_count.sum();
+	}
+
+
+	@Override
+	public Histogram.Snapshot getLateness() {
+		return lateness.getSnapshot();
+	}
+
+
+	@Override
+	public Handle schedule(Runnable task, long nanosecs) {
+		Entry entry=new Entry(task,getDeadlineTime(nanosecs),0,false);
+		scheduled_tasks.increment();
+		enqueue(entry);
+		return entry;
+	}
+
+
+	@Override
+	public Handle schedule(Runnable task, long delay, long period, boolean fixed_rate) {
+		if (period<=0) throw new IllegalArgumentException("Invalid period: "+period);
+		// else
+		Entry entry=new Entry(task,getDeadlineTime(delay),period,fixed_rate);
+		scheduled_tasks.increment();
+		enqueue(entry);
+		return entry;
+	}
+
+
+	@Override
+	public void halt() {
+		halted=true;
+		LockSupport.unpark(thread);
+	}
+
+
+	/** Schedules the next run of a periodic entry, reusing the same entry.
+	 * @param entry the entry */
+	private void reschedule(Entry entry) {
+		if (halted) return;
+		// else
+		if (!entry.fixed_rate) entry.deadline_time=getDeadlineTime(entry.period);
+		else
+		if (entry.deadline_time<Long.MAX_VALUE-entry.period) entry.deadline_time+=entry.period;
+		else entry.deadline_time=Long.MAX_VALUE;
+		// it fails if cancelled while running
+		if (STATE.compareAndSet(entry,RUNNING,PENDING)) enqueue(entry);
+	}
+
+
+	/** Gets the deadline of a task, saturating to {@link Long#MAX_VALUE} on overflow.
+	 * @param nanosecs the delay, in nanoseconds
+	 * @return the deadline, in nanoseconds since the time origin */
+	private long getDeadlineTime(long nanosecs) {
+		long now=System.nanoTime()-origin;
+		if (nanosecs<=0) return now;
+		// else
+		return nanosecs>=Long.MAX_VALUE-now? Long.MAX_VALUE : now+nanosecs;
+	}
+
+
+	/** Gets the first tick not before a given time.
+	 * @param time the time, in nanoseconds since the time origin
+	 * @return the tick */
+	private long getTick(long time) {
+		return time/tick+(time%tick!=0? 1 : 0);
+	}
+
+
+	/** Pushes an entry to the queue of new entries, starting or waking up the scheduler thread if needed.
+	 * @param entry the entry */
+	private void enqueue(Entry entry) {
+		if (halted) throw new IllegalStateException("Scheduler halted");
+		// else
+		Entry head;
+		do {
+			head=queued.get();
+			entry.next_queued=head;
+		}
+		while (!queued.compareAndSet(head,entry));
+		if (!running.get() && running.compareAndSet(false,true)) {
+			Thread thread=new Thread(this::run,"TimingWheelScheduler");
+			thread.setDaemon(daemon_mode);
+			this.thread=thread;
+			thread.start();
+		}
+		else
+		if (getTick(entry.deadline_time)<wakeup_tick) LockSupport.unpark(thread);
+	}
+
+
+	/** Cancels a task.
+	 * @return <i>true</i> if the task has been cancelled */
+	boolean cancel(Entry entry) {
+		while (true) {
+			int state=entry.state;
+			if (state==PENDING) {
+				if (!STATE.compareAndSet(entry,PENDING,CANCELLED)) continue;
+				// else
+				Entry head;
+				do {
+					head=cancelled.get();
+					entry.next_cancelled=head;
+				}
+				while (!cancelled.compareAndSet(head,entry));
+				if (cancelled_tasks.incrementAndGet()==PURGE_THRESHOLD) LockSupport.unpark(thread);
+			}
+			else
+			if (state==RUNNING) {
+				// periodic task currently running
+				if (!STATE.compareAndSet(entry,RUNNING,CANCELLED)) continue;
+			}
+			else return false;
+			// else
+			scheduled_tasks.decrement();
+			cancelled_count.increment();
+			// let a non-daemon thread terminate
+			if (!daemon_mode && scheduled_tasks.sum()==0) LockSupport.unpark(thread);
+			return true;
+		}
+	}
+
+
+	/** Moves the new entries from the queue to the wheels. */
+	private void drainQueued() {
+		Entry entry=queued.getAndSet(null);
+		while (entry!=null) {
+			Entry next=entry.next_queued;
+			entry.next_queued=null;
+			if (entry.state==PENDING) {
+				// first tick not before the deadline
+				entry.deadline=getTick(entry.deadline_time);
+				insert(entry);
+				wheel_tasks++;
+			}
+			entry=next;
+		}
+	}
+
+
+	/** Removes the cancelled entries from the wheels. */
+	private void drainCancelled() {
+		Entry entry=cancelled.getAndSet(null);
+		int count=0;
+		while (entry!=null) {
+			Entry next=entry.next_cancelled;
+			entry.next_cancelled=null;
+			if (entry.level>=0) {
+				unlink(entry);
+				wheel_tasks--;
+			}
+			count++;
+			entry=next;
+		}
+		if (count>0) cancelled_tasks.addAndGet(-count);
+	}
+
+
+	/** Inserts an entry in the wheel and slot corresponding to its deadline. */
+	private void insert(Entry entry) {
+		if (entry.deadline<next_tick) entry.deadline=next_tick;
+		int level=0;
+		// deadlines beyond the top wheel go to the top wheel, and are cascaded when its turn comes
+		while (level<wheels.length-1 && ((entry.deadline^next_tick)>>>(wheel_bits*(level+1)))!=0) level++;
+		int index=(int)((entry.deadline>>>(wheel_bits*level))&wheel_mask);
+		Entry head=wheels[level][index];
+		entry.level=level;
+		entry.index=index;
+		entry.prev=null;
+		entry.next=head;
+		if (head!=null) head.prev=entry;
+		wheels[level][index]=entry;
+	}
+
+
+	/** Removes an entry from its slot. */
+	private void unlink(Entry entry) {
+		if (entry.prev!=null) entry.prev.next=entry.next;
+		else wheels[entry.level][entry.index]=entry.next;
+		if (entry.next!=null) entry.next.prev=entry.prev;
+		entry.prev=null;
+		entry.next=null;
+		entry.level=-1;
+	}
+
+
+	/** Gets the next tick at which some slot has to be processed or cascaded.
+	 * @return the tick, or {@link Long#MAX_VALUE} if there are no entries in the wheels */
+	private long getNextEventTick() {
+		if (wheel_tasks==0) return Long.MAX_VALUE;
+		// else
+		for (int level=0; level<wheels.length; level++) {
+			int shift=wheel_bits*level;
+			long digit=(next_tick>>>shift)&wheel_mask;
+			// the current slot of an upper wheel is still to be cascaded only at the beginning of its turn
+			boolean at_boundary=level==0 || (next_tick&((1L<<shift)-1))==0;
+			long base=shift+wheel_bits<64? (next_tick>>>(shift+wheel_bits))<<(shift+wheel_bits) : 0;
+			for (long index=at_boundary? digit : digit+1; index<=wheel_mask; index++) {
+				if (wheels[level][(int)index]!=null) return base|(index<<shift);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+
+	/** Processes a tick, cascading upper wheels and collecting the expired tasks.
+	 * @param expired list where the expired tasks are added */
+	private void processTick(ArrayList<Entry> expired) {
+		// cascade upper wheels, from the highest one
+		for (int level=wheels.length-1; level>0; level--) {
+			if ((next_tick&((1L<<(wheel_bits*level))-1))!=0) continue;
+			// else
+			int index=(int)((next_tick>>>(wheel_bits*level))&wheel_mask);
+			Entry entry=wheels[level][index];
+			wheels[level][index]=null;
+			while (entry!=null) {
+				Entry next=entry.next;
+				if (entry.state==CANCELLED) {
+					entry.prev=null;
+					entry.next=null;
+					entry.level=-1;
+					wheel_tasks--;
+				}
+				else insert(entry);
+				entry=next;
+			}
+		}
+		int index=(int)(next_tick&wheel_mask);
+		Entry entry=wheels[0][index];
+		wheels[0][index]=null;
+		while (entry!=null) {
+			Entry next=entry.next;
+			entry.prev=null;
+			entry.next=null;
+			entry.level=-1;
+			wheel_tasks--;
+			if (STATE.compareAndSet(entry,PENDING,entry.period>0? RUNNING : FIRED)) {
+				// periodic tasks stay scheduled until they are cancelled
+				if (entry.period==0) scheduled_tasks.decrement();
+				fired_count.increment();
+				expired.add(entry);
+			}
+			entry=next;
+		}
+		next_tick++;
+	}
+
+
+	/** Scheduler thread. */
+	private void run() {
+		ArrayList<Entry> expired=new ArrayList<>();
+		while (true) {
+			if (halted) {
+				// discard all pending tasks
+				queued.set(null);
+				cancelled.set(null);
+				for (Entry[] wheel : wheels) Arrays.fill(wheel,null);
+				wheel_tasks=0;
+				return;
+			}
+			// else
+			drainQueued();
+			drainCancelled();
+			long now_tick=(System.nanoTime()-origin)/tick;
+			long event_tick;
+			while ((event_tick=getNextEventTick())<=now_tick) {
+				next_tick=event_tick;
+				processTick(expired);
+			}
+			if (next_tick<=now_tick) next_tick=now_tick+1;
+			if (!expired.isEmpty()) {
+				Executor executor=this.executor;
+				for (Entry entry : expired) {
+					if (executor!=null) {
+						try {
+							executor.execute(entry);
+							continue;
+						}
+						catch (RejectedExecutionException e) {}
+					}
+					// else
+					entry.run();
+				}
+				expired.clear();
+				continue;
+			}
+			// else
+			if (!daemon_mode && scheduled_tasks.sum()==0 && queued.get()==null) {
+				running.set(false);
+				// a new task may have been scheduled in the meantime, without starting a new thread
+				if (queued.get()==null || !running.compareAndSet(false,true)) return;
+				// else
+				continue;
+			}
+			// else
+			wakeup_tick=event_tick;
+			// new entries pushed before the wake-up tick was updated
+			if (queued.get()!=null) continue;
+			// else
+			long wait=event_tick>Long.MAX_VALUE/tick? Long.MAX_VALUE : event_tick*tick-(System.nanoTime()-origin);
+			if (wait==Long.MAX_VALUE) LockSupport.park(this);
+			else
+			if (wait>0) LockSupport.parkNanos(this,wait);
+		}
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return getClass().getSimpleName()+"[tick="+tick+"ns,slots="+(1<<wheel_bits)+",wheels="+wheels.length+",daemon="+daemon_mode+"]";
+	}
+
+
+
+	/** Scheduled task. */
+	class Entry implements Handle, Runnable {
+
+		/** The task */
+		final Runnable task;
+
+		/** Deadline, in nanoseconds since the time origin */
+		long deadline_time;
+
+		/** Deadline, in ticks */
+		long deadline;
+
+		/** Period, in nanoseconds, or 0 for a one-shot task */
+		final long period;
+
+		/** Whether a periodic task runs at fixed rate */
+		final boolean fixed_rate;
+
+		/** State ({@link #PENDING}, {@link #RUNNING}, {@link #FIRED}, or {@link #CANCELLED}) */
+		volatile int state=PENDING;
+
+		/** Next entry in the queue of new entries */
+		Entry next_queued;
+
+		/** Next entry in the queue of cancelled entries */
+		Entry next_cancelled;
+
+		/** Wheel level, or -1 if the entry is not in any slot */
+		int level=-1;
+
+		/** Slot index */
+		int index;
+
+		/** Previous entry in the slot */
+		Entry prev;
+
+		/** Next entry in the slot */
+		Entry next;
+
+		/** Creates a new entry. */
+		Entry(Runnable task, long deadline_time, long period, boolean fixed_rate) {
+			this.task=task;
+			this.deadline_time=deadline_time;
+			this.period=period;
+			this.fixed_rate=fixed_rate;
+		}
+
+		@Override
+		public boolean cancel() {
+			return TimingWheelScheduler.this.cancel(this);
+		}
+
+		/** Runs the expired task. */
+		@Override
+		public void run() {
+			lateness.add(System.nanoTime()-origin-deadline_time);
+			try {
+				task.run();
+			}
+			catch (Throwable e) {
+				e.printStackTrace();
+			}
+			if (period>0) reschedule(this);
+		}
+	}
+
+}
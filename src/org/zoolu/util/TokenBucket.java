@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+
+/** Token bucket rate limiter.
+  * <p>
+  * Tokens are added to the bucket at a constant <i>rate</i> (tokens per second),
+  * up to a maximum <i>burst</i> size. Consuming tokens is allowed only if the bucket
+  * contains enough tokens.
+  * <p>
+  * Time is measured in nanoseconds through the {@link Clock#nanoTime()} method of
+  * the default clock, so that waiting times can be computed with nanosecond precision.
+  */
+public class TokenBucket {
+
+	/** Rate, in tokens per second */
+	long rate;
+
+	/** Maximum number of tokens */
+	long burst;
+
+	/** Current number of tokens, in nano-tokens (tokens*10^9) */
+	long nanotokens;
+
+	/** Time of the last update, in nanoseconds */
+	long last_time;
+
+
+	/** Creates a new token bucket. The bucket is initially full.
+	 * @param rate the rate, in tokens per second
+	 * @param burst the bucket size, that is the maximum number of tokens */
+	public TokenBucket(long rate, long burst) {
+		if (rate<=0 || burst<=0) throw new IllegalArgumentException("Rate and burst must be positive");
+		this.rate=rate;
+		this.burst=burst;
+		this.nanotokens=burst*1000000000L;
+		this.last_time=Clock.getDefaultClock().nanoTime();
+	}
+
+
+	/** Gets the rate.
+	 * @return the rate, in tokens per second */
+	public long getRate() {
+		return rate;
+	}
+
+
+	/** Gets the bucket size.
+	 * @return the maximum number of tokens */
+	public long getBurst() {
+		return burst;
+	}
+
+
+	/** Updates the number of tokens. */
+	private void update(long now) {
+		long elapsed=now-last_time;
+		if (elapsed<=0) return;
+		// else
+		long max=burst*1000000000L;
+		// avoid overflow for long idle periods
+		if (elapsed>=max/rate) nanotokens=max;
+		else nanotokens=Math.min(max,nanotokens+elapsed*rate);
+		last_time=now;
+	}
+
+
+	/** Gets the current number of tokens.
+	 * @return the number of tokens */
+	public synchronized long getTokens() {
+		update(Clock.getDefaultClock().nanoTime());
+		return nanotokens/1000000000L;
+	}
+
+
+	/** Whether the bucket is full.
+	 * @return <i>true</i> if the bucket contains the maximum number of tokens */
+	public synchronized boolean isFull() {
+		update(Clock.getDefaultClock().nanoTime());
+		return nanotokens==burst*1000000000L;
+	}
+
+
+	/** Consumes some tokens, if available.
+	 * @param tokens the number of tokens
+	 * @return <i>true</i> if the tokens have been consumed, <i>false</i> if not enough tokens are available */
+	public synchronized boolean tryConsume(long tokens) {
+		update(Clock.getDefaultClock().nanoTime());
+		long n=Math.min(tokens,burst)*1000000000L;
+		if (nanotokens<n) return false;
+		// else
+		nanotokens-=n;
+		return true;
+	}
+
+
+	/** Gets the time needed for a given number of tokens to be available.
+	 * Requests greater than the bucket size are considered equal to the bucket size.
+	 * @param tokens the number of tokens
+	 * @return the waiting time in nanoseconds (0 if the tokens are already available) */
+	public synchronized long getWaitingTime(long tokens) {
+		update(Clock.getDefaultClock().nanoTime());
+		long n=Math.min(tokens,burst)*1000000000L;
+		if (nanotokens>=n) return 0;
+		// else
+		return (n-nanotokens+rate-1)/rate;
+	}
+
+
+	/** Gets a string representation of this object.
+	 * @return the string */
+	public String toString() {
+		return "rate="+rate+"/s, burst="+burst+", tokens="+getTokens();
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018 Luca Veltri, University of Parma
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT
+ * SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.zoolu.util;
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/** Tests of {@link TimingWheelScheduler} with far-away deadlines.
+  * <p>
+  * Usage: <code>java org.zoolu.util.TimingWheelSchedulerTest</code>; it exits with status 1 if some test fails.
+  */
+public class TimingWheelSchedulerTest {
+
+	/** Number of failed tests */
+	static int failures=0;
+
+
+	/** Checks a condition.
+	 * @param condition the condition
+	 * @param name the test name */
+	static void check(boolean condition, String name) {
+		System.out.println((condition? "PASS " : "FAIL ")+name);
+		if (!condition) failures++;
+	}
+
+
+	/** A deadline beyond the top wheel must not block the scheduler thread. */
+	static void testDeadlineBeyondTopWheel() throws InterruptedException {
+		TimingWheelScheduler scheduler=new TimingWheelScheduler(1000,16,true);
+		AtomicBoolean far_fired=new AtomicBoolean(false);
+		scheduler.schedule(()->far_fired.set(true),TimeUnit.DAYS.toNanos(3650));
+		CountDownLatch near=new CountDownLatch(1);
+		scheduler.schedule(near::countDown,TimeUnit.MILLISECONDS.toNanos(10));
+		check(near.await(2,TimeUnit.SECONDS),"near timer fires after a 10-year timer");
+		check(!far_fired.get(),"10-year timer does not fire");
+		scheduler.halt();
+	}
+
+
+	/** Delays that overflow the clock must never expire. */
+	static void testOverflowingDelay() throws InterruptedException {
+		TimingWheelScheduler scheduler=new TimingWheelScheduler(true);
+		AtomicBoolean fired=new AtomicBoolean(false);
+		scheduler.schedule(()->fired.set(true),Long.MAX_VALUE);
+		TimerScheduler default_scheduler=Timer.getDefaultScheduler(false);
+		TimerScheduler default_daemon_scheduler=Timer.getDefaultScheduler(true);
+		Timer.setDefaultScheduler(scheduler,scheduler);
+		try {
+			AtomicBoolean timer_fired=new AtomicBoolean(false);
+			new Timer(Long.MAX_VALUE/1000000,t->timer_fired.set(true)).start(true);
+			CountDownLatch near=new CountDownLatch(1);
+			scheduler.schedule(near::countDown,TimeUnit.MILLISECONDS.toNanos(10));
+			near.await(2,TimeUnit.SECONDS);
+			Thread.sleep(50);
+			check(!fired.get(),"schedule(task,Long.MAX_VALUE) does not fire");
+			check(!timer_fired.get(),"Timer(Long.MAX_VALUE/1000000) does not fire");
+		}
+		finally {
+			Timer.setDefaultScheduler(default_scheduler,default_daemon_scheduler);
+			scheduler.halt();
+		}
+	}
+
+
+	/** Main method. */
+	public static void main(String[] args) throws Exception {
+		testDeadlineBeyondTopWheel();
+		testOverflowingDelay();
+		if (failures>0) {
+			System.out.println(failures+" test(s) failed");
+			System.exit(1);
+		}
+		// else
+		System.out.println("All tests passed");
+	}
+
+}